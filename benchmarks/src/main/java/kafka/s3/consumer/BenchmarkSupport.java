@@ -0,0 +1,119 @@
+package kafka.s3.consumer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import kafka.message.Message;
+import kafka.message.MessageAndMetadata;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Configuration and message fixtures shared by the benchmarks.
+ */
+final class BenchmarkSupport {
+	static final String TOPIC = "bench";
+
+	private static final String[] WORDS = {
+		"thread", "comment", "reply", "vote", "user", "forum", "disqus", "moderator",
+		"spam", "approved", "pending", "http", "www", "example", "com", "the", "a",
+	};
+
+	private BenchmarkSupport() {
+	}
+
+	static File createTempDir() throws IOException {
+		File dir = File.createTempFile("kafka-s3-bench", "");
+		dir.delete();
+		if (!dir.mkdirs()) {
+			throw new IOException("Could not create " + dir);
+		}
+		return dir;
+	}
+
+	/**
+	 * Writes a properties file that stores objects under {@code dir/s3} and
+	 * loads it the way App does.
+	 */
+	static PropertyConfiguration createConfiguration(File dir, Map<String, String> overrides)
+			throws Exception {
+		Properties props = new Properties();
+		props.setProperty(Configuration.PROP_S3_BUCKET, "bench-bucket");
+		props.setProperty(Configuration.PROP_S3_PREFIX, "bench");
+		props.setProperty(Configuration.PROP_S3_LOCAL_DIR, new File(dir, "s3").getPath());
+		props.setProperty(Configuration.PROP_S3_MAX_OBJECT_SIZE, Integer.toString(64 * 1024 * 1024));
+		props.putAll(overrides);
+
+		File file = new File(dir, "bench.properties");
+		OutputStream out = new FileOutputStream(file);
+		try {
+			props.store(out, null);
+		} finally {
+			out.close();
+		}
+		return new PropertyConfiguration(file.toURI().toURL());
+	}
+
+	/**
+	 * @return instruments on a registry nobody reports.
+	 */
+	static SinkMetrics metrics() {
+		return new SinkMetrics(new MetricRegistry(), TOPIC, 0);
+	}
+
+	/**
+	 * Builds a JSON-like payload of roughly {@code size} bytes, prefixed with
+	 * the 8-byte timestamp (seconds) the sinks expect.
+	 */
+	static byte[] payload(long timestamp, int size, Random random) {
+		StringBuilder json = new StringBuilder(size + 32);
+		json.append("{\"id\":").append(random.nextInt(1000000)).append(",\"text\":\"");
+		while (json.length() < size - 2) {
+			json.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+		}
+		json.setLength(Math.max(json.length(), size - 2));
+		json.append("\"}");
+
+		byte[] body = json.toString().getBytes();
+		ByteBuffer buffer = ByteBuffer.allocate(8 + body.length);
+		buffer.putLong(timestamp);
+		buffer.put(body);
+		return buffer.array();
+	}
+
+	static MessageAndMetadata<Message> message(long timestamp, int size, Random random) {
+		return new MessageAndMetadata<Message>(new Message(payload(timestamp, size, random)), TOPIC);
+	}
+
+	/**
+	 * @return {@code count} messages whose timestamps cycle through
+	 *         {@code hours} consecutive hours.
+	 */
+	@SuppressWarnings("unchecked")
+	static MessageAndMetadata<Message>[] messages(int count, int size, int hours) {
+		Random random = new Random(42);
+		long start = 1500000000L / 3600 * 3600;
+		MessageAndMetadata<Message>[] messages = new MessageAndMetadata[count];
+		for (int i = 0; i < count; i++) {
+			long timestamp = start + (i % hours) * 3600L + random.nextInt(3600);
+			messages[i] = message(timestamp, size, random);
+		}
+		return messages;
+	}
+
+	static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+}
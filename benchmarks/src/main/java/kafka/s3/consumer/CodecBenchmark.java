@@ -0,0 +1,92 @@
+package kafka.s3.consumer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Raw codec write throughput into a discarding stream, buffered the same
+ * way S3JsonFileSink buffers it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CodecBenchmark {
+	@Param({"100", "1000", "10000"})
+	public int messageSize;
+
+	@Param({"gzip", "pgzip", "zstd", "lz4", "snappy"})
+	public String codec;
+
+	private File dir;
+	private SinkStreamHandler handler;
+	private byte[][] messages;
+	private OutputStream out;
+	private int next;
+
+	@Setup
+	public void setup() throws Exception {
+		dir = BenchmarkSupport.createTempDir();
+		PropertyConfiguration conf = BenchmarkSupport.createConfiguration(dir,
+				Collections.singletonMap(Configuration.PROP_S3_CODEC, codec));
+		handler = SinkStreamHandlers.forTopic(BenchmarkSupport.TOPIC, conf);
+
+		Random random = new Random(42);
+		messages = new byte[1024][];
+		for (int i = 0; i < messages.length; i++) {
+			messages[i] = BenchmarkSupport.payload(0, messageSize, random);
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void openStream() throws IOException {
+		out = new BufferedOutputStream(handler.wrap(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}), 64 * 1024);
+	}
+
+	@Benchmark
+	public void write(ByteCounter counter) throws IOException {
+		byte[] message = messages[next++ & (messages.length - 1)];
+		out.write(message, 8, message.length - 8);
+		out.write('\n');
+		counter.bytes += message.length - 8;
+	}
+
+	@TearDown(Level.Iteration)
+	public void closeStream() throws IOException {
+		out.close();
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchmarkSupport.deleteRecursively(dir);
+	}
+}
@@ -0,0 +1,341 @@
+package kafka.s3.consumer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import kafka.message.Message;
+import kafka.message.MessageAndMetadata;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+
+/**
+ * Runs the archiving pipeline end to end at full speed, without Kafka or S3.
+ *
+ * Every partition gets a thread that does what App's workers do, fed by an
+ * in-process source instead of a Kafka stream: append to a
+ * {@link MultiS3JsonFileSink}, check the leases, and at the end flush and
+ * wait for the uploads. Objects go to the {@link FileSystemS3Client}, whose
+ * {@code s3.local.latency.ms} and {@code s3.local.errorrate} stand in for
+ * S3 round trips and throttling.
+ *
+ *     java -cp benchmarks.jar [-Dload.<option>=...] kafka.s3.consumer.LoadHarness [props]
+ *
+ * The optional properties file overrides the consumer settings (codec, sizes,
+ * upload threads, ...). Options:
+ *
+ * <ul>
+ * <li>{@code load.partitions} (4): partitions, one thread each.</li>
+ * <li>{@code load.seconds} (60): how long to append.</li>
+ * <li>{@code load.size} (1024): message size in bytes.</li>
+ * <li>{@code load.hours} (1): hours the timestamps are spread over, ending
+ * with the current one.</li>
+ * <li>{@code load.skew} (0): seconds a timestamp is at most behind its hour's
+ * slot, to mix late messages into the stream.</li>
+ * <li>{@code load.rate} (0): messages per second per partition, 0 for as
+ * fast as possible.</li>
+ * <li>{@code load.replay}: file with one recorded message per line to use
+ * instead of synthetic ones.</li>
+ * </ul>
+ *
+ * It reports the sustained rate in and out, the time from a chunk's first
+ * message to the chunk being visible, and heap use and GC time.
+ */
+public class LoadHarness {
+	private static final String TOPIC = BenchmarkSupport.TOPIC;
+
+	public static void main(String[] args) throws Exception {
+		int partitions = Integer.getInteger("load.partitions", 4);
+		int seconds = Integer.getInteger("load.seconds", 60);
+		int size = Integer.getInteger("load.size", 1024);
+		int hours = Integer.getInteger("load.hours", 1);
+		int skew = Integer.getInteger("load.skew", 0);
+		int rate = Integer.getInteger("load.rate", 0);
+		String replay = System.getProperty("load.replay");
+
+		Map<String, String> overrides = new HashMap<String, String>();
+		if (args.length > 0) {
+			Properties props = new Properties();
+			InputStream in = new FileInputStream(args[0]);
+			try {
+				props.load(in);
+			} finally {
+				in.close();
+			}
+			for (String name : props.stringPropertyNames()) {
+				overrides.put(name, props.getProperty(name));
+			}
+		}
+
+		File dir = BenchmarkSupport.createTempDir();
+		try {
+			PropertyConfiguration conf = BenchmarkSupport.createConfiguration(dir, overrides);
+			List<byte[]> bodies = replay != null ? readBodies(replay) : syntheticBodies(size);
+			new LoadHarness(conf, partitions, bodies, hours, skew, rate).run(seconds);
+		} finally {
+			BenchmarkSupport.deleteRecursively(dir);
+		}
+	}
+
+	private final PropertyConfiguration conf;
+	private final int partitions;
+	private final List<byte[]> bodies;
+	private final int hours;
+	private final int skew;
+	private final int rate;
+	private final MetricRegistry registry = new MetricRegistry();
+
+	private LoadHarness(PropertyConfiguration conf, int partitions, List<byte[]> bodies, int hours,
+			int skew, int rate) {
+		this.conf = conf;
+		this.partitions = partitions;
+		this.bodies = bodies;
+		this.hours = hours;
+		this.skew = skew;
+		this.rate = rate;
+	}
+
+	private void run(int seconds) throws Exception {
+		ChunkBufferPool buffers = null;
+		if (conf.getMemoryBudget() > 0) {
+			buffers = new ChunkBufferPool(conf.getMemoryBudget(), conf.getMemoryBlockSize());
+		}
+		S3Uploader uploader = new S3Uploader(S3ClientFactory.createClient(conf),
+				conf.getS3UploadThreads(), conf.getS3UploadQueueSize(), null, buffers);
+		OpenSinkLimit openSinks = new OpenSinkLimit(conf.getMaxSinksTotal());
+		HourMarkers markers = conf.getWatermarkLateness() >= 0
+				? new HourMarkers(TOPIC, partitions, conf, uploader.getClient()) : null;
+
+		HeapSampler heap = new HeapSampler();
+		heap.start();
+		long[] gcBefore = gcTotals();
+		long start = System.nanoTime();
+		long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds);
+
+		List<Worker> workers = new ArrayList<Worker>();
+		for (int partition = 0; partition < partitions; partition++) {
+			Sink sink = new MultiS3JsonFileSink(TOPIC, partition, conf, uploader, openSinks,
+					new SinkMetrics(registry, TOPIC, partition), markers);
+			Worker worker = new Worker(sink, new Random(partition), end);
+			worker.start();
+			workers.add(worker);
+		}
+		for (Worker worker : workers) {
+			worker.join();
+			if (worker.failure != null) {
+				throw new RuntimeException("Worker failed", worker.failure);
+			}
+		}
+
+		long elapsed = System.nanoTime() - start;
+		long[] gcAfter = gcTotals();
+		heap.interrupt();
+		heap.join();
+		uploader.shutdown();
+		uploader.awaitTermination(1, TimeUnit.MINUTES);
+		if (markers != null) {
+			markers.stop(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1));
+		}
+
+		report(uploader, elapsed, gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1], heap.max);
+	}
+
+	private void report(S3Uploader uploader, long elapsedNanos, long gcCount, long gcMillis,
+			long maxHeap) {
+		double elapsed = elapsedNanos / 1e9;
+		long messages = 0;
+		long bytes = 0;
+		for (int partition = 0; partition < partitions; partition++) {
+			messages += registry.counter(name(partition, "messages")).getCount();
+			bytes += registry.counter(name(partition, "bytes")).getCount();
+		}
+		File objects = ((FileSystemS3Client) uploader.getClient()).getRoot();
+		long stored = sizeOf(objects);
+
+		System.out.printf("partitions %d, %.1f s%n", partitions, elapsed);
+		System.out.printf("in:  %d messages, %.0f msg/s, %.2f MB/s%n", messages, messages / elapsed,
+				bytes / elapsed / (1 << 20));
+		System.out.printf("out: %d objects, %.2f MB/s, ratio %.2f%n", countFiles(objects),
+				stored / elapsed / (1 << 20), stored > 0 ? (double) bytes / stored : 0.0);
+		System.out.printf("injected S3 errors: %d%n",
+				((FileSystemS3Client) uploader.getClient()).getInjectedErrors());
+		System.out.println("first message to visible object (ms):");
+		for (int partition = 0; partition < partitions; partition++) {
+			Snapshot latency = registry.timer(name(partition, "chunk.latency")).getSnapshot();
+			System.out.printf("  partition %d: p50 %.0f, p99 %.0f, max %.0f%n", partition,
+					latency.getMedian() / 1e6, latency.get99thPercentile() / 1e6, latency.getMax() / 1e6);
+		}
+		System.out.printf("heap: max used %d MB; gc: %d collections, %d ms (%.1f%%)%n",
+				maxHeap >> 20, gcCount, gcMillis, gcMillis / 10.0 / elapsed);
+	}
+
+	private static String name(int partition, String metric) {
+		return MetricRegistry.name(TOPIC, Integer.toString(partition), metric);
+	}
+
+	/**
+	 * @return total collections and collection milliseconds of all
+	 *         collectors.
+	 */
+	private static long[] gcTotals() {
+		long[] totals = new long[2];
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			totals[0] += Math.max(0L, gc.getCollectionCount());
+			totals[1] += Math.max(0L, gc.getCollectionTime());
+		}
+		return totals;
+	}
+
+	private static long sizeOf(File file) {
+		if (file.getName().startsWith(".")) {
+			return 0L;
+		}
+		File[] children = file.listFiles();
+		if (children == null) {
+			return file.length();
+		}
+		long size = 0;
+		for (File child : children) {
+			size += sizeOf(child);
+		}
+		return size;
+	}
+
+	private static int countFiles(File file) {
+		if (file.getName().startsWith(".")) {
+			return 0;
+		}
+		File[] children = file.listFiles();
+		if (children == null) {
+			return 1;
+		}
+		int count = 0;
+		for (File child : children) {
+			count += countFiles(child);
+		}
+		return count;
+	}
+
+	private static List<byte[]> syntheticBodies(int size) {
+		Random random = new Random(42);
+		List<byte[]> bodies = new ArrayList<byte[]>();
+		for (int i = 0; i < 1024; i++) {
+			byte[] payload = BenchmarkSupport.payload(0L, size, random);
+			byte[] body = new byte[payload.length - 8];
+			System.arraycopy(payload, 8, body, 0, body.length);
+			bodies.add(body);
+		}
+		return bodies;
+	}
+
+	private static List<byte[]> readBodies(String path) throws IOException {
+		List<byte[]> bodies = new ArrayList<byte[]>();
+		BufferedReader reader = new BufferedReader(new FileReader(path));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.isEmpty()) {
+					bodies.add(line.getBytes("UTF-8"));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		if (bodies.isEmpty()) {
+			throw new IOException("No messages in " + path);
+		}
+		return bodies;
+	}
+
+	/**
+	 * The loop of App's ArchivingWorker over a synthetic stream.
+	 */
+	private class Worker extends Thread {
+		private final Sink sink;
+		private final Random random;
+		private final long end;
+		private Throwable failure;
+
+		private Worker(Sink sink, Random random, long end) {
+			this.sink = sink;
+			this.random = random;
+			this.end = end;
+		}
+
+		@Override
+		public void run() {
+			try {
+				long sent = 0;
+				long start = System.currentTimeMillis();
+				long now = start;
+				while (now < end) {
+					sink.append(next(now));
+					sink.checkFileLease();
+					sent++;
+					if (rate > 0 && sent * 1000 / rate > now - start) {
+						Thread.sleep(sent * 1000 / rate - (now - start));
+					}
+					now = System.currentTimeMillis();
+				}
+				sink.flush();
+				sink.awaitUploads();
+				sink.close();
+			} catch (Throwable t) {
+				failure = t;
+			}
+		}
+
+		private MessageAndMetadata<Message> next(long now) {
+			long timestamp = now / 1000 - random.nextInt(hours) * 3600L;
+			if (skew > 0) {
+				timestamp -= random.nextInt(skew);
+			}
+			byte[] body = bodies.get(random.nextInt(bodies.size()));
+			ByteBuffer payload = ByteBuffer.allocate(8 + body.length);
+			payload.putLong(timestamp);
+			payload.put(body);
+			return new MessageAndMetadata<Message>(new Message(payload.array()), TOPIC);
+		}
+	}
+
+	/**
+	 * Records the largest heap use seen, sampled every 100ms.
+	 */
+	private static class HeapSampler extends Thread {
+		private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		private volatile long max;
+
+		private HeapSampler() {
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (!isInterrupted()) {
+				max = Math.max(max, memory.getHeapMemoryUsage().getUsed());
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+}
+
+// vim: noet:ts=2:sw=2
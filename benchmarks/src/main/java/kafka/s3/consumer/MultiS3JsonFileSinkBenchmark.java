@@ -0,0 +1,72 @@
+package kafka.s3.consumer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import kafka.message.Message;
+import kafka.message.MessageAndMetadata;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hour bucketing plus the per-message lease check, as the worker loop calls
+ * them, with messages spread over a number of hours.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MultiS3JsonFileSinkBenchmark {
+	@Param({"1", "4", "24"})
+	public int hours;
+
+	@Param({"1000"})
+	public int messageSize;
+
+	private File dir;
+	private S3Uploader uploader;
+	private MultiS3JsonFileSink sink;
+	private MessageAndMetadata<Message>[] messages;
+	private int next;
+
+	@Setup
+	public void setup() throws Exception {
+		dir = BenchmarkSupport.createTempDir();
+		PropertyConfiguration conf = BenchmarkSupport.createConfiguration(dir,
+				Collections.<String, String>emptyMap());
+		uploader = new S3Uploader(S3ClientFactory.createClient(conf), 2, 16, null, null);
+		sink = new MultiS3JsonFileSink(BenchmarkSupport.TOPIC, 0, conf, uploader,
+				new OpenSinkLimit(0), BenchmarkSupport.metrics(), null);
+		messages = BenchmarkSupport.messages(4096, messageSize, hours);
+	}
+
+	@Benchmark
+	public long append(ByteCounter counter) throws IOException {
+		long size = sink.append(messages[next++ & (messages.length - 1)]);
+		sink.checkFileLease();
+		counter.bytes += size;
+		return size;
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		uploader.shutdown();
+		uploader.awaitTermination(1, TimeUnit.MINUTES);
+		BenchmarkSupport.deleteRecursively(dir);
+	}
+}
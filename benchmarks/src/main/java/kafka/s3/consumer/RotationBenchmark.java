@@ -0,0 +1,102 @@
+package kafka.s3.consumer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import kafka.message.Message;
+import kafka.message.MessageAndMetadata;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A full chunk lifecycle: fill a chunk, rotate it and wait until the local
+ * S3 stand-in has the object.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RotationBenchmark {
+	@Param({"1000", "10000"})
+	public int messagesPerChunk;
+
+	@Param({"1000"})
+	public int messageSize;
+
+	// "memory" is file mode with chunks kept in a ChunkBufferPool
+	@Param({"file", "memory", "multipart"})
+	public String uploadMode;
+
+	private File dir;
+	private PropertyConfiguration conf;
+	private S3Uploader uploader;
+	private UploadSequencer sequencer;
+	private S3JsonFileSink sink;
+	private MessageAndMetadata<Message>[] messages;
+
+	@Setup
+	public void setup() throws Exception {
+		dir = BenchmarkSupport.createTempDir();
+		Map<String, String> props = new HashMap<String, String>();
+		ChunkBufferPool buffers = null;
+		if ("memory".equals(uploadMode)) {
+			props.put(Configuration.PROP_S3_UPLOAD_MODE, Configuration.S3_UPLOAD_MODE_FILE);
+			buffers = new ChunkBufferPool(256 * 1024 * 1024, Configuration.DEFAULT_S3_MEMORY_BLOCK_SIZE);
+		} else {
+			props.put(Configuration.PROP_S3_UPLOAD_MODE, uploadMode);
+		}
+		conf = BenchmarkSupport.createConfiguration(dir, props);
+		uploader = new S3Uploader(S3ClientFactory.createClient(conf), 2, 16, null, buffers);
+		sequencer = new UploadSequencer(uploader, BenchmarkSupport.metrics());
+		messages = BenchmarkSupport.messages(messagesPerChunk, messageSize, 1);
+	}
+
+	@Setup(Level.Iteration)
+	public void openSink() throws IOException {
+		sink = new S3JsonFileSink(BenchmarkSupport.TOPIC, 0, conf, new Date(0), sequencer);
+	}
+
+	@Benchmark
+	public int rotate() throws IOException {
+		for (MessageAndMetadata<Message> message : messages) {
+			sink.append(message);
+		}
+		sink.expireLease(System.currentTimeMillis());
+		while (sequencer.getPending() > 0) {
+			Thread.yield();
+		}
+		sequencer.checkFailure();
+		return messages.length;
+	}
+
+	@TearDown(Level.Iteration)
+	public void closeSink() {
+		sink.close();
+		BenchmarkSupport.deleteRecursively(new File(dir, "s3"));
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		uploader.shutdown();
+		uploader.awaitTermination(1, TimeUnit.MINUTES);
+		BenchmarkSupport.deleteRecursively(dir);
+	}
+}
@@ -0,0 +1,73 @@
+package kafka.s3.consumer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import kafka.message.Message;
+import kafka.message.MessageAndMetadata;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Appends to a single hourly sink, including the size-triggered rotations
+ * and uploads to the local S3 stand-in that happen along the way.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class S3JsonFileSinkBenchmark {
+	@Param({"100", "1000", "10000"})
+	public int messageSize;
+
+	@Param({"gzip", "zstd", "lz4", "snappy"})
+	public String codec;
+
+	private File dir;
+	private S3Uploader uploader;
+	private S3JsonFileSink sink;
+	private MessageAndMetadata<Message>[] messages;
+	private int next;
+
+	@Setup
+	public void setup() throws Exception {
+		dir = BenchmarkSupport.createTempDir();
+		PropertyConfiguration conf = BenchmarkSupport.createConfiguration(dir,
+				Collections.singletonMap(Configuration.PROP_S3_CODEC, codec));
+		uploader = new S3Uploader(S3ClientFactory.createClient(conf), 2, 16, null, null);
+		sink = new S3JsonFileSink(BenchmarkSupport.TOPIC, 0, conf, new Date(0),
+				new UploadSequencer(uploader, BenchmarkSupport.metrics()));
+		messages = BenchmarkSupport.messages(1024, messageSize, 1);
+	}
+
+	@Benchmark
+	public long append(ByteCounter counter) throws IOException {
+		long size = sink.append(messages[next++ & (messages.length - 1)]);
+		counter.bytes += size;
+		return size;
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		sink.close();
+		uploader.shutdown();
+		uploader.awaitTermination(1, TimeUnit.MINUTES);
+		BenchmarkSupport.deleteRecursively(dir);
+	}
+}
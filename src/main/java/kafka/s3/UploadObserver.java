@@ -9,13 +9,13 @@ public class UploadObserver extends Observable {
 		uploads = new Long(0);
 	}
 
-	public void incrUploads() {
+	public synchronized void incrUploads() {
 		this.uploads++;
 		setChanged();
 		notifyObservers();
 	}
 
-	public Long getUploads() {
+	public synchronized Long getUploads() {
 		return uploads;
 	}
 }
@@ -1,29 +1,31 @@
 package kafka.s3.consumer;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Observable;
-import java.util.Observer;
-import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 
-import kafka.consumer.ConsumerConfig;
 import kafka.consumer.ConsumerIterator;
 import kafka.consumer.ConsumerTimeoutException;
 import kafka.consumer.KafkaStream;
-import kafka.javaapi.consumer.ConsumerConnector;
 import kafka.message.Message;
 import kafka.message.MessageAndMetadata;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.MetricRegistry;
 import com.timgroup.statsd.NonBlockingStatsDClient;
 import org.apache.commons.configuration.ConfigurationException;
 import org.slf4j.LoggerFactory;
@@ -35,213 +37,667 @@ public class App {
 	private static PropertyConfiguration conf;
 	private static ExecutorService pool;
 	private static ScheduledExecutorService scheduler;
+	private static ScheduledExecutorService committer;
 	private static NonBlockingStatsDClient statsd;
+	private static MetricRegistry metrics;
+	private static S3Uploader uploader;
+	private static OpenSinkLimit openSinks;
+	// Shared worker mode: workers give up their thread after each slice.
+	private static boolean sharedWorkers;
+	private static long workerSlice;
+	// Topics being archived, by name. Topics are taken out before they are
+	// stopped, and nothing waits on a topic while holding the lock.
+	private static final Map<String, ArchivedTopic> topics = new HashMap<String, ArchivedTopic>();
+	// The last restart delay of topics that failed, guarded by topics.
+	private static final Map<String, Long> restartDelays = new HashMap<String, Long>();
+	private static boolean shuttingDown;
+
+	private static Runnable doPoolStatusCheck() {
+		return new Runnable() {
+			public void run() {
+				synchronized (topics) {
+					for (ArchivedTopic topic : topics.values()) {
+						for (ArchivingWorker worker : topic.workers) {
+							logger.info(worker.toString());
+						}
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Drains every topic when the JVM is asked to exit: the workers stop
+	 * fetching and upload their open chunks, and each topic whose uploads
+	 * finish within shutdown.timeout.ms commits its offsets before its
+	 * connector is closed. A topic that does not finish in time is not
+	 * committed, so its messages are consumed again after the restart. Uploads
+	 * still running at the deadline are interrupted and their multipart
+	 * uploads aborted. Workers only notice the request between messages, so an idle worker
+	 * takes up to KafkaConsumer.consumerTimeoutMs.
+	 */
+	private static Runnable doShutdown() {
+		return new Runnable() {
+			public void run() {
+				logger.info("Shutting down, uploading open chunks");
+				long deadline = System.currentTimeMillis() + conf.getShutdownTimeout();
+				scheduler.shutdownNow();
+				try {
+					List<ArchivedTopic> stopping;
+					synchronized (topics) {
+						shuttingDown = true;
+						stopping = new ArrayList<ArchivedTopic>(topics.values());
+						topics.clear();
+					}
+					for (ArchivedTopic topic : stopping) {
+						topic.requestStop();
+					}
+					for (ArchivedTopic topic : stopping) {
+						topic.awaitStop(deadline);
+					}
+					uploader.shutdown();
+					if (!uploader.awaitTermination(Math.max(0L, deadline - System.currentTimeMillis()),
+							MILLISECONDS)) {
+						logger.warn("Uploads did not finish in time, giving up on them");
+						uploader.shutdownNow();
+					}
+					committer.shutdown();
+					committer.awaitTermination(Math.max(0L, deadline - System.currentTimeMillis()),
+							MILLISECONDS);
+				} catch (InterruptedException e) {
+					logger.warn("Interrupted while shutting down", e);
+				}
+				logger.info("Shutdown complete");
+			}
+		};
+	}
 
-	private static Runnable doPoolStatusCheck(final List<ArchivingWorker> workers) {
+	private static Runnable doConfigReload() {
 		return new Runnable() {
 			public void run() {
-				for (ArchivingWorker worker : workers) {
-					logger.info(worker.toString());
-					worker.submitStats();
+				try {
+					if (conf.reloadIfModified()) {
+						logger.info("Reloaded configuration");
+						applyTopics();
+					}
+				} catch (Exception e) {
+					logger.warn("Could not reload configuration, keeping the current one", e);
 				}
 			}
 		};
 	}
 
-	public static void main(String[] args) {
+	private static Runnable doRestart() {
+		return new Runnable() {
+			public void run() {
+				try {
+					applyTopics();
+				} catch (Exception e) {
+					logger.warn("Could not restart topics", e);
+				}
+			}
+		};
+	}
+
+	public static void main(String[] args) throws InterruptedException {
 		conf = loadConfiguration(args);
+		for (String topic : conf.getTopicsAndPartitions().keySet()) {
+			checkTopic(topic);
+		}
 
 		statsd = new NonBlockingStatsDClient(
 				conf.getString(PropertyConfiguration.STATSD_PREFIX),
 				conf.getString(PropertyConfiguration.STATSD_HOST),
 				conf.getInt(PropertyConfiguration.STATSD_PORT));
 
-		Map<String, Integer> topics = conf.getTopicsAndPartitions();
-		final List<ArchivingWorker> workers = new LinkedList<ArchivingWorker>();
-		Integer workerCount = 0;
+		metrics = new MetricRegistry();
+		JmxReporter.forRegistry(metrics).inDomain("kafka.s3.consumer").build().start();
+		new StatsdReporter(metrics, statsd).start(conf.getMetricsInterval(), SECONDS);
 
-		for (Map.Entry<String, Integer> entry : topics.entrySet()) {
-			workerCount += entry.getValue();
-		}
-		pool = Executors.newFixedThreadPool(workerCount);
+		pool = createWorkerPool();
 		scheduler = Executors.newScheduledThreadPool(1);
+		committer = Executors.newSingleThreadScheduledExecutor();
 
-		for (Map.Entry<String, Integer> entry : topics.entrySet()) {
-			for (int partition = 0; partition < entry.getValue(); partition++) {
-				workers.add(new ArchivingWorker(entry.getKey(), partition, conf, pool));
+		Spool spool = null;
+		if (conf.getSpoolDir() != null) {
+			spool = new Spool(new File(conf.getSpoolDir()));
+		}
+		ChunkBufferPool buffers = null;
+		if (conf.getMemoryBudget() > 0) {
+			buffers = new ChunkBufferPool(conf.getMemoryBudget(), conf.getMemoryBlockSize());
+		}
+		uploader = new S3Uploader(S3ClientFactory.createClient(conf), conf.getS3UploadThreads(),
+				conf.getS3UploadQueueSize(), spool, buffers);
+		metrics.register("uploader.queue", new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return uploader.getQueueDepth();
 			}
+		});
+		if (buffers != null) {
+			final ChunkBufferPool pool = buffers;
+			metrics.register("buffers.used", new Gauge<Long>() {
+				@Override
+				public Long getValue() {
+					return pool.getUsed();
+				}
+			});
+		}
+		metrics.register("topics.stopped", new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				int stopped = 0;
+				synchronized (topics) {
+					for (String topic : conf.getTopicsAndPartitions().keySet()) {
+						if (!topics.containsKey(topic)) {
+							stopped++;
+						}
+					}
+				}
+				return stopped;
+			}
+		});
+		openSinks = new OpenSinkLimit(conf.getMaxSinksTotal());
+		metrics.register("sinks.open", new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return openSinks.getOpen();
+			}
+		});
+
+		if (spool != null) {
+			spool.recover(uploader.getClient(), uploader);
 		}
 
-		assert (workerCount == workers.size());
 		logger.info("Starting workers to archive into {}/{}",
 				conf.getS3Bucket(), conf.getS3Prefix());
-		for (ArchivingWorker worker : workers) {
-			logger.info(String.format("  %s", worker));
-			pool.execute(worker);
-		}
+		Runtime.getRuntime().addShutdownHook(new Thread(doShutdown(), "shutdown"));
+		applyTopics();
 
 		@SuppressWarnings("unused")
 		ScheduledFuture<?> statsScheduler = scheduler.scheduleWithFixedDelay(
-				doPoolStatusCheck(workers), 0, 30, SECONDS);
+				doPoolStatusCheck(), 0, 30, SECONDS);
+
+		long reloadInterval = conf.getConfigReloadInterval();
+		if (reloadInterval > 0) {
+			scheduler.scheduleWithFixedDelay(doConfigReload(), reloadInterval, reloadInterval,
+					MILLISECONDS);
+		}
 	}
 
-	private static class ArchivingWorker implements Runnable, Observer {
+	/**
+	 * Brings the running topics in line with kafka.topics: new topics are
+	 * started, removed ones stopped, and topics whose partition count or
+	 * fetch size changed are restarted. Every topic has its own connector, so
+	 * the other topics keep consuming and are not rebalanced. Stopped topics
+	 * get shutdown.timeout.ms to drain, like on shutdown. Topics are
+	 * connected outside the lock, which a shutdown needs; a topic that cannot
+	 * be started is logged and tried again later, see
+	 * {@link #scheduleRestart(String, long)}.
+	 */
+	private static void applyTopics() throws InterruptedException {
+		Map<String, Integer> wanted = conf.getTopicsAndPartitions();
+		List<ArchivedTopic> stopping = new ArrayList<ArchivedTopic>();
+		synchronized (topics) {
+			if (shuttingDown) {
+				return;
+			}
+			for (ArchivedTopic running : new ArrayList<ArchivedTopic>(topics.values())) {
+				if (!running.matches(wanted.get(running.topic))) {
+					running.requestStop();
+					topics.remove(running.topic);
+					stopping.add(running);
+				}
+			}
+		}
 
-		private final String topic;
-		private final int partition;
-		private PropertyConfiguration masterConfig;
+		long deadline = System.currentTimeMillis() + conf.getShutdownTimeout();
+		for (ArchivedTopic topic : stopping) {
+			topic.awaitStop(deadline);
+		}
 
-		private ConsumerConnector consumer;
-		private long messageCount = 0;
-		private long totalMessageSize = 0;
-		Map<String, List<KafkaStream<Message>>> consumerMap;
+		for (Map.Entry<String, Integer> entry : wanted.entrySet()) {
+			synchronized (topics) {
+				if (shuttingDown) {
+					return;
+				}
+				if (topics.containsKey(entry.getKey())) {
+					continue;
+				}
+			}
+			ArchivedTopic topic;
+			try {
+				topic = new ArchivedTopic(entry.getKey(), entry.getValue());
+			} catch (RuntimeException e) {
+				logger.error("Could not start topic {}", entry.getKey(), e);
+				scheduleRestart(entry.getKey(), 0L);
+				continue;
+			}
+			boolean started = false;
+			synchronized (topics) {
+				if (!shuttingDown && !topics.containsKey(entry.getKey())) {
+					topic.start();
+					topics.put(entry.getKey(), topic);
+					started = true;
+				}
+			}
+			if (!started) {
+				topic.discard();
+			}
+		}
+	}
+
+	/**
+	 * Starts a stopped topic again after a delay that doubles with every
+	 * failure in a row, up to topic.restart.maxbackoff.ms. A topic that ran
+	 * longer than that before it failed starts over from
+	 * topic.restart.backoff.ms. The restart goes through applyTopics, so a
+	 * topic removed in the meantime stays stopped.
+	 *
+	 * @param ran how long the topic ran before it failed.
+	 */
+	private static void scheduleRestart(String topic, long ran) {
+		long max = conf.getTopicRestartMaxBackoff();
+		long delay;
+		synchronized (topics) {
+			if (shuttingDown) {
+				return;
+			}
+			Long last = restartDelays.get(topic);
+			delay = last == null || ran > max
+					? conf.getTopicRestartBackoff() : Math.min(max, 2 * last);
+			restartDelays.put(topic, delay);
+		}
+		logger.warn("Starting topic {} again in {} ms", topic, delay);
+		try {
+			scheduler.schedule(doRestart(), delay, MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Shutting down.
+		}
+	}
+
+	/**
+	 * Refuses settings a topic cannot keep its promises with. Spooled chunks
+	 * are uploaded again on the next start and their messages are consumed
+	 * again as well, since the offsets cannot be moved past them; only
+	 * deterministic keys make the second copy a no-op. Deterministic keys in
+	 * turn number the messages of a worker's stream, which is only the same
+	 * Kafka partition from run to run if no other consumer can take
+	 * partitions over. Hour markers are written once the workers of this
+	 * process closed an hour, which only covers every partition if this
+	 * process reads all of them. A lease longer than the commit interval is
+	 * only warned about, since it is capped there.
+	 */
+	private static void checkTopic(String topic) {
+		if (conf.getSpoolDir() != null && !conf.isS3MultipartUpload(topic)
+				&& !conf.isDeterministicKeys(topic)) {
+			throw new RuntimeException("Invalid property " + Configuration.PROP_S3_SPOOL_DIR
+					+ ": needs " + Configuration.PROP_S3_KEYS + "=deterministic, topic " + topic
+					+ " would upload recovered chunks twice");
+		}
+		if (conf.isDeterministicKeys(topic) && !conf.isExclusiveConsumer()) {
+			throw new RuntimeException("Invalid property " + Configuration.PROP_S3_KEYS
+					+ ": deterministic keys of topic " + topic + " need "
+					+ Configuration.PROP_KAFKA_EXCLUSIVE + "=true, a rebalance would renumber"
+					+ " its partitions");
+		}
+		if (conf.getWatermarkLateness() >= 0 && !conf.isExclusiveConsumer()) {
+			throw new RuntimeException("Invalid property "
+					+ Configuration.PROP_S3_WATERMARK_LATENESS + ": hour markers of topic " + topic
+					+ " need " + Configuration.PROP_KAFKA_EXCLUSIVE + "=true, other consumers'"
+					+ " partitions would not be waited for");
+		}
+		if (conf.getFileLeaseMax(topic) > conf.getCommitInterval()) {
+			logger.warn("{} of topic {} is above {}, checkpoints cut chunks first; the lease"
+					+ " stays within {} ms", Configuration.PROP_S3_FILE_LEASE_MAX, topic,
+					Configuration.PROP_KAFKA_COMMIT_INTERVAL, conf.getCommitInterval());
+		}
+	}
+
+	/**
+	 * "thread" gives each worker a platform thread, "virtual" a virtual
+	 * thread where the JVM has them, and "shared" runs all workers in turns
+	 * on worker.threads threads. In every mode a worker gives up its thread
+	 * while it is paused at a checkpoint.
+	 */
+	private static ExecutorService createWorkerPool() {
+		String mode = conf.getWorkerMode();
+		if (Configuration.WORKER_MODE_VIRTUAL.equals(mode)) {
+			try {
+				// Looked up at runtime: the build targets Java 8, virtual threads
+				// only exist when running on Java 21 or later.
+				ExecutorService executor = (ExecutorService) Executors.class
+						.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+				logger.info("Running workers on virtual threads");
+				return executor;
+			} catch (Exception e) {
+				logger.warn("Virtual threads need Java 21, using a thread per worker", e);
+			}
+		} else if (Configuration.WORKER_MODE_SHARED.equals(mode)) {
+			sharedWorkers = true;
+			workerSlice = conf.getWorkerSlice();
+			logger.info("Running workers on {} shared threads", conf.getWorkerThreads());
+			return Executors.newFixedThreadPool(conf.getWorkerThreads());
+		}
+		// Grows as topics are added; threads of stopped workers are reused.
+		return Executors.newCachedThreadPool();
+	}
 
-		private ArchivingWorker(String topic, int partition,
-				PropertyConfiguration masterConfig, ExecutorService pool) {
+	/**
+	 * The connector, offset tracker and workers of one topic.
+	 */
+	private static class ArchivedTopic {
+		private final String topic;
+		private final int partitions;
+		private final String fetchSize;
+		private final TopicConsumer consumer;
+		private final OffsetTracker offsets;
+		private final HourMarkers markers;
+		private final List<ArchivingWorker> workers = new ArrayList<ArchivingWorker>();
+		private long started;
+
+		private ArchivedTopic(String topic, int partitions) {
 			this.topic = topic;
-			this.partition = partition;
-			this.masterConfig = masterConfig;
+			this.partitions = partitions;
+			this.fetchSize = conf.getFetchSize(topic);
+			checkTopic(topic);
+			consumer = new TopicConsumer(topic, partitions, conf);
+			offsets = new OffsetTracker(consumer, partitions, committer, conf, metrics);
+			markers = conf.getWatermarkLateness() >= 0
+					? new HourMarkers(topic, partitions, conf, uploader.getClient()) : null;
+			for (int partition = 0; partition < partitions; partition++) {
+				workers.add(new ArchivingWorker(this, consumer, offsets, markers, partition));
+			}
+		}
 
-			boolean connected = false;
+		private void start() {
+			started = System.currentTimeMillis();
+			for (ArchivingWorker worker : workers) {
+				logger.info(String.format("  %s", worker));
+				pool.execute(worker);
+			}
+			offsets.start();
+		}
 
-			for (int retryCount = 1; retryCount <= 3; retryCount++) {
-				try {
-					consumer = kafka.consumer.Consumer
-							.createJavaConsumerConnector(createConsumerConfig(topic,
-									masterConfig));
+		/**
+		 * Closes a topic that was never started, e.g. because the process
+		 * began to shut down while it connected.
+		 */
+		private void discard() throws InterruptedException {
+			logger.info("Not starting topic {}", topic);
+			for (ArchivingWorker worker : workers) {
+				worker.sinkMetrics.close();
+			}
+			if (markers != null) {
+				markers.stop(System.currentTimeMillis());
+			}
+			consumer.shutdown();
+		}
 
-					connected = true;
-					break;
-				} catch (Exception e) {
-					logger.warn("Could not create Kafka consumer. Retrying in 3s. (retry #{})", retryCount, e);
+		/**
+		 * @return whether the topic still runs as configured with
+		 *         {@code partitions}, null if it was removed.
+		 */
+		private boolean matches(Integer partitions) {
+			if (partitions == null || partitions != this.partitions) {
+				return false;
+			}
+			String size = conf.getFetchSize(topic);
+			return size == null ? fetchSize == null : size.equals(fetchSize);
+		}
+
+		/**
+		 * Stops the topic after one of its workers failed. The other workers
+		 * drain, but the offsets are not committed, and the rest of the
+		 * process keeps running. Once the connector is closed, so that the
+		 * new one cannot set off a rebalance that commits the old position,
+		 * the topic is started again with a backoff.
+		 */
+		private void failed() {
+			synchronized (topics) {
+				if (topics.get(topic) != this) {
+					// Already being stopped.
+					return;
+				}
+				topics.remove(topic);
+			}
+			requestStop();
+			// Not on the failed worker's thread, which belongs to the pool.
+			Thread stopper = new Thread(new Runnable() {
+				@Override
+				public void run() {
 					try {
-						Thread.sleep(3000);
-					} catch (InterruptedException ie) {
-						logger.warn("InterruptedException caught.", ie);
+						awaitStop(System.currentTimeMillis() + conf.getShutdownTimeout());
+					} catch (InterruptedException e) {
+						logger.warn("Interrupted while stopping topic {}", topic, e);
 					}
+					logger.error("Stopped topic {} after a worker failed", topic);
+					scheduleRestart(topic, System.currentTimeMillis() - started);
 				}
+			}, "stop-" + topic);
+			stopper.start();
+		}
+
+		private void requestStop() {
+			logger.info("Stopping workers of topic {}", topic);
+			for (ArchivingWorker worker : workers) {
+				worker.stop();
 			}
+			// Workers paused at a checkpoint go on to drain.
+			offsets.stop();
+		}
 
-			if (!connected) {
-				logger.error("Could not connnect to Kafka after 3 retries.  Exiting.");
-				System.exit(1);
+		/**
+		 * Waits for the workers to upload their open chunks, commits the
+		 * offsets if all of them did so by {@code deadline} and closes the
+		 * connector.
+		 *
+		 * @return whether the offsets were committed.
+		 */
+		private boolean awaitStop(long deadline) throws InterruptedException {
+			boolean drained = true;
+			for (ArchivingWorker worker : workers) {
+				drained &= worker.awaitStopped(deadline);
 			}
+			if (drained) {
+				drained = offsets.commit();
+				if (drained) {
+					for (ArchivingWorker worker : workers) {
+						worker.committed();
+					}
+				}
+			} else {
+				logger.warn("Not all chunks of topic {} were uploaded, not committing", topic);
+			}
+			if (markers != null) {
+				markers.stop(deadline);
+			}
+			consumer.shutdown();
+			return drained;
 		}
+	}
 
-		private static ConsumerConfig createConsumerConfig(String topic, PropertyConfiguration conf) {
-			Properties props = new Properties();
-			String fetchSize;
+	private static class ArchivingWorker implements Runnable, OffsetTracker.Worker {
 
-			props.put("autocommit.enable", "false");
+		private final String topic;
+		private final int partition;
 
-			logger.debug("Zookeeper connect string {}",
-					conf.getString(PropertyConfiguration.ZK_CONNECT_STRING));
-			props.put("zk.connect",
-					conf.getString(PropertyConfiguration.ZK_CONNECT_STRING));
-			props.put("groupid",
-					conf.getString(PropertyConfiguration.CONSUMER_GROUP_ID));
-			props.put("consumer.timeout.ms",
-					conf.getString(PropertyConfiguration.CONSUMER_TIMEOUT_MS));
-      logger.debug("Consumer timeout {}", conf.getString(PropertyConfiguration.CONSUMER_TIMEOUT_MS));
-      ConsumerConfig c = new ConsumerConfig(props);
-      logger.debug("Config {}", c);
-			props.put("zk.sessiontimeout.ms",
-					conf.getString(PropertyConfiguration.ZK_SESSION_TIMEOUT));
-			props.put("zk.synctime.ms", conf.getString("zk.synctime.ms"));
+		private final ArchivedTopic owner;
+		private final OffsetTracker offsets;
+		private final HourMarkers markers;
+		private final KafkaStream<Message> stream;
+		private final SinkMetrics sinkMetrics;
+		private long messageCount = 0;
+		private long totalMessageSize = 0;
 
-			fetchSize = conf.getString(PropertyConfiguration.DEFAULT_FETCH_SIZE
-					+ "." + topic,
-					conf.getString(PropertyConfiguration.DEFAULT_FETCH_SIZE));
-			logger.info("Fetch size for topic {} set to {}", topic, fetchSize);
-			props.put("fetch.size", fetchSize);
+		// Created by the first run, so they live on the worker pool.
+		private Sink sink;
+		private ConsumerIterator<Message> it;
 
-			props.put("socket.buffersize",
-					conf.getString(PropertyConfiguration.SOCKET_BUFFER_SIZE));
+		private volatile boolean stopping;
+		private volatile boolean failed;
+		// Set when the checkpoint the worker paused at was committed.
+		private boolean checkpointed;
+		private final CountDownLatch stopped = new CountDownLatch(1);
 
-			return new ConsumerConfig(props);
+		private ArchivingWorker(ArchivedTopic owner, TopicConsumer consumer, OffsetTracker offsets,
+				HourMarkers markers, int partition) {
+			this.owner = owner;
+			this.topic = consumer.getTopic();
+			this.partition = partition;
+			this.offsets = offsets;
+			this.markers = markers;
+			this.stream = consumer.getStream(partition);
+			this.sinkMetrics = new SinkMetrics(metrics, topic, partition);
 		}
 
 		@Override
 		public void run() {
-			logger.warn("RUN'ning offload thread");
-			Sink sink;
-			long lastMessageCount = 0;
-			long lastUploadsCount = 0;
-			long lastStatsdCall = System.currentTimeMillis();
-
 			try {
-				sink = new MultiS3JsonFileSink(topic, partition, conf);
-				sink.addObserver(this);
-				Map<String, Integer> topicCountMap = new HashMap<String, Integer>();
-				topicCountMap.put(topic, 1);
-
-				consumerMap = consumer.createMessageStreams(topicCountMap);
-
-				if (consumerMap.containsKey(topic) && consumerMap.get(topic).size() > 0) {
-
-					KafkaStream<Message> stream = consumerMap.get(topic).get(0);
-					ConsumerIterator<Message> it = stream.iterator();
-
-					while (true) {
-            try {
-              MessageAndMetadata<Message> msgAndMetadata = it.next();
-              totalMessageSize += sink.append(msgAndMetadata);
-              messageCount += 1;
-            } catch (ConsumerTimeoutException e) {}
-
-            sink.checkFileLease();
-
-						if (System.currentTimeMillis() - lastStatsdCall > 1000) {
-							long messageCountDelta = messageCount - lastMessageCount;
-							long uploadsCountDelta = sink.getUploads() - lastUploadsCount;
-							lastStatsdCall = System.currentTimeMillis();
-
-							if (messageCountDelta > 0) {
-								lastMessageCount = messageCount;
-								statsd.count("append", (int) messageCountDelta);
-							}
+				if (sink == null) {
+					logger.warn("RUN'ning offload thread");
+					MultiS3JsonFileSink partitionSink = new MultiS3JsonFileSink(topic, partition, conf,
+							uploader, openSinks, sinkMetrics, markers);
+					MessageTransform transform = MessageTransform.create(topic, conf);
+					if (transform != null) {
+						sink = new TransformingSink(topic, partition, conf, openSinks, transform,
+								partitionSink);
+					} else {
+						sink = partitionSink;
+					}
+					it = stream.iterator();
+				}
+				if (checkpointed) {
+					checkpointed = false;
+					sink.committed();
+				}
 
-							if (uploadsCountDelta > 0) {
-								lastUploadsCount = sink.getUploads();
-								statsd.count("uploads", (int) uploadsCountDelta);
-							}
+				// In shared mode, run for one slice and then queue up behind the other
+				// workers. An idle stream gives way as soon as the consumer times
+				// out, which is at most one slice there.
+				long sliceEnd = sharedWorkers
+						? System.currentTimeMillis() + workerSlice : Long.MAX_VALUE;
+				while (!stopping) {
+					if (offsets.isRequested() && pause()) {
+						return;
+					}
+					boolean consumed = step();
+					if ((!consumed && sharedWorkers) || System.currentTimeMillis() >= sliceEnd) {
+						if (!stopping) {
+							pool.execute(this);
+							return;
 						}
 					}
+				}
 
-        }
+				logger.info("Uploading open chunks of {} partition {}", topic, partition);
+				sink.flush();
+				sink.awaitUploads();
+				sink.close();
+				sinkMetrics.close();
+				stopped.countDown();
 			} catch (Exception e) {
 				// XXX: Ideally we could respawn this thread to try to recover,
 				// however a bug in Kafka (KAFKA-919) means we could potentially lose
 				// data by doing this because the rebalancing code will cause the
 				// offsets to get committed without any regard to `autocommit.enable`.
-				logger.warn("Critical error in Archiving worker for topic {}. Exiting.", topic, e);
-				System.exit(1);
+				// So the whole topic is stopped instead, without a commit.
+				logger.error("Critical error in Archiving worker for topic {}, stopping the topic",
+						topic, e);
+				sinkMetrics.close();
+				failed = true;
+				stopped.countDown();
+				owner.failed();
 			}
 		}
 
-		@Override
-		public String toString() {
-			return String
-					.format("ArchivingWorker(topic=%s,partition=%d,messageCount=%d,totalMessageSize=%d)",
-							topic, partition, messageCount, totalMessageSize);
+		/**
+		 * @return false if the consumer timed out without a message.
+		 */
+		private boolean step() throws IOException {
+			boolean consumed = false;
+			try {
+				long start = sinkMetrics.startFetch();
+				MessageAndMetadata<Message> msgAndMetadata = it.next();
+				start = sinkMetrics.fetched(start);
+				long size = sink.append(msgAndMetadata);
+				sinkMetrics.appended(start, size);
+				totalMessageSize += size;
+				messageCount += 1;
+				consumed = true;
+			} catch (ConsumerTimeoutException e) {}
+
+			sink.checkFileLease();
+			return consumed;
 		}
 
-		public void submitStats() {
-			// TODO: replace with your stats submission code
+		/**
+		 * Uploads the open chunks for a checkpoint and, if it still runs,
+		 * gives up the thread until the offsets are committed.
+		 *
+		 * @return whether the worker paused.
+		 */
+		private boolean pause() throws InterruptedException {
+			sink.flush();
+			// A worker that had nothing to cut and nothing uploading goes
+			// straight to the barrier.
+			if (sink.getPendingUploads() > 0) {
+				sink.awaitUploads();
+			}
+			return offsets.ready(this);
 		}
 
+		/**
+		 * Runs the worker again after a checkpoint. Nothing may be touched
+		 * after {@link OffsetTracker#ready}, so this only queues it.
+		 */
 		@Override
-		public void update(Observable obs, Object arg) {
-			if (consumerMap != null) {
-				logger.info("Commiting offsets to zookeeper");
-				consumer.commitOffsets();
-			} else {
-				logger.warn("Update called before queue connection fully initialized");
+		public void resume(boolean committed) {
+			checkpointed = committed;
+			pool.execute(this);
+		}
+
+		/**
+		 * Tells the sink that the offsets were committed after the worker
+		 * stopped.
+		 */
+		private void committed() {
+			if (sink == null) {
+				return;
 			}
+			try {
+				sink.committed();
+			} catch (IOException e) {
+				logger.warn("Could not record the commit of {} partition {}", topic, partition, e);
+			}
+		}
+
+		/**
+		 * Makes the worker upload its open chunks and exit after the current
+		 * message, or once the consumer times out.
+		 */
+		private void stop() {
+			stopping = true;
+		}
+
+		/**
+		 * @return whether the worker stopped by {@code deadline} with all its
+		 *         chunks uploaded.
+		 */
+		private boolean awaitStopped(long deadline) throws InterruptedException {
+			long timeout = deadline - System.currentTimeMillis();
+			return stopped.await(Math.max(0L, timeout), MILLISECONDS) && !failed;
+		}
+
+		@Override
+		public String toString() {
+			return String
+					.format("ArchivingWorker(topic=%s,partition=%d,messageCount=%d,totalMessageSize=%d)",
+							topic, partition, messageCount, totalMessageSize);
 		}
 	}
 
-	private static PropertyConfiguration loadConfiguration(String[] args) {
+	static PropertyConfiguration loadConfiguration(String[] args) {
 		URL propsURL;
 		try {
 			if (args == null || args.length != 1) {
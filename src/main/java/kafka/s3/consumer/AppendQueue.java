@@ -0,0 +1,170 @@
+package kafka.s3.consumer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends the messages of one hourly sink on a shared pool, so the hours of
+ * a partition are compressed in parallel and the partition's worker only
+ * routes messages to them.
+ *
+ * Messages are appended in the order they were queued, by at most one task
+ * at a time, which gives way to the other hours after a batch. The worker
+ * blocks while {@code s3.parallel.hours.queue} messages of the hour are
+ * waiting. Everything else the sink does (leases, flushes) first waits for
+ * the queue to drain, see {@link #sync()}, and stays on the worker.
+ */
+class AppendQueue implements Runnable {
+	private static final org.slf4j.Logger logger = LoggerFactory.getLogger(App.class);
+
+	private static final int BATCH = 256;
+
+	// Shared by every hourly sink in the process, created on first use.
+	private static ExecutorService appendPool;
+
+	private final S3JsonFileSink sink;
+	private final Executor executor;
+	// A ring of the queued payloads and their message numbers.
+	private final ByteBuffer[] buffers;
+	private final long[] numbers;
+	private int head;
+	private int size;
+	private boolean scheduled;
+	private boolean waiting;
+	private Throwable failure;
+
+	public AppendQueue(S3JsonFileSink sink, Executor executor, int capacity) {
+		this.sink = sink;
+		this.executor = executor;
+		this.buffers = new ByteBuffer[capacity];
+		this.numbers = new long[capacity];
+	}
+
+	static synchronized ExecutorService getPool(int threads) {
+		if (appendPool == null) {
+			appendPool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "hour-appender-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return appendPool;
+	}
+
+	/**
+	 * Queues a payload positioned past its timestamp, with its message
+	 * number. It must not change afterwards.
+	 */
+	public synchronized void add(ByteBuffer buffer, long number) throws IOException {
+		while (failure == null && size == buffers.length) {
+			waiting = true;
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while queueing for "
+						+ sink.getPartitionDate());
+			}
+		}
+		checkFailure();
+
+		int tail = (head + size) % buffers.length;
+		buffers[tail] = buffer;
+		numbers[tail] = number;
+		size++;
+		if (!scheduled) {
+			scheduled = true;
+			executor.execute(this);
+		}
+	}
+
+	/**
+	 * Waits until every queued message has been appended.
+	 */
+	public synchronized void sync() {
+		boolean interrupted = false;
+		while (failure == null && scheduled) {
+			waiting = true;
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (failure != null) {
+			throw new RuntimeException("Appending to " + sink.getPartitionDate() + " failed", failure);
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		if (failure instanceof IOException) {
+			throw (IOException) failure;
+		} else if (failure != null) {
+			throw new RuntimeException("Appending to " + sink.getPartitionDate() + " failed", failure);
+		}
+	}
+
+	@Override
+	public void run() {
+		for (int i = 0; i < BATCH; i++) {
+			ByteBuffer buffer;
+			long number;
+			synchronized (this) {
+				if (size == 0) {
+					scheduled = false;
+					wake();
+					return;
+				}
+				buffer = buffers[head];
+				number = numbers[head];
+				buffers[head] = null;
+				head = (head + 1) % buffers.length;
+				size--;
+				wake();
+			}
+
+			try {
+				sink.appendNow(buffer, number);
+			} catch (Throwable t) {
+				logger.error("Could not append to sink for partition: {}", sink.getPartitionDate(), t);
+				synchronized (this) {
+					failure = t;
+					for (int j = 0; j < buffers.length; j++) {
+						buffers[j] = null;
+					}
+					size = 0;
+					scheduled = false;
+					wake();
+				}
+				return;
+			}
+		}
+		// Give way to the other hours.
+		executor.execute(this);
+	}
+
+	private void wake() {
+		if (waiting) {
+			waiting = false;
+			notifyAll();
+		}
+	}
+}
+
+// vim: noet:ts=2:sw=2
@@ -0,0 +1,40 @@
+package kafka.s3.consumer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Destination for the compressed bytes of a single S3 object.
+ */
+interface Chunk {
+	public OutputStream getStream();
+
+	/**
+	 * @return the key this chunk is bound to, or null if the key is chosen
+	 *         when the chunk is committed.
+	 */
+	public String getKey();
+
+	/**
+	 * @return the number of bytes written to the chunk's stream so far.
+	 */
+	public long getSize();
+
+	/**
+	 * Finishes the chunk after its stream has been closed.
+	 *
+	 * @param lastSequence {@link MessageSequence} number of the chunk's last
+	 *        message.
+	 * @return the task that makes the chunk durable in S3 under {@code key};
+	 *         it runs on an uploader thread.
+	 */
+	public Runnable commit(String key, long lastSequence) throws IOException;
+
+	/**
+	 * Drops the chunk without uploading it. May also be called instead of
+	 * running the task returned by {@link #commit(String, long)}.
+	 */
+	public void discard();
+}
+
+// vim: noet:ts=2:sw=2
@@ -0,0 +1,53 @@
+package kafka.s3.consumer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Process-wide memory budget for chunks held in memory.
+ *
+ * Memory is handed out in fixed-size direct blocks, so chunk data stays off
+ * the Java heap. Released blocks are kept for reuse; once the budget has
+ * been allocated the pool does not allocate again. {@link #acquire()}
+ * returns null when every block is in use, and the caller spills to disk.
+ */
+class ChunkBufferPool {
+	private final int blockSize;
+	private final long maxBlocks;
+	private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+	private long allocated;
+
+	public ChunkBufferPool(long budget, int blockSize) {
+		this.blockSize = blockSize;
+		this.maxBlocks = budget / blockSize;
+	}
+
+	/**
+	 * @return an empty block, or null if the budget is used up.
+	 */
+	public synchronized ByteBuffer acquire() {
+		ByteBuffer block = free.poll();
+		if (block != null) {
+			return block;
+		}
+		if (allocated < maxBlocks) {
+			allocated++;
+			return ByteBuffer.allocateDirect(blockSize);
+		}
+		return null;
+	}
+
+	public synchronized void release(ByteBuffer block) {
+		block.clear();
+		free.push(block);
+	}
+
+	/**
+	 * @return bytes currently held by chunks.
+	 */
+	public synchronized long getUsed() {
+		return (allocated - free.size()) * blockSize;
+	}
+}
+
+// vim: noet:ts=2:sw=2
@@ -0,0 +1,69 @@
+package kafka.s3.consumer;
+
+import java.io.IOException;
+
+import org.apache.parquet.io.OutputFile;
+import org.apache.parquet.io.PositionOutputStream;
+
+/**
+ * Lets a Parquet writer write straight into a {@link Chunk}, so columnar
+ * files go through the same temp file or multipart paths as JSON chunks.
+ */
+class ChunkOutputFile implements OutputFile {
+	private final Chunk chunk;
+
+	public ChunkOutputFile(Chunk chunk) {
+		this.chunk = chunk;
+	}
+
+	@Override
+	public PositionOutputStream create(long blockSizeHint) throws IOException {
+		return new PositionOutputStream() {
+			private long pos;
+
+			@Override
+			public long getPos() {
+				return pos;
+			}
+
+			@Override
+			public void write(int b) throws IOException {
+				chunk.getStream().write(b);
+				pos++;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				chunk.getStream().write(b, off, len);
+				pos += len;
+			}
+
+			@Override
+			public void flush() throws IOException {
+				chunk.getStream().flush();
+			}
+
+			@Override
+			public void close() throws IOException {
+				chunk.getStream().close();
+			}
+		};
+	}
+
+	@Override
+	public PositionOutputStream createOrOverwrite(long blockSizeHint) throws IOException {
+		return create(blockSizeHint);
+	}
+
+	@Override
+	public boolean supportsBlockSize() {
+		return false;
+	}
+
+	@Override
+	public long defaultBlockSize() {
+		return 0;
+	}
+}
+
+// vim: noet:ts=2:sw=2
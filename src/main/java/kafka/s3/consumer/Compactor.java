@@ -0,0 +1,352 @@
+package kafka.s3.consumer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Merges the small objects of closed hours into large ones.
+ *
+ * Runs from the same jar and properties as {@link App}:
+ *
+ *     java -cp kafka-s3-consumer.jar kafka.s3.consumer.Compactor <props>
+ *
+ * For every topic partition and every hour that ended at least
+ * {@code s3.compact.delay.ms} ago, within the last {@code s3.compact.hours}
+ * hours, the objects are merged in the order of their message numbers into
+ * objects of up to the topic's object size. Gzip members and zstd frames may be concatenated,
+ * so merging is a byte copy without recompression; other codecs are left
+ * alone.
+ *
+ * Each merge is recorded in a manifest in {@code _compaction/} next to
+ * the partition's keys before anything is written. The manifest is
+ * marked done once the merged object is in S3, and the sources are deleted
+ * after that. An interrupted merge is finished or rolled back on the next
+ * run, so data is never both in a merged object and in its sources.
+ *
+ * Merged objects are named {@code <prefix>-merged-<first>-<last>-<id>.<ext>}
+ * and are not merged again. Before a source is deleted an empty tombstone
+ * is left in {@code _compaction/}, see {@link #getTombstoneKey(String)}, so
+ * a consumer replaying the source's messages with deterministic keys does
+ * not upload them a second time.
+ */
+public class Compactor {
+	private static final org.slf4j.Logger logger = LoggerFactory.getLogger(App.class);
+
+	private static final long HOUR_MILLIS = 3600L * 1000;
+	private static final String MANIFEST_DIR = "_compaction";
+	private static final String MANIFEST_SUFFIX = ".manifest";
+	private static final String TOMBSTONE_SUFFIX = ".merged";
+	private static final String MERGED = "merged-";
+	private static final String STATE_PENDING = "PENDING";
+	private static final String STATE_DONE = "DONE";
+
+	// Formats whose streams may be concatenated.
+	private static final String[] CONCATENABLE = { ".gz", ".zst" };
+
+	private final PropertyConfiguration conf;
+	private final S3Uploader uploader;
+	private final AmazonS3 s3;
+	private final DateFormat dateFormat;
+
+	public Compactor(PropertyConfiguration conf, S3Uploader uploader) {
+		this.conf = conf;
+		this.uploader = uploader;
+		this.s3 = uploader.getClient();
+		this.dateFormat = conf.getS3TimePartitionDateFormat();
+	}
+
+	/**
+	 * @return the key of the tombstone a merge leaves for a source key: the
+	 *         key's name in {@code _compaction/} next to it.
+	 */
+	static String getTombstoneKey(String key) {
+		int slash = key.lastIndexOf('/');
+		return key.substring(0, slash + 1) + MANIFEST_DIR + "/" + key.substring(slash + 1)
+				+ TOMBSTONE_SUFFIX;
+	}
+
+	public static void main(String[] args) throws Exception {
+		PropertyConfiguration conf = App.loadConfiguration(args);
+		S3Uploader uploader = new S3Uploader(S3ClientFactory.createClient(conf),
+				conf.getS3UploadThreads(), conf.getS3UploadQueueSize(), null, null);
+		Compactor compactor = new Compactor(conf, uploader);
+
+		long interval = conf.getCompactInterval();
+		while (true) {
+			compactor.run(System.currentTimeMillis());
+			if (interval <= 0) {
+				break;
+			}
+			Thread.sleep(interval);
+		}
+
+		uploader.shutdown();
+		uploader.awaitTermination(1, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Compacts every closed hour of the lookback window.
+	 */
+	public void run(long now) throws IOException {
+		long lastHour = (now - conf.getCompactDelay()) / HOUR_MILLIS - 1;
+		long firstHour = lastHour - conf.getCompactHours() + 1;
+
+		for (Map.Entry<String, Integer> entry : conf.getTopicsAndPartitions().entrySet()) {
+			String topic = entry.getKey();
+			long maxSize = conf.getMaxObjectSize(topic);
+			String bucket = conf.getS3Bucket(topic);
+			KeyLayout layout = new KeyLayout(topic, conf);
+			for (long hour = firstHour; hour <= lastHour; hour++) {
+				for (int partition = 0; partition < entry.getValue(); partition++) {
+					compact(bucket, layout.getKeyPrefix(partition,
+							dateFormat.format(new Date(hour * HOUR_MILLIS))), maxSize);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param partitionPrefix the {@link KeyLayout} prefix of one partition
+	 *        hour. Manifests go to {@code _compaction/} next to its keys.
+	 */
+	void compact(String bucket, String partitionPrefix, long maxSize) throws IOException {
+		String keyPrefix = partitionPrefix + "-";
+		int slash = partitionPrefix.lastIndexOf('/');
+		String manifestPrefix = partitionPrefix.substring(0, slash + 1) + MANIFEST_DIR + "/"
+				+ partitionPrefix.substring(slash + 1) + "-";
+
+		for (S3ObjectSummary manifest : list(bucket, manifestPrefix)) {
+			recover(bucket, manifest.getKey());
+		}
+
+		Map<String, List<S3ObjectSummary>> byFormat = new HashMap<String, List<S3ObjectSummary>>();
+		for (S3ObjectSummary object : list(bucket, keyPrefix)) {
+			String extension = getConcatenableExtension(object.getKey());
+			if (extension == null || object.getKey().startsWith(keyPrefix + MERGED)) {
+				continue;
+			}
+			List<S3ObjectSummary> objects = byFormat.get(extension);
+			if (objects == null) {
+				objects = new ArrayList<S3ObjectSummary>();
+				byFormat.put(extension, objects);
+			}
+			objects.add(object);
+		}
+
+		for (Map.Entry<String, List<S3ObjectSummary>> entry : byFormat.entrySet()) {
+			List<S3ObjectSummary> objects = entry.getValue();
+			Collections.sort(objects, new SequenceOrder(keyPrefix.length()));
+
+			List<S3ObjectSummary> batch = new ArrayList<S3ObjectSummary>();
+			long batchSize = 0;
+			for (S3ObjectSummary object : objects) {
+				if (!batch.isEmpty() && batchSize + object.getSize() > maxSize) {
+					merge(bucket, batch, keyPrefix, manifestPrefix, entry.getKey());
+					batch.clear();
+					batchSize = 0;
+				}
+				batch.add(object);
+				batchSize += object.getSize();
+			}
+			merge(bucket, batch, keyPrefix, manifestPrefix, entry.getKey());
+		}
+	}
+
+	private void merge(String bucket, List<S3ObjectSummary> sources, String keyPrefix,
+			String manifestPrefix, String extension) throws IOException {
+		if (sources.size() < 2) {
+			return;
+		}
+
+		String first = sources.get(0).getKey().substring(keyPrefix.length());
+		String last = sources.get(sources.size() - 1).getKey().substring(keyPrefix.length());
+		String id = UUID.randomUUID().toString();
+		String target = String.format("%s%s%s-%s-%s%s", keyPrefix, MERGED, getFirstSequence(first),
+				getLastSequence(last), id, extension);
+		String manifestKey = manifestPrefix + id + MANIFEST_SUFFIX;
+
+		Properties manifest = new Properties();
+		manifest.setProperty("target", target);
+		manifest.setProperty("sources", Integer.toString(sources.size()));
+		for (int i = 0; i < sources.size(); i++) {
+			manifest.setProperty("source." + i, sources.get(i).getKey());
+		}
+		manifest.setProperty("state", STATE_PENDING);
+		writeManifest(bucket, manifestKey, manifest);
+
+		logger.info("Merging {} objects into {}", sources.size(), target);
+		MultipartChunk chunk = new MultipartChunk(uploader, s3, bucket, target, conf.getS3PartSize());
+		byte[] buffer = new byte[64 * 1024];
+		try {
+			for (S3ObjectSummary source : sources) {
+				S3Object object = s3.getObject(bucket, source.getKey());
+				InputStream in = object.getObjectContent();
+				try {
+					int n;
+					while ((n = in.read(buffer)) != -1) {
+						chunk.write(buffer, 0, n);
+					}
+				} finally {
+					in.close();
+				}
+			}
+			chunk.commit(target, 0).run();
+		} catch (IOException e) {
+			chunk.discard();
+			s3.deleteObject(bucket, manifestKey);
+			throw e;
+		} catch (RuntimeException e) {
+			chunk.discard();
+			s3.deleteObject(bucket, manifestKey);
+			throw e;
+		}
+
+		manifest.setProperty("state", STATE_DONE);
+		writeManifest(bucket, manifestKey, manifest);
+		deleteSources(bucket, manifest);
+	}
+
+	/**
+	 * Finishes a merge whose merged object made it to S3 and forgets one
+	 * that did not.
+	 */
+	private void recover(String bucket, String manifestKey) throws IOException {
+		if (!manifestKey.endsWith(MANIFEST_SUFFIX)) {
+			return;
+		}
+		Properties manifest = readManifest(bucket, manifestKey);
+		if (STATE_PENDING.equals(manifest.getProperty("state"))) {
+			if (s3.doesObjectExist(bucket, manifest.getProperty("target"))) {
+				logger.info("Finishing interrupted merge into {}", manifest.getProperty("target"));
+				manifest.setProperty("state", STATE_DONE);
+				writeManifest(bucket, manifestKey, manifest);
+			} else {
+				logger.info("Dropping interrupted merge into {}", manifest.getProperty("target"));
+				s3.deleteObject(bucket, manifestKey);
+				return;
+			}
+		}
+		deleteSources(bucket, manifest);
+	}
+
+	private void deleteSources(String bucket, Properties manifest) {
+		int count = Integer.parseInt(manifest.getProperty("sources"));
+		ObjectMetadata empty = new ObjectMetadata();
+		empty.setContentLength(0);
+		for (int i = 0; i < count; i++) {
+			String key = manifest.getProperty("source." + i);
+			if (s3.doesObjectExist(bucket, key)) {
+				s3.putObject(bucket, getTombstoneKey(key), new ByteArrayInputStream(new byte[0]), empty);
+				s3.deleteObject(bucket, key);
+			}
+		}
+	}
+
+	private void writeManifest(String bucket, String key, Properties manifest) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		manifest.store(out, null);
+		byte[] bytes = out.toByteArray();
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(bytes.length);
+		s3.putObject(bucket, key, new ByteArrayInputStream(bytes), metadata);
+	}
+
+	private Properties readManifest(String bucket, String key) throws IOException {
+		Properties manifest = new Properties();
+		InputStream in = s3.getObject(bucket, key).getObjectContent();
+		try {
+			manifest.load(in);
+		} finally {
+			in.close();
+		}
+		return manifest;
+	}
+
+	private List<S3ObjectSummary> list(String bucket, String prefix) {
+		List<S3ObjectSummary> objects = new ArrayList<S3ObjectSummary>();
+		ObjectListing listing = s3.listObjects(new ListObjectsRequest()
+				.withBucketName(bucket).withPrefix(prefix));
+		while (true) {
+			objects.addAll(listing.getObjectSummaries());
+			if (!listing.isTruncated()) {
+				return objects;
+			}
+			listing = s3.listNextBatchOfObjects(listing);
+		}
+	}
+
+	private static String getConcatenableExtension(String key) {
+		for (String extension : CONCATENABLE) {
+			if (key.endsWith(extension)) {
+				return extension;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param name a key without its prefix: {@code first-last-id.ext}, or
+	 *        {@code first-id.ext} for multipart keys. The id is a UUID, or a
+	 *        digest without dashes for deterministic keys.
+	 */
+	private static long getFirstSequence(String name) {
+		try {
+			return Long.parseLong(name.substring(0, name.indexOf('-')));
+		} catch (RuntimeException e) {
+			return -1L;
+		}
+	}
+
+	private static String getLastSequence(String name) {
+		String[] fields = name.split("-");
+		// first-last-digest or first-last-uuid; first-uuid has no last number.
+		if ((fields.length == 3 || fields.length == 7) && fields[1].matches("[0-9]+")) {
+			return fields[1];
+		}
+		return fields[0];
+	}
+
+	private static class SequenceOrder implements Comparator<S3ObjectSummary> {
+		private final int prefixLength;
+
+		private SequenceOrder(int prefixLength) {
+			this.prefixLength = prefixLength;
+		}
+
+		@Override
+		public int compare(S3ObjectSummary a, S3ObjectSummary b) {
+			String x = a.getKey().substring(prefixLength);
+			String y = b.getKey().substring(prefixLength);
+			long firstX = getFirstSequence(x);
+			long firstY = getFirstSequence(y);
+			if (firstX != firstY) {
+				return firstX < firstY ? -1 : 1;
+			}
+			return x.compareTo(y);
+		}
+	}
+}
+
+// vim: noet:ts=2:sw=2
@@ -10,6 +10,7 @@ interface Configuration {
 	public static final String ZK_SESSION_TIMEOUT = "zk.sessiontimeout.ms";
 	public static final String CONSUMER_GROUP_ID = "KafkaConsumer.groupId";
 	public static final String CONSUMER_TIMEOUT_MS = "KafkaConsumer.consumerTimeoutMs";
+	public static final long DEFAULT_CONSUMER_TIMEOUT_MS = 1000L;
 
 	public static final String DEFAULT_FETCH_SIZE = "fetch.size";
 	public static final String SOCKET_BUFFER_SIZE = "socket.buffersize";
@@ -21,12 +22,116 @@ interface Configuration {
 	public static final String PROP_S3_SECRET_KEY = "s3.secretkey";
 	public static final String PROP_S3_BUCKET = "s3.bucket";
 	public static final String PROP_S3_PREFIX = "s3.prefix";
+	public static final String PROP_S3_LOCAL_DIR = "s3.local.dir";
+	public static final String PROP_S3_LOCAL_LATENCY = "s3.local.latency.ms";
+	public static final String PROP_S3_LOCAL_ERROR_RATE = "s3.local.errorrate";
+	public static final String PROP_S3_ENDPOINT = "s3.endpoint";
+	public static final String PROP_S3_PATH_STYLE = "s3.pathstyle";
+
+	public static final String PROP_S3_KEY_TEMPLATE = "s3.key.template";
+	public static final String PROP_S3_KEY_SHARDS = "s3.key.shards";
+	public static final int DEFAULT_S3_KEY_SHARDS = 16;
+
+	public static final String PROP_S3_THROTTLE = "s3.throttle";
+	public static final String PROP_S3_THROTTLE_MIN_RATE = "s3.throttle.minrate";
+	public static final double DEFAULT_S3_THROTTLE_MIN_RATE = 10.0;
+	public static final String PROP_S3_THROTTLE_INCREASE = "s3.throttle.increase";
+	public static final double DEFAULT_S3_THROTTLE_INCREASE = 5.0;
+
+	public static final String PROP_S3_MAX_CONNECTIONS = "s3.client.maxconnections";
+	public static final int DEFAULT_S3_MAX_CONNECTIONS = 50;
+	public static final String PROP_S3_CONNECTION_TIMEOUT = "s3.client.connectiontimeout.ms";
+	public static final int DEFAULT_S3_CONNECTION_TIMEOUT = 10000;
+	public static final String PROP_S3_SOCKET_TIMEOUT = "s3.client.sockettimeout.ms";
+	public static final int DEFAULT_S3_SOCKET_TIMEOUT = 50000;
+	public static final String PROP_S3_TCP_KEEP_ALIVE = "s3.client.tcpkeepalive";
+	public static final String PROP_S3_MAX_RETRIES = "s3.client.maxretries";
+	public static final int DEFAULT_S3_MAX_RETRIES = 3;
+	public static final String PROP_S3_RETRY_BASE_DELAY = "s3.client.retry.basedelay.ms";
+	public static final int DEFAULT_S3_RETRY_BASE_DELAY = 100;
+	public static final String PROP_S3_RETRY_MAX_BACKOFF = "s3.client.retry.maxbackoff.ms";
+	public static final int DEFAULT_S3_RETRY_MAX_BACKOFF = 20000;
 
 	public static final String PROP_S3_MAX_OBJECT_SIZE = "s3.maxobjectsize";
 	public static final String PROP_S3_TOPIC_SIZES = "s3.objectsizes";
 
+	public static final String PROP_S3_UPLOAD_THREADS = "s3.upload.threads";
+	public static final String PROP_S3_UPLOAD_QUEUE_SIZE = "s3.upload.queuesize";
+	public static final int DEFAULT_S3_UPLOAD_THREADS = 4;
+	public static final int DEFAULT_S3_UPLOAD_QUEUE_SIZE = 16;
+
+	public static final String PROP_S3_SPOOL_DIR = "s3.spool.dir";
+
+	public static final String PROP_S3_MEMORY_BUDGET = "s3.memory.budget";
+	public static final String PROP_S3_MEMORY_BLOCK_SIZE = "s3.memory.blocksize";
+	public static final int DEFAULT_S3_MEMORY_BLOCK_SIZE = 256 * 1024;
+
+	public static final String PROP_S3_FILE_LEASE = "s3.filelease.ms";
+	public static final long DEFAULT_S3_FILE_LEASE = 300000L; // 5 minutes
+	public static final String PROP_S3_FILE_LEASE_MAX = "s3.filelease.max.ms";
+
+	public static final String PROP_S3_ROTATION = "s3.rotation";
+	public static final String S3_ROTATION_COMPRESSED = "compressed";
+	public static final String S3_ROTATION_RAW = "raw";
+
+	public static final String PROP_S3_SINKS_PER_PARTITION = "s3.sinks.perpartition";
+	public static final String PROP_S3_SINKS_TOTAL = "s3.sinks.total";
+
+	public static final String PROP_S3_KEYS = "s3.keys";
+	public static final String S3_KEYS_RANDOM = "random";
+	public static final String S3_KEYS_DETERMINISTIC = "deterministic";
+	public static final String PROP_S3_KEYS_CHUNK_MESSAGES = "s3.keys.chunkmessages";
+
+	public static final String PROP_S3_WATERMARK_LATENESS = "s3.watermark.lateness.seconds";
+	public static final String PROP_S3_WATERMARK_MARKER = "s3.watermark.marker";
+	public static final String DEFAULT_S3_WATERMARK_MARKER = "_SUCCESS";
+
+	public static final String PROP_S3_TRANSFORM_DROP = "s3.transform.drop";
+	public static final String PROP_S3_TRANSFORM_ROUTE = "s3.transform.route";
+	public static final String PROP_S3_TRANSFORM_INCLUDE = "s3.transform.include";
+	public static final String PROP_S3_TRANSFORM_EXCLUDE = "s3.transform.exclude";
+
+	public static final String PROP_S3_UPLOAD_MODE = "s3.upload.mode";
+	public static final String S3_UPLOAD_MODE_FILE = "file";
+	public static final String S3_UPLOAD_MODE_MULTIPART = "multipart";
+	public static final String PROP_S3_PART_SIZE = "s3.upload.partsize";
+	public static final int DEFAULT_S3_PART_SIZE = 8 * 1024 * 1024;
+	public static final int MIN_S3_PART_SIZE = 5 * 1024 * 1024;
+
+	public static final String PROP_S3_CODEC = "s3.codec";
+	public static final String DEFAULT_S3_CODEC = "gzip";
+	public static final String PROP_S3_CODEC_LEVEL = "s3.codec.level";
+	public static final String PROP_S3_CODEC_BUFFER_SIZE = "s3.codec.buffersize";
+	public static final int DEFAULT_S3_CODEC_BUFFER_SIZE = 64 * 1024;
+	public static final String PROP_S3_PGZIP_BLOCK_SIZE = "s3.codec.pgzip.blocksize";
+	public static final int DEFAULT_S3_PGZIP_BLOCK_SIZE = 1024 * 1024;
+	public static final String PROP_S3_PGZIP_THREADS = "s3.codec.pgzip.threads";
+
+	public static final String PROP_S3_PARALLEL_HOURS = "s3.parallel.hours";
+	public static final String PROP_S3_PARALLEL_HOURS_THREADS = "s3.parallel.hours.threads";
+	public static final String PROP_S3_PARALLEL_HOURS_QUEUE = "s3.parallel.hours.queue";
+	public static final int DEFAULT_S3_PARALLEL_HOURS_QUEUE = 1024;
+
+	public static final String PROP_S3_FORMAT = "s3.format";
+	public static final String S3_FORMAT_JSON = "json";
+	public static final String S3_FORMAT_PARQUET = "parquet";
+	public static final String PROP_S3_PARQUET_SCHEMA = "s3.parquet.schema";
+	public static final String PROP_S3_PARQUET_ROW_GROUP_SIZE = "s3.parquet.rowgroupsize";
+	public static final int DEFAULT_S3_PARQUET_ROW_GROUP_SIZE = 128 * 1024 * 1024;
+	public static final String PROP_S3_PARQUET_DEAD_LETTER = "s3.parquet.deadletter";
+
+	public static final String PROP_S3_COMPACT_HOURS = "s3.compact.hours";
+	public static final int DEFAULT_S3_COMPACT_HOURS = 24;
+	public static final String PROP_S3_COMPACT_DELAY = "s3.compact.delay.ms";
+	public static final long DEFAULT_S3_COMPACT_DELAY = 3600000L; // 1 hour
+	public static final String PROP_S3_COMPACT_INTERVAL = "s3.compact.interval.ms";
+
+	public static final String PROP_KAFKA_COMMIT_INTERVAL = "kafka.commit.interval.ms";
+	public static final long DEFAULT_KAFKA_COMMIT_INTERVAL = 300000L;
+
 	public static final String PROP_KAFKA_MAX_MESSAGE_SIZE = "kafka.maxmessagesize";
 	public static final String PROP_KAFKA_TOPICS = "kafka.topics";
+	public static final String PROP_KAFKA_EXCLUSIVE = "kafka.exclusive";
 
   public static final String PROP_S3_TIME_PARTITION_FORMAT = "s3.time_partition_format";
   public static final String DEFAULT_S3_TIME_PARTITION_FORMAT = "'dt='yyyy-MM-dd-HH";
@@ -37,7 +142,27 @@ interface Configuration {
 	public static final String STATSD_HOST = "statsd.host";
 	public static final String STATSD_PORT = "statsd.port";
 
-  public int getS3MaxObjectSize();
+	public static final String PROP_SHUTDOWN_TIMEOUT = "shutdown.timeout.ms";
+	public static final long DEFAULT_SHUTDOWN_TIMEOUT = 60000L;
+	public static final String PROP_TOPIC_RESTART_BACKOFF = "topic.restart.backoff.ms";
+	public static final long DEFAULT_TOPIC_RESTART_BACKOFF = 10000L;
+	public static final String PROP_TOPIC_RESTART_MAX_BACKOFF = "topic.restart.maxbackoff.ms";
+	public static final long DEFAULT_TOPIC_RESTART_MAX_BACKOFF = 600000L;
+
+	public static final String PROP_CONFIG_RELOAD_INTERVAL = "config.reload.interval.ms";
+
+	public static final String PROP_WORKER_MODE = "worker.mode";
+	public static final String WORKER_MODE_THREAD = "thread";
+	public static final String WORKER_MODE_VIRTUAL = "virtual";
+	public static final String WORKER_MODE_SHARED = "shared";
+	public static final String PROP_WORKER_THREADS = "worker.threads";
+	public static final String PROP_WORKER_SLICE = "worker.slice.ms";
+	public static final long DEFAULT_WORKER_SLICE = 100L;
+
+	public static final String PROP_METRICS_INTERVAL = "metrics.interval.seconds";
+	public static final int DEFAULT_METRICS_INTERVAL = 10;
+
+  public long getS3MaxObjectSize();
   public int getKafkaMaxMessageSize();
 
 }
@@ -0,0 +1,130 @@
+package kafka.s3.consumer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+/**
+ * Chunk buffered in a local file and uploaded with a single PUT.
+ *
+ * Without a spool the file is an anonymous temp file. With one it lives in
+ * the spool directory and its manifest is sealed before the upload is
+ * queued, so it survives a restart.
+ */
+class FileChunk implements Chunk {
+	private static final org.slf4j.Logger logger = LoggerFactory.getLogger(App.class);
+
+	private final AmazonS3 awsClient;
+	private final String bucket;
+	private final File tmpFile;
+	private final CountingOutputStream stream;
+	private final Spool spool;
+	private final Properties manifest;
+
+	public FileChunk(AmazonS3 awsClient, String bucket, String prefix) throws IOException {
+		this(awsClient, bucket, prefix, null, null);
+	}
+
+	public FileChunk(AmazonS3 awsClient, String bucket, String prefix,
+			Spool spool, Properties manifest) throws IOException {
+		this.awsClient = awsClient;
+		this.bucket = bucket;
+		this.spool = spool;
+		this.manifest = manifest;
+		if (spool != null) {
+			this.tmpFile = spool.newChunkFile(prefix);
+			spool.writeManifest(tmpFile, manifest);
+		} else {
+			this.tmpFile = File.createTempFile(prefix, null);
+		}
+		logger.debug("Creating output stream for tmpFile: " + tmpFile);
+		this.stream = new CountingOutputStream(new FileOutputStream(tmpFile));
+	}
+
+	@Override
+	public OutputStream getStream() {
+		return stream;
+	}
+
+	@Override
+	public String getKey() {
+		return null;
+	}
+
+	@Override
+	public long getSize() {
+		return stream.count;
+	}
+
+	@Override
+	public Runnable commit(final String key, long lastSequence) throws IOException {
+		if (spool != null) {
+			// The data must be on disk before the manifest says it is complete.
+			spool.sync(tmpFile);
+			manifest.setProperty("key", key);
+			manifest.setProperty("lastSequence", Long.toString(lastSequence));
+			manifest.setProperty("state", Spool.STATE_SEALED);
+			spool.writeManifest(tmpFile, manifest);
+		}
+
+		return new Runnable() {
+			@Override
+			public void run() {
+				logger.debug("Uploading to s3 {}", key);
+				awsClient.putObject(bucket, key, tmpFile);
+				delete();
+			}
+		};
+	}
+
+	private void delete() {
+		if (spool != null) {
+			spool.delete(tmpFile);
+		} else {
+			tmpFile.delete();
+		}
+	}
+
+	@Override
+	public void discard() {
+		try {
+			stream.close();
+		} catch (IOException e) {
+			logger.warn("Could not close {}", tmpFile, e);
+		}
+		delete();
+	}
+
+	/**
+	 * Counts what is written, so the size is known without asking the file
+	 * system on every message.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+		private long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
+
+// vim: noet:ts=2:sw=2
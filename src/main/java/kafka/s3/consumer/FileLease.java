@@ -0,0 +1,69 @@
+package kafka.s3.consumer;
+
+/**
+ * The lease of the chunks of one partition of a topic.
+ *
+ * The lease is {@code s3.filelease.ms} unless {@code s3.filelease.max.ms}
+ * is larger, in which case it adapts to the partition's ingest rate. Every
+ * chunk tells how long the lease would have had to be for the chunk to reach
+ * the object size: its age if it was cut by size, or its age scaled by how
+ * far it fell short if the lease cut it. The lease moves halfway towards
+ * that, within the two bounds, so quiet partitions write fewer, larger
+ * objects and busy ones keep the time to S3 short. The upper bound caps how
+ * long a message waits for its upload. It is never above
+ * {@code kafka.commit.interval.ms}: every checkpoint cuts the chunks anyway,
+ * and those cuts say nothing about the lease.
+ *
+ * Each hourly sink reads the lease when its own lease starts. Sinks of
+ * different hours may report from different threads.
+ */
+class FileLease {
+	private final long min;
+	private final long max;
+	private final long targetSize;
+	private volatile long lease;
+
+	public FileLease(String topic, PropertyConfiguration conf) {
+		this.min = conf.getFileLease(topic);
+		this.max = Math.max(min, Math.min(conf.getFileLeaseMax(topic), conf.getCommitInterval()));
+		this.targetSize = conf.getMaxObjectSize(topic);
+		this.lease = min;
+	}
+
+	/**
+	 * @return milliseconds a chunk may stay open.
+	 */
+	public long get() {
+		return lease;
+	}
+
+	/**
+	 * Records a chunk that reached the object size {@code millis} after it
+	 * was opened.
+	 */
+	public synchronized void filled(long millis) {
+		adapt(millis);
+	}
+
+	/**
+	 * Records a chunk the lease cut at {@code size} bytes, {@code millis}
+	 * after it was opened (or after the lease started, if it stayed empty).
+	 */
+	public synchronized void expired(long size, long millis) {
+		if (size <= 0) {
+			adapt(max);
+		} else {
+			adapt((long) ((double) targetSize / size * millis));
+		}
+	}
+
+	private void adapt(long wanted) {
+		if (max == min) {
+			return;
+		}
+		wanted = Math.min(max, Math.max(min, wanted));
+		lease = lease + (wanted - lease) / 2;
+	}
+}
+
+// vim: noet:ts=2:sw=2
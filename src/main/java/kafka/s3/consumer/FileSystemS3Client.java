@@ -0,0 +1,412 @@
+package kafka.s3.consumer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+/**
+ * S3 stand-in that keeps objects as files under {@code <root>/<bucket>/<key>}.
+ *
+ * It covers the calls this consumer makes (puts, multipart uploads, gets,
+ * listings and deletes) so the pipeline can run against a local directory
+ * for benchmarks and tests. Enabled with {@code s3.local.dir}.
+ *
+ * For load tests every request can be delayed by a latency and fail with
+ * 503 SlowDown at an error rate. Failed attempts are retried with
+ * exponential backoff up to the client's retry limit, as the AWS client
+ * does, so only a request whose every attempt fails reaches the caller.
+ */
+public class FileSystemS3Client extends AbstractAmazonS3 {
+	private static final String MULTIPART_DIR = ".multipart";
+
+	private final File root;
+	private final long latency;
+	private final double errorRate;
+	private final int maxRetries;
+	private final long retryDelay;
+	private final Random random = new Random();
+	private final AtomicLong injectedErrors = new AtomicLong();
+
+	public FileSystemS3Client(File root) {
+		this(root, 0L, 0.0, 0, 0L);
+	}
+
+	/**
+	 * @param latency milliseconds each request attempt takes at least.
+	 * @param errorRate probability of an attempt failing with SlowDown.
+	 * @param maxRetries retries of a failed attempt.
+	 * @param retryDelay milliseconds before the first retry, doubled for
+	 *        each further one.
+	 */
+	public FileSystemS3Client(File root, long latency, double errorRate, int maxRetries,
+			long retryDelay) {
+		this.root = root;
+		this.latency = latency;
+		this.errorRate = errorRate;
+		this.maxRetries = maxRetries;
+		this.retryDelay = retryDelay;
+		if (!root.isDirectory() && !root.mkdirs()) {
+			throw new RuntimeException("Could not create " + root);
+		}
+	}
+
+	/**
+	 * @return request attempts that failed on purpose so far.
+	 */
+	public long getInjectedErrors() {
+		return injectedErrors.get();
+	}
+
+	/**
+	 * Spends the configured latency and fails as often as configured.
+	 */
+	private void request() {
+		if (latency <= 0 && errorRate <= 0) {
+			return;
+		}
+		for (int attempt = 0;; attempt++) {
+			sleep(latency);
+			if (errorRate <= 0 || random.nextDouble() >= errorRate) {
+				return;
+			}
+			injectedErrors.incrementAndGet();
+			if (attempt >= maxRetries) {
+				AmazonS3Exception e = new AmazonS3Exception("Please reduce your request rate.");
+				e.setStatusCode(503);
+				e.setErrorCode("SlowDown");
+				throw e;
+			}
+			sleep(retryDelay << Math.min(attempt, 20));
+		}
+	}
+
+	private static void sleep(long millis) {
+		if (millis <= 0) {
+			return;
+		}
+		try {
+			TimeUnit.MILLISECONDS.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException("Interrupted", e);
+		}
+	}
+
+	public File getRoot() {
+		return root;
+	}
+
+	private File getFile(String bucket, String key) {
+		return new File(new File(root, bucket), key);
+	}
+
+	@Override
+	public PutObjectResult putObject(String bucket, String key, File file) {
+		request();
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				write(getFile(bucket, key), in, false);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new AmazonClientException("Could not store " + key, e);
+		}
+		return new PutObjectResult();
+	}
+
+	@Override
+	public PutObjectResult putObject(String bucket, String key, InputStream in, ObjectMetadata metadata) {
+		request();
+		try {
+			write(getFile(bucket, key), in, false);
+		} catch (IOException e) {
+			throw new AmazonClientException("Could not store " + key, e);
+		}
+		return new PutObjectResult();
+	}
+
+	@Override
+	public PutObjectResult putObject(PutObjectRequest request) {
+		if (request.getFile() != null) {
+			return putObject(request.getBucketName(), request.getKey(), request.getFile());
+		}
+		return putObject(request.getBucketName(), request.getKey(), request.getInputStream(), null);
+	}
+
+	/**
+	 * Writes through a temp file and a rename, so readers never see a partial
+	 * object.
+	 */
+	private static void write(File target, InputStream in, boolean append) throws IOException {
+		File dir = target.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create " + dir);
+		}
+		File tmp = append ? target : new File(dir, "." + target.getName() + "." + UUID.randomUUID());
+		OutputStream out = new FileOutputStream(tmp, append);
+		try {
+			byte[] buf = new byte[64 * 1024];
+			int n;
+			while ((n = in.read(buf)) != -1) {
+				out.write(buf, 0, n);
+			}
+		} finally {
+			out.close();
+		}
+		if (!append && !tmp.renameTo(target)) {
+			tmp.delete();
+			throw new IOException("Could not rename to " + target);
+		}
+	}
+
+	@Override
+	public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+		request();
+		String uploadId = UUID.randomUUID().toString();
+		File dir = getUploadDir(request.getBucketName(), uploadId);
+		if (!dir.mkdirs()) {
+			throw new AmazonClientException("Could not create " + dir);
+		}
+		InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+		result.setUploadId(uploadId);
+		return result;
+	}
+
+	private File getUploadDir(String bucket, String uploadId) {
+		return new File(new File(new File(root, bucket), MULTIPART_DIR), uploadId);
+	}
+
+	@Override
+	public UploadPartResult uploadPart(UploadPartRequest request) {
+		request();
+		File dir = getUploadDir(request.getBucketName(), request.getUploadId());
+		if (!dir.isDirectory()) {
+			throw noSuchUpload(request.getUploadId());
+		}
+		try {
+			InputStream in = request.getInputStream() != null
+					? request.getInputStream() : new FileInputStream(request.getFile());
+			try {
+				write(new File(dir, Integer.toString(request.getPartNumber())), in, false);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new AmazonClientException("Could not store part " + request.getPartNumber(), e);
+		}
+		UploadPartResult result = new UploadPartResult();
+		result.setPartNumber(request.getPartNumber());
+		result.setETag(Integer.toString(request.getPartNumber()));
+		return result;
+	}
+
+	@Override
+	public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+		request();
+		File dir = getUploadDir(request.getBucketName(), request.getUploadId());
+		if (!dir.isDirectory()) {
+			throw noSuchUpload(request.getUploadId());
+		}
+		File target = getFile(request.getBucketName(), request.getKey());
+		File tmp = new File(dir, "object");
+		try {
+			for (PartETag part : request.getPartETags()) {
+				InputStream in = new FileInputStream(new File(dir, Integer.toString(part.getPartNumber())));
+				try {
+					write(tmp, in, true);
+				} finally {
+					in.close();
+				}
+			}
+			InputStream in = new FileInputStream(tmp);
+			try {
+				write(target, in, false);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new AmazonClientException("Could not complete " + request.getKey(), e);
+		}
+		deleteRecursively(dir);
+		return new CompleteMultipartUploadResult();
+	}
+
+	@Override
+	public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+		deleteRecursively(getUploadDir(request.getBucketName(), request.getUploadId()));
+	}
+
+	private static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+
+	private static AmazonS3Exception noSuchUpload(String uploadId) {
+		AmazonS3Exception e = new AmazonS3Exception("No such upload " + uploadId);
+		e.setStatusCode(404);
+		e.setErrorCode("NoSuchUpload");
+		return e;
+	}
+
+	private static AmazonS3Exception noSuchKey(String key) {
+		AmazonS3Exception e = new AmazonS3Exception("No such key " + key);
+		e.setStatusCode(404);
+		e.setErrorCode("NoSuchKey");
+		return e;
+	}
+
+	@Override
+	public boolean doesObjectExist(String bucket, String key) {
+		request();
+		return getFile(bucket, key).isFile();
+	}
+
+	@Override
+	public ObjectMetadata getObjectMetadata(String bucket, String key) {
+		File file = getFile(bucket, key);
+		if (!file.isFile()) {
+			throw noSuchKey(key);
+		}
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(file.length());
+		metadata.setLastModified(new Date(file.lastModified()));
+		return metadata;
+	}
+
+	@Override
+	public S3Object getObject(String bucket, String key) {
+		request();
+		File file = getFile(bucket, key);
+		S3Object object = new S3Object();
+		object.setBucketName(bucket);
+		object.setKey(key);
+		try {
+			object.setObjectContent(new FileInputStream(file));
+		} catch (IOException e) {
+			throw noSuchKey(key);
+		}
+		object.getObjectMetadata().setContentLength(file.length());
+		return object;
+	}
+
+	@Override
+	public void deleteObject(String bucket, String key) {
+		getFile(bucket, key).delete();
+	}
+
+	/**
+	 * Lists everything under the prefix in one untruncated page.
+	 */
+	@Override
+	public ObjectListing listObjects(ListObjectsRequest request) {
+		request();
+		String bucket = request.getBucketName();
+		String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+		String delimiter = request.getDelimiter();
+
+		List<String> keys = new ArrayList<String>();
+		collectKeys(new File(root, bucket), "", keys);
+		Collections.sort(keys);
+
+		ObjectListing listing = new ObjectListing();
+		listing.setBucketName(bucket);
+		listing.setPrefix(prefix);
+		listing.setDelimiter(delimiter);
+		SortedSet<String> commonPrefixes = new TreeSet<String>();
+		for (String key : keys) {
+			if (!key.startsWith(prefix)) {
+				continue;
+			}
+			if (delimiter != null) {
+				int i = key.indexOf(delimiter, prefix.length());
+				if (i >= 0) {
+					commonPrefixes.add(key.substring(0, i + delimiter.length()));
+					continue;
+				}
+			}
+			File file = getFile(bucket, key);
+			S3ObjectSummary summary = new S3ObjectSummary();
+			summary.setBucketName(bucket);
+			summary.setKey(key);
+			summary.setSize(file.length());
+			summary.setLastModified(new Date(file.lastModified()));
+			listing.getObjectSummaries().add(summary);
+		}
+		listing.setCommonPrefixes(new ArrayList<String>(commonPrefixes));
+		listing.setTruncated(false);
+		return listing;
+	}
+
+	@Override
+	public ObjectListing listNextBatchOfObjects(ObjectListing previous) {
+		ObjectListing listing = new ObjectListing();
+		listing.setBucketName(previous.getBucketName());
+		listing.setPrefix(previous.getPrefix());
+		listing.setTruncated(false);
+		return listing;
+	}
+
+	private static void collectKeys(File dir, String path, List<String> keys) {
+		File[] children = dir.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			String name = child.getName();
+			if (name.startsWith(".")) {
+				// in-progress writes and multipart uploads
+				continue;
+			}
+			if (child.isDirectory()) {
+				collectKeys(child, path + name + "/", keys);
+			} else {
+				keys.add(path + name);
+			}
+		}
+	}
+
+	@Override
+	public void shutdown() {
+	}
+}
+
+// vim: noet:ts=2:sw=2
@@ -1,57 +1,32 @@
 package kafka.s3.consumer;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.zip.GZIPOutputStream;
 
-import org.slf4j.LoggerFactory;
-
 public class GzipSinkStreamHandler implements SinkStreamHandler {
-  private static final String FILEPREFIX = "gzipsink";
-  private File tmpFile;
-  private GZIPOutputStream goutStream;
-
-  private static final org.slf4j.Logger logger = LoggerFactory
-      .getLogger(App.class);
-
-  public GzipSinkStreamHandler() throws IOException {
-    super();
-    this.tmpFile = createTmpFile();
-    this.goutStream = getOutputStream(tmpFile);
-  }
+  private final int level;
+  private final int bufferSize;
 
-  private GZIPOutputStream getOutputStream(File tmpFile)
-      throws FileNotFoundException, IOException {
-    logger.debug("Creating gzip output stream for tmpFile: " + tmpFile);
-    return new GZIPOutputStream(new FileOutputStream(tmpFile));
-  }
-
-  private File createTmpFile() throws IOException {
-    logger.debug("Creating new tmpFile");
-    return File.createTempFile(FILEPREFIX, null);
+  public GzipSinkStreamHandler(int level, int bufferSize) {
+    this.level = level;
+    this.bufferSize = bufferSize;
   }
 
   @Override
-  public File commitStreamReturnFile() throws IOException {
-    goutStream.close();
-    return tmpFile;
+  public OutputStream wrap(OutputStream out) throws IOException {
+    return new LeveledGZIPOutputStream(out, bufferSize, level);
   }
 
   @Override
-  public OutputStream rotateStream() throws IOException {
-    tmpFile.delete();
-    tmpFile = createTmpFile();
-    goutStream.finish();
-    goutStream = getOutputStream(tmpFile);
-    return goutStream;
+  public String getExtension() {
+    return ".gz";
   }
 
-  @Override
-  public OutputStream getStream() {
-    return goutStream;
+  static class LeveledGZIPOutputStream extends GZIPOutputStream {
+    LeveledGZIPOutputStream(OutputStream out, int bufferSize, int level) throws IOException {
+      super(out, bufferSize);
+      def.setLevel(level);
+    }
   }
-
 }
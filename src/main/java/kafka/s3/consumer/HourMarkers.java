@@ -0,0 +1,207 @@
+package kafka.s3.consumer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * Writes a marker object into an hour of a topic once every partition
+ * worker has closed that hour and its chunks are in S3.
+ *
+ * Only the workers of this process are counted, so markers need it to be
+ * the group's only consumer ({@code kafka.exclusive}).
+ *
+ * Workers report the hour their watermark has passed, after the uploads of
+ * that hour's chunks have completed. The marker ({@code _SUCCESS} by
+ * default) is written next to the hour's partition directories, for hours
+ * that received any messages. It holds the topic, the hour and the number
+ * of partitions as properties. Messages that arrive after their hour was
+ * closed are still uploaded, and the marker is written again once the
+ * workers close a later hour.
+ *
+ * Categories a {@link MessageTransform} routes messages to get markers in
+ * their own hour directories, with a {@code category} property. Their
+ * hours are closed together with the partition's, see
+ * {@link MultiS3JsonFileSink#addFollower}.
+ *
+ * Markers are written in hour order on a thread of their own, so workers
+ * and uploader threads reporting closed hours never wait for S3. A marker
+ * that could not be written is tried again when the next hour closes.
+ * Hours not yet marked when the process exits are not marked later.
+ */
+class HourMarkers {
+	private static final org.slf4j.Logger logger = LoggerFactory.getLogger(App.class);
+
+	private static final long HOUR_MILLIS = 3600L * 1000;
+
+	private final String topic;
+	private final PropertyConfiguration conf;
+	private final AmazonS3 client;
+	private final String bucket;
+	private final DateFormat dateFormat;
+	private final String marker;
+	private final ExecutorService writer;
+
+	// Per partition, the last hour it closed.
+	private final long[] closedThrough;
+	// Key layouts and hours with messages that have not been marked yet, per
+	// category (null for the topic itself).
+	private final Map<String, KeyLayout> layouts = new HashMap<String, KeyLayout>();
+	private final Map<String, SortedSet<Long>> pending = new HashMap<String, SortedSet<Long>>();
+	private boolean stopped;
+
+	public HourMarkers(String topic, int partitions, PropertyConfiguration conf, AmazonS3 client) {
+		this.topic = topic;
+		this.conf = conf;
+		this.client = client;
+		this.bucket = conf.getS3Bucket(topic);
+		this.dateFormat = conf.getS3TimePartitionDateFormat();
+		this.marker = conf.getWatermarkMarker();
+		this.closedThrough = new long[partitions];
+		Arrays.fill(closedThrough, -1L);
+
+		KeyLayout layout = new KeyLayout(topic, conf);
+		if (layout.getHourPrefix("") == null) {
+			throw new RuntimeException("Invalid property " + Configuration.PROP_S3_KEY_TEMPLATE
+					+ ": hour markers need a directory with {time} before {partition} and {shard}");
+		}
+		layouts.put(null, layout);
+
+		final String name = "hour-markers-" + topic;
+		this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Records that a partition received messages of {@code hour}.
+	 *
+	 * @param category the category they were routed to, or null.
+	 */
+	public synchronized void opened(String category, long hour) {
+		SortedSet<Long> hours = pending.get(category);
+		if (hours == null) {
+			hours = new TreeSet<Long>();
+			pending.put(category, hours);
+			if (!layouts.containsKey(category)) {
+				layouts.put(category, new KeyLayout(topic, category, conf));
+			}
+		}
+		hours.add(hour);
+	}
+
+	/**
+	 * Records that every chunk of {@code partition} up to and including
+	 * {@code hour} is in S3, and queues the markers of the hours all
+	 * partitions are done with.
+	 */
+	public synchronized void closed(int partition, long hour) {
+		if (stopped) {
+			return;
+		}
+		closedThrough[partition] = Math.max(closedThrough[partition], hour);
+		long complete = closedThrough[0];
+		for (long closed : closedThrough) {
+			complete = Math.min(complete, closed);
+		}
+
+		for (Map.Entry<String, SortedSet<Long>> entry : pending.entrySet()) {
+			SortedSet<Long> hours = entry.getValue();
+			if (hours.isEmpty() || hours.first() > complete) {
+				continue;
+			}
+			SortedSet<Long> due = new TreeSet<Long>(hours.headSet(complete + 1));
+			hours.removeAll(due);
+			write(entry.getKey(), due);
+		}
+	}
+
+	private void write(final String category, final SortedSet<Long> hours) {
+		final KeyLayout layout = layouts.get(category);
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				for (Long hour : hours) {
+					if (!write(layout, category, hour)) {
+						retry(category, hours.tailSet(hour));
+						return;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes the markers already queued, by {@code deadline}, and ignores
+	 * hours closed after that.
+	 */
+	public void stop(long deadline) throws InterruptedException {
+		synchronized (this) {
+			stopped = true;
+		}
+		writer.shutdown();
+		if (!writer.awaitTermination(Math.max(0L, deadline - System.currentTimeMillis()),
+				TimeUnit.MILLISECONDS)) {
+			logger.warn("Not all hour markers of {} were written", topic);
+		}
+	}
+
+	// Tried again when the next hour closes.
+	private synchronized void retry(String category, SortedSet<Long> hours) {
+		pending.get(category).addAll(hours);
+	}
+
+	private boolean write(KeyLayout layout, String category, long hour) {
+		// Only the writer thread formats.
+		String time = dateFormat.format(new Date(hour * HOUR_MILLIS));
+		String key = layout.getHourPrefix(time) + "/" + marker;
+
+		Properties properties = new Properties();
+		properties.setProperty("topic", topic);
+		if (category != null) {
+			properties.setProperty("category", category);
+		}
+		properties.setProperty("time", time);
+		properties.setProperty("partitions", Integer.toString(closedThrough.length));
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			properties.store(out, null);
+			byte[] bytes = out.toByteArray();
+			ObjectMetadata metadata = new ObjectMetadata();
+			metadata.setContentLength(bytes.length);
+			client.putObject(bucket, key, new ByteArrayInputStream(bytes), metadata);
+		} catch (IOException e) {
+			logger.warn("Could not write hour marker {}", key, e);
+			return false;
+		} catch (RuntimeException e) {
+			logger.warn("Could not write hour marker {}", key, e);
+			return false;
+		}
+		logger.info("All partitions of {} closed {}, wrote {}", topic, time, key);
+		return true;
+	}
+}
+
+// vim: noet:ts=2:sw=2
@@ -0,0 +1,128 @@
+package kafka.s3.consumer;
+
+import java.io.IOException;
+
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.example.data.simple.SimpleGroupFactory;
+import org.apache.parquet.schema.GroupType;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.Type;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Turns a JSON object into a Parquet record of the given schema with a
+ * streaming parser, without building an intermediate tree. Fields that are
+ * not in the schema and null values are skipped; JSON arrays map to
+ * repeated fields and nested objects to groups.
+ *
+ * A message that does not fit the schema (a required field missing or
+ * null, a value of the wrong type or out of range, a repeated value for a
+ * single field) fails with an IOException, so the writer never sees an
+ * incomplete record.
+ */
+class JsonGroupConverter {
+	private final JsonFactory factory = new JsonFactory();
+	private final MessageType schema;
+	private final SimpleGroupFactory groups;
+
+	public JsonGroupConverter(MessageType schema) {
+		this.schema = schema;
+		this.groups = new SimpleGroupFactory(schema);
+	}
+
+	public Group convert(byte[] bytes, int offset, int length) throws IOException {
+		JsonParser parser = factory.createParser(bytes, offset, length);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("Message is not a JSON object");
+			}
+			Group group = groups.newGroup();
+			readObject(parser, schema, group);
+			return group;
+		} catch (RuntimeException e) {
+			// Groups reject a second value for a single field this way.
+			throw new IOException(e.getMessage(), e);
+		} finally {
+			parser.close();
+		}
+	}
+
+	private void readObject(JsonParser parser, GroupType type, Group group) throws IOException {
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+
+			if (!type.containsField(name)) {
+				parser.skipChildren();
+				continue;
+			}
+
+			int index = type.getFieldIndex(name);
+			Type field = type.getType(index);
+			if (token == JsonToken.START_ARRAY && field.isRepetition(Type.Repetition.REPEATED)) {
+				while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+					readValue(parser, token, field, group, index);
+				}
+			} else {
+				readValue(parser, token, field, group, index);
+			}
+		}
+		checkRequired(type, group);
+	}
+
+	private static void checkRequired(GroupType type, Group group) throws IOException {
+		for (int i = 0; i < type.getFieldCount(); i++) {
+			Type field = type.getType(i);
+			if (field.isRepetition(Type.Repetition.REQUIRED) && group.getFieldRepetitionCount(i) == 0) {
+				throw new IOException("Missing required field " + field.getName());
+			}
+		}
+	}
+
+	private void readValue(JsonParser parser, JsonToken token, Type field,
+			Group group, int index) throws IOException {
+		if (token == JsonToken.VALUE_NULL) {
+			return;
+		}
+
+		if (!field.isPrimitive()) {
+			if (token != JsonToken.START_OBJECT) {
+				throw new IOException("Expected an object for field " + field.getName());
+			}
+			readObject(parser, field.asGroupType(), group.addGroup(index));
+			return;
+		}
+
+		if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+			throw new IOException("Expected a scalar for field " + field.getName());
+		}
+
+		switch (field.asPrimitiveType().getPrimitiveTypeName()) {
+		case BOOLEAN:
+			group.add(index, parser.getBooleanValue());
+			break;
+		case INT32:
+			group.add(index, parser.getIntValue());
+			break;
+		case INT64:
+			group.add(index, parser.getLongValue());
+			break;
+		case FLOAT:
+			group.add(index, parser.getFloatValue());
+			break;
+		case DOUBLE:
+			group.add(index, parser.getDoubleValue());
+			break;
+		case BINARY:
+			group.add(index, parser.getText());
+			break;
+		default:
+			throw new IOException("Unsupported Parquet type for field " + field.getName());
+		}
+	}
+}
+
+// vim: noet:ts=2:sw=2
@@ -0,0 +1,120 @@
+package kafka.s3.consumer;
+
+/**
+ * Builds the S3 key prefixes of one topic from {@code s3.key.template}.
+ *
+ * The template is a path with the placeholders {@code {prefix}}
+ * ({@code s3.prefix}), {@code {topic}} (the topic without
+ * {@code kafka.topic.prefix}), {@code {time}} (the hour in
+ * {@code s3.time_partition_format}), {@code {partition}} and {@code {shard}}.
+ * Chunk keys append {@code -<first>-<last>-<id>.<ext>} to it, the
+ * {@link MessageSequence} numbers of the chunk's first and last messages.
+ *
+ * {@code {shard}} is a hex digit string derived from the topic, partition
+ * and hour, below {@code s3.key.shards}. Putting it first spreads the
+ * partitions of one hour over several prefixes, which S3 scales
+ * independently, while keeping every key of a partition hour under one
+ * prefix for the compactor.
+ *
+ * Messages a {@link MessageTransform} routes to a category are laid out
+ * like a topic of that name.
+ */
+class KeyLayout {
+	static final String DEFAULT_TEMPLATE = "{prefix}/category={topic}/{time}/{partition}";
+
+	private final String template;
+	// The directories before the first one that depends on the partition, or
+	// null if those do not include {time}.
+	private final String hourTemplate;
+	private final String s3Prefix;
+	private final String topic;
+	private final String topicName;
+	private final int shards;
+	private final int shardWidth;
+
+	public KeyLayout(String topic, PropertyConfiguration conf) {
+		this(topic, null, conf);
+	}
+
+	/**
+	 * @param category replaces the topic name in keys, or null.
+	 */
+	public KeyLayout(String topic, String category, PropertyConfiguration conf) {
+		this.template = conf.getS3KeyTemplate(topic);
+		this.hourTemplate = getHourTemplate(template);
+		this.s3Prefix = conf.getS3Prefix();
+		if (category != null) {
+			this.topic = topic + "/" + category;
+			this.topicName = category;
+		} else {
+			this.topic = topic;
+			this.topicName = getTopicName(topic, conf.getString(Configuration.PROP_KAFKA_TOPIC_PREFIX));
+		}
+		this.shards = conf.getS3KeyShards(topic);
+		this.shardWidth = Integer.toHexString(Math.max(shards - 1, 0)).length();
+	}
+
+	/**
+	 * @return the topic name without {@code kafka.topic.prefix}.
+	 */
+	static String getTopicName(String topic, String topicPrefix) {
+		if (topicPrefix != null) {
+			return topic.substring(topicPrefix.length());
+		} else {
+			return topic;
+		}
+	}
+
+	/**
+	 * @return the prefix of every key of the partition in the hour
+	 *         {@code timePartition}.
+	 */
+	public String getKeyPrefix(int partition, String timePartition) {
+		return template
+				.replace("{shard}", getShard(partition, timePartition))
+				.replace("{prefix}", s3Prefix)
+				.replace("{topic}", topicName)
+				.replace("{time}", timePartition)
+				.replace("{partition}", Integer.toString(partition));
+	}
+
+	/**
+	 * @return the directory shared by every partition's keys of the hour
+	 *         {@code timePartition}, or null if the template has no such
+	 *         directory.
+	 */
+	public String getHourPrefix(String timePartition) {
+		if (hourTemplate == null) {
+			return null;
+		}
+		return hourTemplate
+				.replace("{prefix}", s3Prefix)
+				.replace("{topic}", topicName)
+				.replace("{time}", timePartition);
+	}
+
+	private static String getHourTemplate(String template) {
+		int partition = template.indexOf("{partition}");
+		int shard = template.indexOf("{shard}");
+		if (shard >= 0 && shard < partition) {
+			partition = shard;
+		}
+		int end = template.lastIndexOf('/', partition);
+		if (end < 0) {
+			return null;
+		}
+		String hourTemplate = template.substring(0, end);
+		return hourTemplate.contains("{time}") ? hourTemplate : null;
+	}
+
+	private String getShard(int partition, String timePartition) {
+		int hash = (topic + "/" + partition + "/" + timePartition).hashCode();
+		String shard = Integer.toHexString((hash & Integer.MAX_VALUE) % shards);
+		while (shard.length() < shardWidth) {
+			shard = "0" + shard;
+		}
+		return shard;
+	}
+}
+
+// vim: noet:ts=2:sw=2
@@ -0,0 +1,23 @@
+package kafka.s3.consumer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import net.jpountz.lz4.LZ4FrameOutputStream;
+
+/**
+ * Writes the standard LZ4 frame format, readable by the lz4 command line
+ * tool.
+ */
+public class Lz4SinkStreamHandler implements SinkStreamHandler {
+
+  @Override
+  public OutputStream wrap(OutputStream out) throws IOException {
+    return new LZ4FrameOutputStream(out);
+  }
+
+  @Override
+  public String getExtension() {
+    return ".lz4";
+  }
+}
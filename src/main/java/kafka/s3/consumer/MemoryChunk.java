@@ -0,0 +1,255 @@
+package kafka.s3.consumer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * Chunk held in blocks of the process-wide {@link ChunkBufferPool} and
+ * uploaded straight from them.
+ *
+ * When the pool has no block left the chunk spills: the blocks it holds are
+ * written to a temp file and returned to the pool, and the rest of the
+ * chunk goes to that file. A spilled chunk is uploaded like a
+ * {@link FileChunk}.
+ */
+class MemoryChunk extends OutputStream implements Chunk {
+	private static final org.slf4j.Logger logger = LoggerFactory.getLogger(App.class);
+
+	private final ChunkBufferPool pool;
+	private final AmazonS3 awsClient;
+	private final String bucket;
+	private final String prefix;
+
+	private final List<ByteBuffer> blocks = new ArrayList<ByteBuffer>();
+	private ByteBuffer current;
+	private long size;
+
+	private File spillFile;
+	private OutputStream spillStream;
+
+	public MemoryChunk(ChunkBufferPool pool, AmazonS3 awsClient, String bucket, String prefix) {
+		this.pool = pool;
+		this.awsClient = awsClient;
+		this.bucket = bucket;
+		this.prefix = prefix;
+	}
+
+	@Override
+	public OutputStream getStream() {
+		return this;
+	}
+
+	@Override
+	public String getKey() {
+		return null;
+	}
+
+	@Override
+	public long getSize() {
+		return size;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		size++;
+		if (spillStream == null && (current == null || !current.hasRemaining()) && !nextBlock()) {
+			spill();
+		}
+		if (spillStream != null) {
+			spillStream.write(b);
+		} else {
+			current.put((byte) b);
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		size += len;
+		while (len > 0) {
+			if (spillStream != null) {
+				spillStream.write(b, off, len);
+				return;
+			}
+			if ((current == null || !current.hasRemaining()) && !nextBlock()) {
+				spill();
+				continue;
+			}
+			int n = Math.min(len, current.remaining());
+			current.put(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	private boolean nextBlock() {
+		ByteBuffer block = pool.acquire();
+		if (block == null) {
+			return false;
+		}
+		blocks.add(block);
+		current = block;
+		return true;
+	}
+
+	private void spill() throws IOException {
+		spillFile = File.createTempFile(prefix, null);
+		logger.debug("Chunk memory budget exhausted, spilling to {}", spillFile);
+		FileOutputStream out = new FileOutputStream(spillFile);
+		FileChannel channel = out.getChannel();
+		for (ByteBuffer block : blocks) {
+			ByteBuffer data = (ByteBuffer) block.duplicate().flip();
+			while (data.hasRemaining()) {
+				channel.write(data);
+			}
+		}
+		releaseBlocks();
+		current = null;
+		spillStream = out;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (spillStream != null) {
+			spillStream.close();
+		}
+	}
+
+	@Override
+	public Runnable commit(final String key, long lastSequence) {
+		if (spillFile != null) {
+			final File file = spillFile;
+			return new Runnable() {
+				@Override
+				public void run() {
+					logger.debug("Uploading to s3 {}", key);
+					awsClient.putObject(bucket, key, file);
+					file.delete();
+				}
+			};
+		}
+
+		// The blocks belong to the upload now; it releases them, or discard()
+		// does if the upload is skipped.
+		final long length = size;
+		current = null;
+		return new Runnable() {
+			@Override
+			public void run() {
+				logger.debug("Uploading to s3 {} from memory", key);
+				try {
+					ObjectMetadata metadata = new ObjectMetadata();
+					metadata.setContentLength(length);
+					awsClient.putObject(bucket, key, new BlocksInputStream(blocks), metadata);
+				} finally {
+					releaseBlocks();
+				}
+			}
+		};
+	}
+
+	@Override
+	public void discard() {
+		if (spillStream != null) {
+			try {
+				spillStream.close();
+			} catch (IOException e) {
+				logger.warn("Could not close {}", spillFile, e);
+			}
+			spillFile.delete();
+		} else {
+			releaseBlocks();
+		}
+	}
+
+	private void releaseBlocks() {
+		for (ByteBuffer block : blocks) {
+			pool.release(block);
+		}
+		blocks.clear();
+	}
+
+	/**
+	 * Reads the written part of each block in turn. Supports mark and reset
+	 * so the S3 client can retry a PUT without buffering the chunk again.
+	 */
+	private static class BlocksInputStream extends InputStream {
+		private final ByteBuffer[] buffers;
+		private int index;
+		private int markIndex;
+		private int markPosition;
+
+		private BlocksInputStream(List<ByteBuffer> blocks) {
+			buffers = new ByteBuffer[blocks.size()];
+			for (int i = 0; i < buffers.length; i++) {
+				buffers[i] = (ByteBuffer) blocks.get(i).duplicate().flip();
+			}
+		}
+
+		private ByteBuffer next() {
+			while (index < buffers.length && !buffers[index].hasRemaining()) {
+				index++;
+			}
+			return index < buffers.length ? buffers[index] : null;
+		}
+
+		@Override
+		public int read() {
+			ByteBuffer buffer = next();
+			return buffer == null ? -1 : buffer.get() & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			ByteBuffer buffer = next();
+			if (buffer == null) {
+				return -1;
+			}
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			ByteBuffer buffer = next();
+			return buffer == null ? 0 : buffer.remaining();
+		}
+
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+
+		@Override
+		public synchronized void mark(int readLimit) {
+			next();
+			markIndex = index;
+			markPosition = index < buffers.length ? buffers[index].position() : 0;
+		}
+
+		@Override
+		public synchronized void reset() {
+			for (int i = markIndex; i < buffers.length && i <= index; i++) {
+				buffers[i].position(i == markIndex ? markPosition : 0);
+			}
+			index = markIndex;
+		}
+	}
+}
+
+// vim: noet:ts=2:sw=2
@@ -0,0 +1,67 @@
+package kafka.s3.consumer;
+
+import java.io.IOException;
+
+/**
+ * Numbers the messages of one partition stream, so that chunk keys name the
+ * messages they hold: {@code <prefix>-<first>-<last>-<id>}.
+ *
+ * With a spool the next number is saved there whenever the stream's
+ * offsets have been committed (see {@link #save()}) and read back on
+ * start. Messages consumed again after a restart then get the numbers they
+ * had before, so chunks cut at the same messages get the same keys.
+ * Without a spool numbering starts from the clock, which keeps keys of a
+ * partition ordered across restarts but not reproducible.
+ *
+ * The sequence belongs to the stream, not to a Kafka partition: the Kafka
+ * 0.7 connector does not say which partition a message came from, and the
+ * saved sequence is named after the worker's stream index. It only follows
+ * one partition while that stream gets the same single partition every
+ * time, which is why deterministic keys need {@code kafka.exclusive}. Every
+ * hour and category of the stream draws from the same sequence. Only the
+ * stream's worker uses it.
+ */
+class MessageSequence {
+	private final Spool spool;
+	private final String topic;
+	private final int partition;
+	private long next;
+
+	public MessageSequence(Spool spool, String topic, int partition) throws IOException {
+		this.spool = spool;
+		this.topic = topic;
+		this.partition = partition;
+		if (spool != null) {
+			next = spool.readSequence(topic, partition);
+		} else {
+			// Room for a million messages per millisecond.
+			next = System.currentTimeMillis() << 20;
+		}
+	}
+
+	MessageSequence(long next) {
+		this.spool = null;
+		this.topic = null;
+		this.partition = 0;
+		this.next = next;
+	}
+
+	/**
+	 * @return the number of the next message.
+	 */
+	public long next() {
+		return next++;
+	}
+
+	/**
+	 * Records that every message numbered so far is committed, so numbering
+	 * resumes here after a restart.
+	 */
+	public void save() throws IOException {
+		if (spool != null) {
+			spool.writeSequence(topic, partition, next);
+		}
+	}
+}
+
+// vim: noet:ts=2:sw=2
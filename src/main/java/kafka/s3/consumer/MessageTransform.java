@@ -0,0 +1,299 @@
+package kafka.s3.consumer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Filters, projects and routes the JSON messages of one topic before they
+ * are archived.
+ *
+ * Rules are set per topic. {@code s3.transform.drop.<topic>} lists
+ * {@code path=value} conditions, and a message matching any of them is not
+ * written at all. {@code s3.transform.route.<topic>} lists
+ * {@code path=value:category} rules that write matching messages to the
+ * category instead of the topic (the first match in the message wins).
+ * {@code s3.transform.include.<topic>} keeps only the listed top level
+ * fields and {@code s3.transform.exclude.<topic>} removes fields by path.
+ *
+ * A path is a dotted chain of object fields ({@code a.b}); arrays are not
+ * looked into. A condition compares the text of a scalar value, so
+ * {@code level=debug}, {@code sampled=true} and {@code code=404} all match.
+ *
+ * Messages are scanned with a streaming parser, one token at a time, and
+ * objects that no rule looks into are skipped or copied as a whole. Without
+ * include or exclude rules the original bytes are written. Payloads that
+ * are not a JSON object are written unchanged to the topic.
+ *
+ * Not thread safe; every partition worker has its own.
+ */
+class MessageTransform {
+	private static final org.slf4j.Logger logger = LoggerFactory.getLogger(App.class);
+
+	private final JsonFactory factory = new JsonFactory();
+
+	// Values per path that drop a message, and categories per path and value.
+	private final Map<String, Set<String>> drops = new HashMap<String, Set<String>>();
+	private final Map<String, Map<String, String>> routes = new HashMap<String, Map<String, String>>();
+	// Top level fields to keep, or null for all, and paths to remove.
+	private final Set<String> includes;
+	private final Set<String> excludes;
+	// Objects that have to be scanned field by field.
+	private final Set<String> scanned = new HashSet<String>();
+
+	private String category;
+	private ByteBuffer result;
+
+	/**
+	 * @return the transform of the topic, or null if it has no rules.
+	 */
+	public static MessageTransform create(String topic, PropertyConfiguration conf) {
+		String[] drops = conf.getTransformDrops(topic);
+		String[] routes = conf.getTransformRoutes(topic);
+		String[] includes = conf.getTransformIncludes(topic);
+		String[] excludes = conf.getTransformExcludes(topic);
+		if (drops.length == 0 && routes.length == 0 && includes.length == 0
+				&& excludes.length == 0) {
+			return null;
+		}
+		return new MessageTransform(drops, routes, includes, excludes);
+	}
+
+	public MessageTransform(String[] drops, String[] routes, String[] includes,
+			String[] excludes) {
+		for (String rule : drops) {
+			String[] condition = parseCondition(Configuration.PROP_S3_TRANSFORM_DROP, rule);
+			Set<String> values = this.drops.get(condition[0]);
+			if (values == null) {
+				values = new HashSet<String>();
+				this.drops.put(condition[0], values);
+			}
+			values.add(condition[1]);
+			addScanned(condition[0]);
+		}
+
+		for (String rule : routes) {
+			int colon = rule.lastIndexOf(':');
+			if (colon < 0 || colon == rule.length() - 1) {
+				throw new RuntimeException("Invalid property " + Configuration.PROP_S3_TRANSFORM_ROUTE
+						+ ": " + rule + " is not path=value:category");
+			}
+			String[] condition = parseCondition(Configuration.PROP_S3_TRANSFORM_ROUTE,
+					rule.substring(0, colon));
+			Map<String, String> categories = this.routes.get(condition[0]);
+			if (categories == null) {
+				categories = new HashMap<String, String>();
+				this.routes.put(condition[0], categories);
+			}
+			if (!categories.containsKey(condition[1])) {
+				categories.put(condition[1], rule.substring(colon + 1).trim());
+			}
+			addScanned(condition[0]);
+		}
+
+		this.includes = includes.length > 0 ? trimmed(includes) : null;
+		this.excludes = trimmed(excludes);
+		for (String path : this.excludes) {
+			addScanned(path);
+		}
+	}
+
+	private static String[] parseCondition(String prop, String rule) {
+		int equals = rule.indexOf('=');
+		if (equals <= 0) {
+			throw new RuntimeException("Invalid property " + prop + ": " + rule
+					+ " is not path=value");
+		}
+		return new String[] { rule.substring(0, equals).trim(), rule.substring(equals + 1).trim() };
+	}
+
+	private static Set<String> trimmed(String[] fields) {
+		Set<String> result = new HashSet<String>();
+		for (String field : fields) {
+			result.add(field.trim());
+		}
+		return result;
+	}
+
+	// Marks the objects on the way to path.
+	private void addScanned(String path) {
+		int dot = path.indexOf('.');
+		while (dot > 0) {
+			scanned.add(path.substring(0, dot));
+			dot = path.indexOf('.', dot + 1);
+		}
+	}
+
+	private boolean isProjecting() {
+		return includes != null || !excludes.isEmpty();
+	}
+
+	/**
+	 * Applies the rules to a payload positioned at its leading timestamp.
+	 *
+	 * @return false if the message is dropped. Otherwise
+	 *         {@link #getPayload()} and {@link #getCategory()} tell what to
+	 *         write where.
+	 */
+	public boolean apply(ByteBuffer payload) throws IOException {
+		category = null;
+		result = payload;
+
+		byte[] bytes;
+		int offset;
+		int length = payload.remaining() - 8;
+		if (payload.hasArray()) {
+			bytes = payload.array();
+			offset = payload.arrayOffset() + payload.position() + 8;
+		} else {
+			bytes = new byte[length];
+			ByteBuffer body = payload.duplicate();
+			body.position(body.position() + 8);
+			body.get(bytes);
+			offset = 0;
+		}
+
+		// A new buffer each time, since sinks may queue the payload.
+		Output output = null;
+		JsonGenerator generator = null;
+		if (isProjecting()) {
+			output = new Output(length + 8);
+			for (int i = 0; i < 8; i++) {
+				output.write(payload.get(payload.position() + i));
+			}
+			generator = factory.createGenerator(output);
+		}
+
+		JsonParser parser = factory.createParser(bytes, offset, length);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				return true;
+			}
+			if (!scanObject(parser, null, generator)) {
+				return false;
+			}
+			if (generator != null) {
+				generator.flush();
+				result = output.toByteBuffer();
+			}
+		} catch (IOException e) {
+			// Not JSON, kept as it is.
+			logger.debug("Could not parse message, writing it unchanged", e);
+			category = null;
+		} finally {
+			parser.close();
+			if (generator != null) {
+				generator.close();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the message to write, starting with its timestamp.
+	 */
+	public ByteBuffer getPayload() {
+		return result;
+	}
+
+	/**
+	 * @return the category to write the message to, or null for the topic.
+	 */
+	public String getCategory() {
+		return category;
+	}
+
+	/**
+	 * Scans the fields of the object the parser is at, writing the kept ones
+	 * to {@code generator} unless it is null.
+	 *
+	 * @return false if the message is dropped.
+	 */
+	private boolean scanObject(JsonParser parser, String parent, JsonGenerator generator)
+			throws IOException {
+		if (generator != null) {
+			generator.writeStartObject();
+		}
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			String path = parent == null ? name : parent + "." + name;
+			JsonToken token = parser.nextToken();
+
+			JsonGenerator field = generator;
+			if (field != null && (excludes.contains(path)
+					|| (parent == null && includes != null && !includes.contains(name)))) {
+				field = null;
+			}
+			if (field != null) {
+				field.writeFieldName(name);
+			}
+
+			if (token == JsonToken.START_OBJECT && scanned.contains(path)) {
+				if (!scanObject(parser, path, field)) {
+					return false;
+				}
+			} else if (token.isScalarValue()) {
+				if (!matchValue(path, parser)) {
+					return false;
+				}
+				if (field != null) {
+					field.copyCurrentEvent(parser);
+				}
+			} else if (field != null) {
+				field.copyCurrentStructure(parser);
+			} else {
+				parser.skipChildren();
+			}
+		}
+		if (generator != null) {
+			generator.writeEndObject();
+		}
+		return true;
+	}
+
+	/**
+	 * @return false if the scalar at {@code path} drops the message.
+	 */
+	private boolean matchValue(String path, JsonParser parser) throws IOException {
+		Set<String> dropped = drops.get(path);
+		Map<String, String> categories = category == null ? routes.get(path) : null;
+		if (dropped == null && categories == null) {
+			return true;
+		}
+		String value = parser.getText();
+		if (dropped != null && dropped.contains(value)) {
+			return false;
+		}
+		if (categories != null) {
+			category = categories.get(value);
+		}
+		return true;
+	}
+
+	/**
+	 * Holds a projected message, which is then written straight from its
+	 * buffer.
+	 */
+	private static class Output extends ByteArrayOutputStream {
+		Output(int size) {
+			super(size);
+		}
+
+		ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+	}
+}
+
+// vim: noet:ts=2:sw=2
@@ -3,54 +3,229 @@ package kafka.s3.consumer;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import kafka.message.Message;
 import kafka.message.MessageAndMetadata;
-import org.apache.commons.lang.time.DateUtils;
+import org.apache.parquet.schema.MessageType;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.Gauge;
+
 class MultiS3JsonFileSink implements Sink, Observer {
 	private static final org.slf4j.Logger logger = LoggerFactory.getLogger(App.class);
 
-	private Map<Date, S3JsonFileSink> fileSinkPartitions;
+	private static final long SECONDS_PER_HOUR = 3600L;
+	// A partition counts as idle after the lateness allowance, but no sooner.
+	private static final long MIN_IDLE_MILLIS = 60000L;
+
+	// Keyed by hours since the epoch, in access order. The current sink is
+	// not looked up per message, but nothing else is touched while it is
+	// current, so the eldest entry is still the least recently written.
+	private LinkedHashMap<Long, S3JsonFileSink> fileSinkPartitions;
+
+	// Most messages land in the same hour as the one before, so the last sink
+	// is remembered to skip the (boxing) map lookup.
+	private long currentHour = -1;
+	private S3JsonFileSink currentSink;
+
+	// Open sinks ordered by lease deadline. checkFileLease runs after every
+	// message, so it only compares the clock against the earliest deadline.
+	private PriorityQueue<S3JsonFileSink> leases = new PriorityQueue<S3JsonFileSink>(
+			11, new Comparator<S3JsonFileSink>() {
+				@Override
+				public int compare(S3JsonFileSink a, S3JsonFileSink b) {
+					long x = a.getLeaseDeadline();
+					long y = b.getLeaseDeadline();
+					return (x < y) ? -1 : ((x == y) ? 0 : 1);
+				}
+			});
+	private long nextDeadline = Long.MAX_VALUE;
 	private String topic;
 	private int partition;
-	private int uploads;
+	private final AtomicInteger uploads = new AtomicInteger();
 	private PropertyConfiguration conf;
 	private Observer obs;
+	private UploadSequencer sequencer;
+	private MessageSequence sequence;
+	private SinkMetrics metrics;
+	private MessageType parquetSchema;
+	private KeyLayout layout;
+	private FileLease lease;
+	private int maxSinks;
+	private OpenSinkLimit openSinks;
 
+	// Event-time watermark, only tracked with hour markers. Hours before
+	// closedBefore have been uploaded and reported. Category sinks follow
+	// the watermark of their partition's sink, the leader.
+	private HourMarkers markers;
+	private String category;
+	private MultiS3JsonFileSink leader;
+	private final List<MultiS3JsonFileSink> followers = new ArrayList<MultiS3JsonFileSink>();
+	private long lateness;
+	private long maxEventTime;
+	private boolean appended;
+	private long lastAppend = System.currentTimeMillis();
+	private long closedBefore;
 
-	public MultiS3JsonFileSink(String topic, int partition, PropertyConfiguration conf) throws IOException {
+
+	/**
+	 * @param markers receives the hours this partition has closed, or null to
+	 *        close hours only by lease.
+	 */
+	public MultiS3JsonFileSink(String topic, int partition, PropertyConfiguration conf,
+			S3Uploader uploader, OpenSinkLimit openSinks, SinkMetrics metrics, HourMarkers markers)
+			throws IOException {
+		this(topic, null, partition, conf, new UploadSequencer(uploader, metrics),
+				new MessageSequence(uploader.getSpool(), topic, partition), openSinks, markers);
+	}
+
+	/**
+	 * Writes the messages a {@link MessageTransform} routes to
+	 * {@code category} in the key layout of a topic of that name. Sinks that
+	 * share the sequencer of a partition report its uploads in order, and
+	 * those that share its message sequence number its messages together.
+	 */
+	MultiS3JsonFileSink(String topic, String category, int partition, PropertyConfiguration conf,
+			UploadSequencer sequencer, MessageSequence sequence, OpenSinkLimit openSinks,
+			HourMarkers markers) throws IOException {
 		this.topic = topic;
 		this.partition = partition;
 		this.conf = conf;
+		this.openSinks = openSinks;
+		this.metrics = sequencer.getMetrics();
+		this.maxSinks = conf.getMaxSinksPerPartition(topic);
+		this.markers = markers;
+		this.category = category;
+		this.lateness = conf.getWatermarkLateness();
+		this.sequencer = sequencer;
+		this.sequence = sequence;
+		this.layout = new KeyLayout(topic, category, conf);
+		this.lease = new FileLease(topic, conf);
+		if (category == null) {
+			metrics.register("filelease", new Gauge<Long>() {
+				@Override
+				public Long getValue() {
+					return lease.get();
+				}
+			});
+		}
 
-		this.fileSinkPartitions = new HashMap<Date, S3JsonFileSink>();
+		if (conf.isParquetFormat(topic)) {
+			parquetSchema = S3ParquetFileSink.loadSchema(conf.getParquetSchemaFile(topic));
+		}
+
+		this.fileSinkPartitions = new LinkedHashMap<Long, S3JsonFileSink>(16, 0.75f, true);
 	}
 
 	public long append(MessageAndMetadata<Message> msgAndMetadata) throws IOException {
-		ByteBuffer buffer = msgAndMetadata.message().payload();
+		return append(msgAndMetadata.message().payload());
+	}
+
+	/**
+	 * Appends a payload positioned at its leading timestamp.
+	 */
+	long append(ByteBuffer buffer) throws IOException {
+		// Grab the timestamp (first 8 bytes, seconds since the epoch)
+		long timestamp = buffer.getLong();
+		long hour = timestamp / SECONDS_PER_HOUR;
+		metrics.eventTime(timestamp);
+		MultiS3JsonFileSink watermarked = leader != null ? leader : this;
+		if (timestamp > watermarked.maxEventTime) {
+			watermarked.maxEventTime = timestamp;
+		}
+		watermarked.appended = true;
+		if (hour < watermarked.closedBefore) {
+			metrics.lateMessage();
+		}
+
+		if (currentSink == null || hour != currentHour) {
+			currentSink = getSink(hour);
+			currentHour = hour;
+		}
 
-		// Grab the timestamp (first 8 bytes)
-		Date messagePartitionDate = DateUtils.truncate(new Date(buffer.getLong() * 1000), Calendar.HOUR);
+		return currentSink.append(buffer, sequence.next());
+	}
 
-		S3JsonFileSink sink = fileSinkPartitions.get(messagePartitionDate);
+	private S3JsonFileSink getSink(long hour) throws IOException {
+		S3JsonFileSink sink = fileSinkPartitions.get(hour);
 
 		if (sink == null) {
+			while (maxSinks > 0 && fileSinkPartitions.size() >= maxSinks) {
+				evictEldest();
+			}
+			// Over the process limit a new sink replaces one of ours, so this
+			// partition at least does not add to the total. Without sinks of its
+			// own it still gets one.
+			while (!openSinks.tryOpen()) {
+				if (fileSinkPartitions.isEmpty()) {
+					openSinks.opened();
+					break;
+				}
+				evictEldest();
+			}
+
+			Date messagePartitionDate = new Date(hour * SECONDS_PER_HOUR * 1000);
 			logger.info("Creating new S3JsonFileSync for partition: {}", messagePartitionDate);
-			sink = new S3JsonFileSink(topic, partition, conf, messagePartitionDate);
-			sink.addObserver(obs);
+			try {
+				if (parquetSchema != null) {
+					sink = new S3ParquetFileSink(topic, partition, conf, layout, lease,
+							messagePartitionDate, sequencer, sequence, parquetSchema);
+				} else {
+					sink = new S3JsonFileSink(topic, partition, conf, layout, lease,
+							messagePartitionDate, sequencer, sequence);
+				}
+			} catch (IOException e) {
+				openSinks.closed();
+				throw e;
+			} catch (RuntimeException e) {
+				openSinks.closed();
+				throw e;
+			}
+			if (obs != null) {
+				sink.addObserver(obs);
+			}
 			sink.addObserver(this);
-			fileSinkPartitions.put(messagePartitionDate, sink);
+			fileSinkPartitions.put(hour, sink);
+			if (markers != null) {
+				markers.opened(category, hour);
+			}
+			leases.add(sink);
+			metrics.sinkOpened();
+			nextDeadline = Math.min(nextDeadline, sink.getLeaseDeadline());
 		}
+		return sink;
+	}
 
-		return sink.append(msgAndMetadata);
+	/**
+	 * Uploads the chunk of the least recently written sink and drops it.
+	 */
+	private void evictEldest() {
+		S3JsonFileSink sink = fileSinkPartitions.values().iterator().next();
+		logger.info("Evicting sink for partition: {}", sink.getPartitionDate());
+		sink.flush(System.currentTimeMillis(), SinkMetrics.Rotation.EVICT);
+		// Not closed: its observers still have to hear about the upload that
+		// was just queued. With the chunk gone nothing else is held open.
+		leases.remove(sink);
+		removeSink(sink);
+		metrics.sinkEvicted();
+	}
+
+	private void removeSink(S3JsonFileSink sink) {
+		openSinks.closed();
+		metrics.sinkClosed();
+		fileSinkPartitions.remove(sink.getPartitionDate().getTime() / 1000 / SECONDS_PER_HOUR);
+		if (sink == currentSink) {
+			currentSink = null;
+		}
 	}
 
 	public void addObserver(Observer o) {
@@ -58,30 +233,154 @@ class MultiS3JsonFileSink implements Sink, Observer {
 	}
 
 	public void checkFileLease() {
-		ArrayList<Date> toRemove = new ArrayList<Date>();
+		sequencer.checkFailure();
+
+		long now = System.currentTimeMillis();
+		if (markers != null && leader == null) {
+			checkWatermark(now);
+		}
+		if (now <= nextDeadline) {
+			return;
+		}
 
-		for (Map.Entry<Date, S3JsonFileSink> entry : fileSinkPartitions.entrySet()) {
-			S3JsonFileSink sink = entry.getValue();
-			sink.checkFileLease();
+		while (!leases.isEmpty() && now > leases.peek().getLeaseDeadline()) {
+			S3JsonFileSink sink = leases.poll();
+			sink.expireLease(now);
 			if (sink.isStale()) {
+				logger.debug("Removing stale partition: {}", sink.getPartitionDate());
 				sink.close();
-				toRemove.add(entry.getKey());
+				removeSink(sink);
+			} else {
+				leases.add(sink);
 			}
 		}
 
-		for (Date d : toRemove) {
-			logger.debug("Removing stale partition: {}", d);
-			fileSinkPartitions.remove(d);
+		nextDeadline = leases.isEmpty() ? Long.MAX_VALUE : leases.peek().getLeaseDeadline();
+	}
+
+	/**
+	 * Closes the hours the watermark has passed. It trails the newest
+	 * timestamp by the lateness allowance, or the clock once the partition
+	 * has been idle that long, so quiet partitions do not hold hours open.
+	 */
+	private void checkWatermark(long now) {
+		if (appended) {
+			lastAppend = now;
+			appended = false;
+		}
+		long watermark = maxEventTime - lateness;
+		if (now - lastAppend > Math.max(lateness * 1000, MIN_IDLE_MILLIS)) {
+			watermark = Math.max(watermark, now / 1000 - lateness);
+		}
+		long closeBefore = watermark / SECONDS_PER_HOUR;
+		if (closeBefore > closedBefore) {
+			closeHours(closeBefore, now);
+		}
+	}
+
+	/**
+	 * Makes {@code follower}, a category sink of the same partition and
+	 * sequencer, close its hours together with this sink's and count its
+	 * messages in the watermark, so the hour markers cover its hours too.
+	 */
+	void addFollower(MultiS3JsonFileSink follower) {
+		follower.leader = this;
+		follower.closedBefore = closedBefore;
+		followers.add(follower);
+	}
+
+	private void closeHours(long closeBefore, long now) {
+		for (MultiS3JsonFileSink follower : followers) {
+			follower.closeSinks(closeBefore, now);
+		}
+		closeSinks(closeBefore, now);
+
+		final long closed = closeBefore - 1;
+		sequencer.afterPending(new Runnable() {
+			@Override
+			public void run() {
+				markers.closed(partition, closed);
+			}
+		});
+	}
+
+	/**
+	 * Uploads the chunks of the hours before {@code closeBefore}.
+	 */
+	private void closeSinks(long closeBefore, long now) {
+		for (Map.Entry<Long, S3JsonFileSink> entry
+				: new ArrayList<Map.Entry<Long, S3JsonFileSink>>(fileSinkPartitions.entrySet())) {
+			if (entry.getKey() < closeBefore) {
+				S3JsonFileSink sink = entry.getValue();
+				logger.info("Watermark passed partition: {}", sink.getPartitionDate());
+				sink.flush(now, SinkMetrics.Rotation.WATERMARK);
+				// Not closed, like evicted sinks.
+				leases.remove(sink);
+				removeSink(sink);
+				metrics.hourClosed();
+			}
 		}
+		nextDeadline = leases.isEmpty() ? Long.MAX_VALUE : leases.peek().getLeaseDeadline();
+
+		closedBefore = closeBefore;
 	}
 
 	public int getUploads() {
-		return uploads;
+		return uploads.get();
+	}
+
+	UploadSequencer getSequencer() {
+		return sequencer;
+	}
+
+	MessageSequence getMessageSequence() {
+		return sequence;
+	}
+
+	HourMarkers getMarkers() {
+		return markers;
+	}
+
+	/**
+	 * Keeps the hourly sinks, so the next messages of an hour go on without
+	 * opening a new one. Every flushed sink starts a new lease.
+	 */
+	public void flush() {
+		long now = System.currentTimeMillis();
+		for (S3JsonFileSink sink : fileSinkPartitions.values()) {
+			logger.info("Flushing sink for partition: {}", sink.getPartitionDate());
+			sink.flush(now);
+		}
+		// The deadlines moved, so the heap is rebuilt.
+		leases.clear();
+		leases.addAll(fileSinkPartitions.values());
+		nextDeadline = leases.isEmpty() ? Long.MAX_VALUE : leases.peek().getLeaseDeadline();
+	}
+
+	public void awaitUploads() throws InterruptedException {
+		sequencer.awaitCompletion();
+	}
+
+	public int getPendingUploads() {
+		return sequencer.getPending();
+	}
+
+	public void close() {
+		for (S3JsonFileSink sink : new ArrayList<S3JsonFileSink>(fileSinkPartitions.values())) {
+			sink.close();
+			removeSink(sink);
+		}
+		leases.clear();
+		nextDeadline = Long.MAX_VALUE;
+	}
+
+	public void committed() throws IOException {
+		sequence.save();
 	}
 
 	@Override
 	public void update(Observable obs, Object arg) {
-		uploads++;
+		uploads.incrementAndGet();
 	}
 }
 
@@ -0,0 +1,276 @@
+package kafka.s3.consumer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/**
+ * Chunk that streams its bytes into an S3 multipart upload while it is
+ * still being written.
+ *
+ * Every time {@code partSize} bytes have accumulated they are shipped as a
+ * part on the uploader's part pool, so committing the chunk only has to
+ * send the tail and call completeMultipartUpload. Chunks that never fill a
+ * part fall back to a plain PUT. The key has to be fixed when the chunk is
+ * opened because the upload is initiated with it.
+ *
+ * The part buffer starts small and doubles up to {@code partSize}, so the
+ * many chunks a lease cuts early do not each hold a full part. The upload
+ * is initiated on the part pool when the first part is shipped, ahead of
+ * that part, so the writing thread never waits for S3.
+ */
+class MultipartChunk extends OutputStream implements Chunk {
+	private static final org.slf4j.Logger logger = LoggerFactory.getLogger(App.class);
+
+	private static final int INITIAL_BUFFER = 64 * 1024;
+
+	private final S3Uploader uploader;
+	private final AmazonS3 awsClient;
+	private final String bucket;
+	private final String key;
+	private final int partSize;
+
+	private byte[] buffer;
+	private int count;
+	private long size;
+	private Future<String> uploadId;
+	private final List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+	// Set by discard, so parts still queued are not sent.
+	private volatile boolean discarded;
+
+	public MultipartChunk(S3Uploader uploader, AmazonS3 awsClient, String bucket,
+			String key, int partSize) {
+		this.uploader = uploader;
+		this.awsClient = awsClient;
+		this.bucket = bucket;
+		this.key = key;
+		this.partSize = partSize;
+		this.buffer = new byte[Math.min(partSize, INITIAL_BUFFER)];
+	}
+
+	@Override
+	public OutputStream getStream() {
+		return this;
+	}
+
+	@Override
+	public String getKey() {
+		return key;
+	}
+
+	@Override
+	public long getSize() {
+		return size;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count == buffer.length) {
+			makeRoom();
+		}
+		buffer[count++] = (byte) b;
+		size++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		size += len;
+		while (len > 0) {
+			if (count == buffer.length) {
+				makeRoom();
+			}
+			int n = Math.min(len, buffer.length - count);
+			System.arraycopy(b, off, buffer, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Grows the buffer up to a part, or ships the full part.
+	 */
+	private void makeRoom() {
+		if (buffer.length < partSize) {
+			byte[] grown = new byte[(int) Math.min(partSize, 2L * buffer.length)];
+			System.arraycopy(buffer, 0, grown, 0, count);
+			buffer = grown;
+		} else {
+			flushPart();
+			buffer = new byte[Math.min(partSize, INITIAL_BUFFER)];
+		}
+	}
+
+	private void flushPart() {
+		if (uploadId == null) {
+			uploader.started(this);
+			// Queued ahead of the first part, which waits for it.
+			uploadId = uploader.submitPart(new Callable<String>() {
+				@Override
+				public String call() {
+					logger.debug("Initiating multipart upload for {}", key);
+					return awsClient.initiateMultipartUpload(
+							new InitiateMultipartUploadRequest(bucket, key)).getUploadId();
+				}
+			});
+		}
+
+		final byte[] data = buffer;
+		final int length = count;
+		final int partNumber = parts.size() + 1;
+		parts.add(uploader.submitPart(new Callable<PartETag>() {
+			@Override
+			public PartETag call() throws Exception {
+				if (discarded) {
+					return null;
+				}
+				logger.debug("Uploading part {} of {}", partNumber, key);
+				return awsClient.uploadPart(new UploadPartRequest()
+						.withBucketName(bucket).withKey(key).withUploadId(uploadId.get())
+						.withPartNumber(partNumber).withPartSize(length)
+						.withInputStream(new ByteArrayInputStream(data, 0, length)))
+						.getPartETag();
+			}
+		}));
+
+		buffer = null;
+		count = 0;
+	}
+
+	@Override
+	public Runnable commit(String key, long lastSequence) {
+		if (uploadId == null) {
+			final byte[] data = buffer;
+			final int length = count;
+			buffer = null;
+			return new Runnable() {
+				@Override
+				public void run() {
+					logger.debug("Uploading to s3 {}", MultipartChunk.this.key);
+					ObjectMetadata metadata = new ObjectMetadata();
+					metadata.setContentLength(length);
+					awsClient.putObject(bucket, MultipartChunk.this.key,
+							new ByteArrayInputStream(data, 0, length), metadata);
+				}
+			};
+		}
+
+		if (count > 0) {
+			flushPart();
+		}
+		buffer = null;
+
+		return new Runnable() {
+			@Override
+			public void run() {
+				List<PartETag> etags = new ArrayList<PartETag>(parts.size());
+				String id;
+				try {
+					id = uploadId.get();
+					for (Future<PartETag> part : parts) {
+						etags.add(part.get());
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					abort();
+					throw new RuntimeException("Interrupted while uploading " + MultipartChunk.this.key, e);
+				} catch (ExecutionException e) {
+					abort();
+					throw new RuntimeException("Part upload failed for " + MultipartChunk.this.key, e.getCause());
+				}
+				logger.debug("Completing multipart upload of {} ({} parts)",
+						MultipartChunk.this.key, etags.size());
+				awsClient.completeMultipartUpload(new CompleteMultipartUploadRequest(
+						bucket, MultipartChunk.this.key, id, etags));
+				uploader.finished(MultipartChunk.this);
+			}
+		};
+	}
+
+	@Override
+	public void discard() {
+		buffer = null;
+		if (uploadId != null) {
+			discarded = true;
+			// Queued behind the initiate and the parts, which it waits for.
+			uploader.submitPart(new Callable<Void>() {
+				@Override
+				public Void call() {
+					abort();
+					return null;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Aborts the upload once no part is running any more, since a part that
+	 * lands after the abort would be stored, and billed, regardless.
+	 */
+	private void abort() {
+		for (Future<PartETag> part : parts) {
+			try {
+				part.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (ExecutionException e) {
+				// Failed parts leave nothing behind.
+			}
+		}
+		try {
+			awsClient.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key,
+					uploadId.get()));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.warn("Interrupted before aborting multipart upload of {}", key, e);
+		} catch (ExecutionException e) {
+			// Never initiated, nothing to abort.
+			logger.debug("Multipart upload of {} was not initiated", key, e.getCause());
+		} catch (RuntimeException e) {
+			logger.warn("Could not abort multipart upload of {}", key, e);
+		}
+		uploader.finished(this);
+	}
+
+	/**
+	 * Aborts the upload without waiting for its parts, after the part pool
+	 * was shut down and queued parts will never run. A part that is still
+	 * being sent may land after the abort.
+	 */
+	void abortNow() {
+		discarded = true;
+		if (!uploadId.isDone()) {
+			logger.warn("Multipart upload of {} may have been left behind", key);
+		} else {
+			try {
+				awsClient.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key,
+						uploadId.get()));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				// Never initiated, nothing to abort.
+			} catch (RuntimeException e) {
+				logger.warn("Could not abort multipart upload of {}", key, e);
+			}
+		}
+		uploader.finished(this);
+	}
+}
+
+// vim: noet:ts=2:sw=2
@@ -0,0 +1,175 @@
+package kafka.s3.consumer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Commits the offsets of one topic at checkpoints where every message its
+ * workers have consumed is in S3.
+ *
+ * The Kafka 0.7 connector can only commit the position its streams have
+ * consumed, for all streams at once; MessageAndMetadata carries no offsets.
+ * So every {@code kafka.commit.interval.ms} a checkpoint is requested. Each
+ * worker, at its next step, flushes its open chunks, waits for their
+ * uploads and then pauses, see {@link #ready(Worker)}. Once all workers of
+ * the topic have paused, none of them holds a message that is not in S3,
+ * and the consumed position is committed on the shared commit thread. The
+ * workers are then resumed.
+ *
+ * A worker only notices a checkpoint between messages, so idle streams need
+ * a consumer timeout (see {@link TopicConsumer}). A rebalance still commits
+ * the consumed position on its own (KAFKA-919).
+ */
+class OffsetTracker {
+	private static final org.slf4j.Logger logger = LoggerFactory.getLogger(App.class);
+
+	/**
+	 * A worker that pauses at checkpoints.
+	 */
+	interface Worker {
+		/**
+		 * Called once the checkpoint the worker paused at is over.
+		 *
+		 * @param committed whether the offsets were written.
+		 */
+		void resume(boolean committed);
+	}
+
+	private final TopicConsumer consumer;
+	private final ScheduledExecutorService committer;
+	private final long interval;
+	private final int workers;
+	private final Timer commits;
+
+	private final List<Worker> paused = new ArrayList<Worker>();
+	private volatile boolean requested;
+	private boolean stopped;
+	private ScheduledFuture<?> scheduled;
+
+	public OffsetTracker(TopicConsumer consumer, int workers, ScheduledExecutorService committer,
+			PropertyConfiguration conf, MetricRegistry metrics) {
+		this.consumer = consumer;
+		this.committer = committer;
+		this.interval = conf.getCommitInterval();
+		this.workers = workers;
+		this.commits = metrics.timer(MetricRegistry.name(consumer.getTopic(), "commit"));
+	}
+
+	/**
+	 * Requests a checkpoint every commit interval.
+	 */
+	public synchronized void start() {
+		scheduled = committer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				request();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized void request() {
+		if (!stopped && !requested) {
+			logger.debug("Requesting checkpoint of {}", consumer.getTopic());
+			requested = true;
+		}
+	}
+
+	/**
+	 * @return whether the workers should flush and pause.
+	 */
+	public boolean isRequested() {
+		return requested;
+	}
+
+	/**
+	 * Pauses {@code worker}, which has flushed its chunks and seen them
+	 * uploaded. The last worker to pause triggers the commit. The worker must
+	 * not touch its stream or sink until it is resumed.
+	 *
+	 * @return false if there is no checkpoint to pause for (any more).
+	 */
+	public synchronized boolean ready(Worker worker) {
+		if (!requested || stopped) {
+			return false;
+		}
+		paused.add(worker);
+		if (paused.size() == workers) {
+			committer.execute(new Runnable() {
+				@Override
+				public void run() {
+					checkpoint();
+				}
+			});
+		}
+		return true;
+	}
+
+	private void checkpoint() {
+		synchronized (this) {
+			if (stopped) {
+				return;
+			}
+		}
+		boolean committed = commit();
+		List<Worker> resumed;
+		synchronized (this) {
+			requested = false;
+			resumed = new ArrayList<Worker>(paused);
+			paused.clear();
+		}
+		for (Worker worker : resumed) {
+			worker.resume(committed);
+		}
+	}
+
+	/**
+	 * Ends the checkpoints and resumes paused workers, which are expected to
+	 * see that they are stopping.
+	 */
+	public void stop() {
+		List<Worker> resumed;
+		synchronized (this) {
+			stopped = true;
+			requested = false;
+			if (scheduled != null) {
+				scheduled.cancel(false);
+			}
+			resumed = new ArrayList<Worker>(paused);
+			paused.clear();
+		}
+		for (Worker worker : resumed) {
+			worker.resume(false);
+		}
+	}
+
+	/**
+	 * Writes the consumed position to ZooKeeper. Only call it while no
+	 * worker holds a message that is not in S3: from a checkpoint, or after
+	 * all workers drained.
+	 *
+	 * @return whether the commit succeeded.
+	 */
+	boolean commit() {
+		logger.info("Committing offsets to zookeeper for {}", consumer.getTopic());
+		long start = System.nanoTime();
+		try {
+			consumer.commitOffsets();
+		} catch (RuntimeException e) {
+			logger.warn("Could not commit offsets for {}, retrying at the next checkpoint",
+					consumer.getTopic(), e);
+			return false;
+		}
+		commits.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		return true;
+	}
+}
+
+// vim: noet:ts=2:sw=2
@@ -0,0 +1,60 @@
+package kafka.s3.consumer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide count of open hourly sinks, checked against
+ * {@code s3.sinks.total}.
+ *
+ * Partitions only ever close their own sinks, so a partition that finds the
+ * limit reached evicts one of its sinks before opening another. A partition
+ * without sinks opens one anyway, so the total can exceed the limit by the
+ * number of such partitions.
+ */
+class OpenSinkLimit {
+	private final int max;
+	private final AtomicInteger open = new AtomicInteger();
+
+	/**
+	 * @param max open sinks allowed across all partitions, 0 for no limit.
+	 */
+	public OpenSinkLimit(int max) {
+		this.max = max;
+	}
+
+	/**
+	 * Counts a sink about to be opened if that stays within the limit. The
+	 * check and the count are one step, so concurrent partitions cannot
+	 * both take the last slot.
+	 *
+	 * @return false if the limit is reached and nothing was counted.
+	 */
+	public boolean tryOpen() {
+		while (true) {
+			int current = open.get();
+			if (max > 0 && current >= max) {
+				return false;
+			}
+			if (open.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Counts a sink opened regardless of the limit.
+	 */
+	public void opened() {
+		open.incrementAndGet();
+	}
+
+	public void closed() {
+		open.decrementAndGet();
+	}
+
+	public int getOpen() {
+		return open.get();
+	}
+}
+
+// vim: noet:ts=2:sw=2
@@ -0,0 +1,129 @@
+package kafka.s3.consumer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * pigz-style gzip: the stream is cut into fixed size blocks that are
+ * deflated concurrently, each into a complete gzip member, and written out
+ * in order. Concatenated members are a valid gzip file, so readers see no
+ * difference apart from a slightly worse ratio.
+ */
+public class ParallelGzipSinkStreamHandler implements SinkStreamHandler {
+  private final GzipSinkStreamHandler gzip;
+  private final ExecutorService executor;
+  private final int blockSize;
+  private final int maxPendingBlocks;
+
+  /**
+   * @param bufferSize of the deflater stream of each block.
+   * @param threads of {@code executor}; up to twice as many blocks of a
+   *        stream are compressed or waiting.
+   */
+  public ParallelGzipSinkStreamHandler(int level, int blockSize, int bufferSize,
+      ExecutorService executor, int threads) {
+    this.gzip = new GzipSinkStreamHandler(level, bufferSize);
+    this.executor = executor;
+    this.blockSize = blockSize;
+    this.maxPendingBlocks = threads * 2;
+  }
+
+  @Override
+  public OutputStream wrap(OutputStream out) throws IOException {
+    return new ParallelGzipOutputStream(out);
+  }
+
+  @Override
+  public String getExtension() {
+    return gzip.getExtension();
+  }
+
+  private class ParallelGzipOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final LinkedList<Future<ByteArrayOutputStream>> pending =
+        new LinkedList<Future<ByteArrayOutputStream>>();
+    private byte[] block = new byte[blockSize];
+    private int count;
+    private boolean closed;
+
+    ParallelGzipOutputStream(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (count == block.length) {
+        submitBlock();
+      }
+      block[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (count == block.length) {
+          submitBlock();
+        }
+        int n = Math.min(len, block.length - count);
+        System.arraycopy(b, off, block, count, n);
+        count += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    private void submitBlock() throws IOException {
+      final byte[] data = block;
+      final int length = count;
+      pending.addLast(executor.submit(new Callable<ByteArrayOutputStream>() {
+        @Override
+        public ByteArrayOutputStream call() throws IOException {
+          ByteArrayOutputStream member = new ByteArrayOutputStream(length / 2 + 64);
+          OutputStream gout = gzip.wrap(member);
+          gout.write(data, 0, length);
+          gout.close();
+          return member;
+        }
+      }));
+      block = new byte[blockSize];
+      count = 0;
+
+      while (pending.size() > maxPendingBlocks) {
+        writeMember();
+      }
+    }
+
+    private void writeMember() throws IOException {
+      try {
+        pending.removeFirst().get().writeTo(out);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while compressing block");
+      } catch (ExecutionException e) {
+        throw new IOException("Compressing block failed", e.getCause());
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (count > 0) {
+        submitBlock();
+      }
+      while (!pending.isEmpty()) {
+        writeMember();
+      }
+      block = null;
+      out.close();
+    }
+  }
+}
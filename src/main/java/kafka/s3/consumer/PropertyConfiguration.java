@@ -1,8 +1,13 @@
 package kafka.s3.consumer;
 
+import java.io.File;
 import java.net.URL;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TimeZone;
 
 import org.apache.commons.configuration.CompositeConfiguration;
 import org.apache.commons.configuration.ConfigurationException;
@@ -17,14 +22,69 @@ public class PropertyConfiguration implements Configuration {
 
 	private static final org.slf4j.Logger logger = LoggerFactory.getLogger(PropertyConfiguration.class);
 
-  private CompositeConfiguration config = new CompositeConfiguration();
+	private final URL propsLocation;
+	private long lastModified;
+
+	// Replaced as a whole by reloadIfModified, together with the maps parsed
+	// from it.
+	private volatile CompositeConfiguration config;
+	private volatile Map<String, Integer> topicsAndPartitions;
+	private volatile Map<String, Long> topicSizes;
 
 	public PropertyConfiguration(URL propsLocation) throws ConfigurationException {
-    config.addConfiguration(new SystemConfiguration());
-    config.addConfiguration(new PropertiesConfiguration(propsLocation));
-		if (config.isEmpty()) {
+		this.propsLocation = propsLocation;
+		this.lastModified = getLastModified();
+		load();
+	}
+
+	private void load() throws ConfigurationException {
+		CompositeConfiguration loaded = new CompositeConfiguration();
+    loaded.addConfiguration(new SystemConfiguration());
+    loaded.addConfiguration(new PropertiesConfiguration(propsLocation));
+		if (loaded.isEmpty()) {
 			throw new RuntimeException("Empty config");
 		}
+		// Parsed before anything is replaced, so a broken file changes nothing.
+		Map<String, Integer> topics = new HashMap<String, Integer>();
+		for (Map.Entry<String, String> entry : getConfigMap(loaded, PROP_KAFKA_TOPICS).entrySet()) {
+			topics.put(entry.getKey(), Integer.valueOf(entry.getValue()));
+		}
+		Map<String, Long> sizes = new HashMap<String, Long>();
+		for (Map.Entry<String, String> entry : getConfigMap(loaded, PROP_S3_TOPIC_SIZES).entrySet()) {
+			sizes.put(entry.getKey(), Long.valueOf(entry.getValue()));
+		}
+
+		topicsAndPartitions = Collections.unmodifiableMap(topics);
+		topicSizes = Collections.unmodifiableMap(sizes);
+		config = loaded;
+	}
+
+	/**
+	 * Loads the properties file again if it changed since it was last read.
+	 * Settings are read from the new file from then on; objects that copied
+	 * a setting when they were created keep the old value.
+	 *
+	 * @return whether the file was reloaded.
+	 */
+	public synchronized boolean reloadIfModified() throws ConfigurationException {
+		long modified = getLastModified();
+		if (modified == lastModified) {
+			return false;
+		}
+		load();
+		lastModified = modified;
+		return true;
+	}
+
+	/**
+	 * @return the modification time of the properties file, or 0 if it is
+	 *         not a file (e.g. inside the jar) and cannot change.
+	 */
+	private long getLastModified() {
+		if (!"file".equals(propsLocation.getProtocol())) {
+			return 0L;
+		}
+		return new File(propsLocation.getPath()).lastModified();
 	}
 
   public String getString(String s) {
@@ -39,15 +99,15 @@ public class PropertyConfiguration implements Configuration {
 		return config.getInt(s);
 	}
 
-	private Map<String, Integer> getConfigMap(String prop) {
-		HashMap<String, Integer> result = new HashMap<String, Integer>();
+	private static Map<String, String> getConfigMap(CompositeConfiguration config, String prop) {
+		HashMap<String, String> result = new HashMap<String, String>();
 		String[] fields = config.getStringArray(prop);
 		for (String topics : fields) {
 			String[] fieldPart = topics.trim().split(":");
 			if (result.containsKey(fieldPart[0])) {
 				throw new RuntimeException("Duplicate field " + fieldPart[0]);
 			}
-			result.put(fieldPart[0], Integer.valueOf(fieldPart[1]));
+			result.put(fieldPart[0], fieldPart[1]);
 		}
 		return result;
 	}
@@ -76,6 +136,17 @@ public class PropertyConfiguration implements Configuration {
 		return s3Bucket;
 	}
 
+	/**
+	 * @return the bucket of the topic, {@code s3.bucket.<topic>} if set.
+	 */
+	public String getS3Bucket(String topic) {
+		String s3Bucket = config.getString(PROP_S3_BUCKET + "." + topic);
+		if (s3Bucket == null || s3Bucket.isEmpty()) {
+			return getS3Bucket();
+		}
+		return s3Bucket;
+	}
+
 	protected String getS3Prefix() {
 		String s3Prefix = config.getString(PROP_S3_PREFIX);
 		if (s3Prefix == null || s3Prefix.isEmpty()) {
@@ -84,27 +155,565 @@ public class PropertyConfiguration implements Configuration {
 		return s3Prefix.replaceAll("/$", "");
 	}
 
+	/**
+	 * @return a directory to store objects in instead of S3, or null.
+	 */
+	public String getS3LocalDir() {
+		String dir = config.getString(PROP_S3_LOCAL_DIR);
+		if (dir == null || dir.isEmpty()) {
+			return null;
+		}
+		return dir;
+	}
+
+	/**
+	 * @return milliseconds every request to the local stand-in takes.
+	 */
+	public long getS3LocalLatency() {
+		return config.getLong(PROP_S3_LOCAL_LATENCY, 0L);
+	}
+
+	/**
+	 * @return probability of a request attempt to the local stand-in
+	 *         failing with SlowDown.
+	 */
+	public double getS3LocalErrorRate() {
+		return config.getDouble(PROP_S3_LOCAL_ERROR_RATE, 0.0);
+	}
+
+	/**
+	 * @return an S3 compatible endpoint to use instead of AWS, or null.
+	 */
+	public String getS3Endpoint() {
+		String endpoint = config.getString(PROP_S3_ENDPOINT);
+		if (endpoint == null || endpoint.isEmpty()) {
+			return null;
+		}
+		return endpoint;
+	}
+
+	public boolean getS3PathStyleAccess() {
+		return config.getBoolean(PROP_S3_PATH_STYLE, false);
+	}
+
+	/**
+	 * @return the key layout of the topic, see {@link KeyLayout}.
+	 */
+	public String getS3KeyTemplate(String topic) {
+		String template = config.getString(PROP_S3_KEY_TEMPLATE + "." + topic,
+				config.getString(PROP_S3_KEY_TEMPLATE, KeyLayout.DEFAULT_TEMPLATE));
+		if (!template.contains("{time}") || !template.contains("{partition}")) {
+			throw new RuntimeException("Invalid property " + PROP_S3_KEY_TEMPLATE + ": " + template
+					+ " needs {time} and {partition}");
+		}
+		return template;
+	}
+
+	public int getS3KeyShards(String topic) {
+		int shards = config.getInt(PROP_S3_KEY_SHARDS + "." + topic,
+				config.getInt(PROP_S3_KEY_SHARDS, DEFAULT_S3_KEY_SHARDS));
+		if (shards < 1) {
+			throw new RuntimeException("Invalid property " + PROP_S3_KEY_SHARDS + ": " + shards);
+		}
+		return shards;
+	}
+
+	/**
+	 * @return whether request rates are cut when S3 answers SlowDown.
+	 */
+	public boolean isS3Throttle() {
+		return config.getBoolean(PROP_S3_THROTTLE, true);
+	}
+
+	/**
+	 * @return requests per second the throttle never goes below.
+	 */
+	public double getS3ThrottleMinRate() {
+		return config.getDouble(PROP_S3_THROTTLE_MIN_RATE, DEFAULT_S3_THROTTLE_MIN_RATE);
+	}
+
+	/**
+	 * @return requests per second the throttled rate grows by each second
+	 *         without SlowDown.
+	 */
+	public double getS3ThrottleIncrease() {
+		return config.getDouble(PROP_S3_THROTTLE_INCREASE, DEFAULT_S3_THROTTLE_INCREASE);
+	}
+
+	public int getS3MaxConnections() {
+		return config.getInt(PROP_S3_MAX_CONNECTIONS, DEFAULT_S3_MAX_CONNECTIONS);
+	}
+
+	public int getS3ConnectionTimeout() {
+		return config.getInt(PROP_S3_CONNECTION_TIMEOUT, DEFAULT_S3_CONNECTION_TIMEOUT);
+	}
+
+	public int getS3SocketTimeout() {
+		return config.getInt(PROP_S3_SOCKET_TIMEOUT, DEFAULT_S3_SOCKET_TIMEOUT);
+	}
+
+	public boolean getS3TcpKeepAlive() {
+		return config.getBoolean(PROP_S3_TCP_KEEP_ALIVE, true);
+	}
+
+	public int getS3MaxRetries() {
+		return config.getInt(PROP_S3_MAX_RETRIES, DEFAULT_S3_MAX_RETRIES);
+	}
+
+	public int getS3RetryBaseDelay() {
+		return config.getInt(PROP_S3_RETRY_BASE_DELAY, DEFAULT_S3_RETRY_BASE_DELAY);
+	}
+
+	public int getS3RetryMaxBackoff() {
+		return config.getInt(PROP_S3_RETRY_MAX_BACKOFF, DEFAULT_S3_RETRY_MAX_BACKOFF);
+	}
+
 	protected Map<String, Integer> getTopicsAndPartitions() {
-		return getConfigMap(PROP_KAFKA_TOPICS);
+		return topicsAndPartitions;
 	}
 
-	public int getS3MaxObjectSize() {
-		return config.getInt(PROP_S3_MAX_OBJECT_SIZE, DEFAULT_S3_SIZE);
+	/**
+	 * @return the fetch size of the topic's consumer, {@code fetch.size.<topic>}
+	 *         if set.
+	 */
+	public String getFetchSize(String topic) {
+		return config.getString(DEFAULT_FETCH_SIZE + "." + topic,
+				config.getString(DEFAULT_FETCH_SIZE));
 	}
 
-	public int getKafkaMaxMessageSize() {
-		return config.getInt(PROP_KAFKA_MAX_MESSAGE_SIZE, DEFAULT_MSG_SIZE);
+	/**
+	 * @return milliseconds a shutdown waits for open chunks to be uploaded.
+	 */
+	public long getShutdownTimeout() {
+		return config.getLong(PROP_SHUTDOWN_TIMEOUT, DEFAULT_SHUTDOWN_TIMEOUT);
+	}
+
+	/**
+	 * @return milliseconds before a failed topic is started again the first
+	 *         time. Every further failure in a row doubles it.
+	 */
+	public long getTopicRestartBackoff() {
+		return config.getLong(PROP_TOPIC_RESTART_BACKOFF, DEFAULT_TOPIC_RESTART_BACKOFF);
+	}
+
+	/**
+	 * @return the longest a failed topic waits to be started again. A topic
+	 *         that ran this long before it failed starts over from
+	 *         {@link #getTopicRestartBackoff()}.
+	 */
+	public long getTopicRestartMaxBackoff() {
+		return config.getLong(PROP_TOPIC_RESTART_MAX_BACKOFF, DEFAULT_TOPIC_RESTART_MAX_BACKOFF);
+	}
+
+	/**
+	 * @return milliseconds between checks of the properties file for
+	 *         changes, 0 to never reload it.
+	 */
+	public long getConfigReloadInterval() {
+		return config.getLong(PROP_CONFIG_RELOAD_INTERVAL, 0L);
 	}
 
-	protected Map<String, Integer> getTopicSizes() {
-		logger.debug("Topic size map {}", getConfigMap(PROP_S3_TOPIC_SIZES).keySet());
-		return getConfigMap(PROP_S3_TOPIC_SIZES);
+	/**
+	 * @return how long a worker waits for a message before it checks for
+	 *         checkpoints, leases and stop requests. In shared mode at most
+	 *         one worker slice, since an idle worker holds a shared thread
+	 *         that long.
+	 */
+	public long getConsumerTimeout() {
+		long timeout = config.getLong(CONSUMER_TIMEOUT_MS, DEFAULT_CONSUMER_TIMEOUT_MS);
+		if (timeout <= 0) {
+			throw new RuntimeException("Invalid property " + CONSUMER_TIMEOUT_MS
+					+ ": must be positive, idle workers would never reach a checkpoint");
+		}
+		if (WORKER_MODE_SHARED.equals(getWorkerMode())) {
+			timeout = Math.min(timeout, getWorkerSlice());
+		}
+		return timeout;
+	}
+
+	public long getS3MaxObjectSize() {
+		return config.getLong(PROP_S3_MAX_OBJECT_SIZE, DEFAULT_S3_SIZE);
+	}
+
+	/**
+	 * @return the object size of a topic, from {@code s3.objectsizes} or
+	 *         else {@code s3.maxobjectsize}.
+	 */
+	public long getMaxObjectSize(String topic) {
+		Long size = topicSizes.get(topic);
+		return size != null ? size : getS3MaxObjectSize();
+	}
+
+	/**
+	 * Whether chunks are cut when their compressed size reaches the object
+	 * size, rather than the size of the messages written, overridable per
+	 * topic as {@code s3.rotation.<topic>}.
+	 */
+	public boolean isCompressedRotation(String topic) {
+		String rotation = config.getString(PROP_S3_ROTATION + "." + topic,
+				config.getString(PROP_S3_ROTATION, S3_ROTATION_COMPRESSED));
+		if (S3_ROTATION_COMPRESSED.equals(rotation)) {
+			return true;
+		} else if (S3_ROTATION_RAW.equals(rotation)) {
+			return false;
+		}
+		throw new RuntimeException("Invalid property " + PROP_S3_ROTATION + ": " + rotation);
+	}
+
+	public int getS3UploadThreads() {
+		return config.getInt(PROP_S3_UPLOAD_THREADS, DEFAULT_S3_UPLOAD_THREADS);
+	}
+
+	public int getS3UploadQueueSize() {
+		return config.getInt(PROP_S3_UPLOAD_QUEUE_SIZE, DEFAULT_S3_UPLOAD_QUEUE_SIZE);
+	}
+
+	/**
+	 * @return bytes of chunk data to keep in memory across all sinks, or 0
+	 *         to write every file mode chunk to disk.
+	 */
+	public long getMemoryBudget() {
+		return config.getLong(PROP_S3_MEMORY_BUDGET, 0L);
+	}
+
+	public int getMemoryBlockSize() {
+		int blockSize = config.getInt(PROP_S3_MEMORY_BLOCK_SIZE, DEFAULT_S3_MEMORY_BLOCK_SIZE);
+		if (blockSize <= 0) {
+			throw new RuntimeException("Invalid property " + PROP_S3_MEMORY_BLOCK_SIZE
+					+ ": " + blockSize);
+		}
+		return blockSize;
+	}
+
+	/**
+	 * @return the write-ahead spool directory, or null to use temp files.
+	 */
+	public String getSpoolDir() {
+		String dir = config.getString(PROP_S3_SPOOL_DIR);
+		if (dir == null || dir.isEmpty()) {
+			return null;
+		}
+		return dir;
+	}
+
+	/**
+	 * How long a chunk may stay open before it is uploaded regardless of its
+	 * size, overridable per topic as {@code s3.filelease.ms.<topic>}.
+	 */
+	public long getFileLease(String topic) {
+		return config.getLong(PROP_S3_FILE_LEASE + "." + topic,
+				config.getLong(PROP_S3_FILE_LEASE, DEFAULT_S3_FILE_LEASE));
+	}
+
+	/**
+	 * @return the longest the lease of a topic may grow to when it adapts to
+	 *         the ingest rate, not above {@link #getFileLease(String)} to keep
+	 *         it fixed. Only up to {@link #getCommitInterval()} takes effect.
+	 *         Overridable per topic as {@code s3.filelease.max.ms.<topic>}.
+	 */
+	public long getFileLeaseMax(String topic) {
+		return config.getLong(PROP_S3_FILE_LEASE_MAX + "." + topic,
+				config.getLong(PROP_S3_FILE_LEASE_MAX, 0L));
+	}
+
+	/**
+	 * @return open hourly sinks allowed per partition of a topic, 0 for no
+	 *         limit. Overridable per topic as {@code s3.sinks.perpartition.<topic>}.
+	 */
+	public int getMaxSinksPerPartition(String topic) {
+		return config.getInt(PROP_S3_SINKS_PER_PARTITION + "." + topic,
+				config.getInt(PROP_S3_SINKS_PER_PARTITION, 0));
+	}
+
+	/**
+	 * @return open hourly sinks allowed across all partitions, 0 for no limit.
+	 */
+	public int getMaxSinksTotal() {
+		return config.getInt(PROP_S3_SINKS_TOTAL, 0);
+	}
+
+	/**
+	 * Key scheme for a topic, overridable per topic as {@code s3.keys.<topic>}.
+	 */
+	public boolean isDeterministicKeys(String topic) {
+		String keys = config.getString(PROP_S3_KEYS + "." + topic,
+				config.getString(PROP_S3_KEYS, S3_KEYS_RANDOM));
+		if (S3_KEYS_DETERMINISTIC.equals(keys)) {
+			return true;
+		} else if (S3_KEYS_RANDOM.equals(keys)) {
+			return false;
+		}
+		throw new RuntimeException("Invalid property " + PROP_S3_KEYS + ": " + keys);
+	}
+
+	/**
+	 * @return seconds a message may arrive after newer ones of its partition
+	 *         and still make it into its hour before the hour is closed, or a
+	 *         negative value to close hours only by lease.
+	 */
+	public long getWatermarkLateness() {
+		return config.getLong(PROP_S3_WATERMARK_LATENESS, -1L);
+	}
+
+	/**
+	 * @return name of the object written into an hour once every partition
+	 *         has closed it.
+	 */
+	public String getWatermarkMarker() {
+		return config.getString(PROP_S3_WATERMARK_MARKER, DEFAULT_S3_WATERMARK_MARKER);
+	}
+
+	/**
+	 * @return the {@code path=value} rules of the messages of a topic to drop,
+	 *         from {@code s3.transform.drop.<topic>}.
+	 */
+	public String[] getTransformDrops(String topic) {
+		return config.getStringArray(PROP_S3_TRANSFORM_DROP + "." + topic);
+	}
+
+	/**
+	 * @return the {@code path=value:category} rules of the messages of a
+	 *         topic to write to another category, from
+	 *         {@code s3.transform.route.<topic>}.
+	 */
+	public String[] getTransformRoutes(String topic) {
+		return config.getStringArray(PROP_S3_TRANSFORM_ROUTE + "." + topic);
+	}
+
+	/**
+	 * @return the top level fields to keep of the messages of a topic, or an
+	 *         empty array to keep all, from {@code s3.transform.include.<topic>}.
+	 */
+	public String[] getTransformIncludes(String topic) {
+		return config.getStringArray(PROP_S3_TRANSFORM_INCLUDE + "." + topic);
+	}
+
+	/**
+	 * @return the field paths to remove from the messages of a topic, from
+	 *         {@code s3.transform.exclude.<topic>}.
+	 */
+	public String[] getTransformExcludes(String topic) {
+		return config.getStringArray(PROP_S3_TRANSFORM_EXCLUDE + "." + topic);
+	}
+
+	/**
+	 * @return messages after which a chunk ends with deterministic keys, 0
+	 *         to cut chunks by size only. Overridable per topic as
+	 *         {@code s3.keys.chunkmessages.<topic>}.
+	 */
+	public long getChunkMessages(String topic) {
+		return config.getLong(PROP_S3_KEYS_CHUNK_MESSAGES + "." + topic,
+				config.getLong(PROP_S3_KEYS_CHUNK_MESSAGES, 0L));
+	}
+
+	/**
+	 * Upload mode for a topic, overridable per topic as
+	 * {@code s3.upload.mode.<topic>}.
+	 */
+	public boolean isS3MultipartUpload(String topic) {
+		String mode = config.getString(PROP_S3_UPLOAD_MODE + "." + topic,
+				config.getString(PROP_S3_UPLOAD_MODE, S3_UPLOAD_MODE_FILE));
+		if (S3_UPLOAD_MODE_MULTIPART.equals(mode)) {
+			return true;
+		} else if (S3_UPLOAD_MODE_FILE.equals(mode)) {
+			return false;
+		}
+		throw new RuntimeException("Invalid property " + PROP_S3_UPLOAD_MODE + ": " + mode);
+	}
+
+	public int getS3PartSize() {
+		int partSize = config.getInt(PROP_S3_PART_SIZE, DEFAULT_S3_PART_SIZE);
+		if (partSize < MIN_S3_PART_SIZE) {
+			throw new RuntimeException("Invalid property " + PROP_S3_PART_SIZE
+					+ ": S3 parts must be at least " + MIN_S3_PART_SIZE + " bytes");
+		}
+		return partSize;
+	}
+
+	/**
+	 * Compression codec for a topic, overridable per topic as
+	 * {@code s3.codec.<topic>}.
+	 */
+	public String getCodec(String topic) {
+		return config.getString(PROP_S3_CODEC + "." + topic,
+				config.getString(PROP_S3_CODEC, DEFAULT_S3_CODEC));
+	}
+
+	/**
+	 * @return the compression level for a topic, or null for the codec's
+	 *         default.
+	 */
+	public Integer getCodecLevel(String topic) {
+		return config.getInteger(PROP_S3_CODEC_LEVEL + "." + topic,
+				config.getInteger(PROP_S3_CODEC_LEVEL, null));
+	}
+
+	public int getCodecBufferSize() {
+		return config.getInt(PROP_S3_CODEC_BUFFER_SIZE, DEFAULT_S3_CODEC_BUFFER_SIZE);
+	}
+
+	public int getParallelGzipBlockSize() {
+		return config.getInt(PROP_S3_PGZIP_BLOCK_SIZE, DEFAULT_S3_PGZIP_BLOCK_SIZE);
+	}
+
+	public int getParallelGzipThreads() {
+		return config.getInt(PROP_S3_PGZIP_THREADS, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Whether the hourly sinks of a topic's partitions append and compress
+	 * on the shared pool instead of the partition's worker, overridable per
+	 * topic as {@code s3.parallel.hours.<topic>}.
+	 */
+	public boolean isParallelHours(String topic) {
+		return config.getBoolean(PROP_S3_PARALLEL_HOURS + "." + topic,
+				config.getBoolean(PROP_S3_PARALLEL_HOURS, false));
+	}
+
+	public int getParallelHoursThreads() {
+		return config.getInt(PROP_S3_PARALLEL_HOURS_THREADS, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @return messages an hourly sink may have waiting before the worker
+	 *         blocks.
+	 */
+	public int getParallelHoursQueue() {
+		int queue = config.getInt(PROP_S3_PARALLEL_HOURS_QUEUE, DEFAULT_S3_PARALLEL_HOURS_QUEUE);
+		if (queue < 1) {
+			throw new RuntimeException("Invalid property " + PROP_S3_PARALLEL_HOURS_QUEUE + ": " + queue);
+		}
+		return queue;
+	}
+
+	/**
+	 * Output format for a topic, overridable per topic as
+	 * {@code s3.format.<topic>}.
+	 */
+	public boolean isParquetFormat(String topic) {
+		String format = config.getString(PROP_S3_FORMAT + "." + topic,
+				config.getString(PROP_S3_FORMAT, S3_FORMAT_JSON));
+		if (S3_FORMAT_PARQUET.equals(format)) {
+			return true;
+		} else if (S3_FORMAT_JSON.equals(format)) {
+			return false;
+		}
+		throw new RuntimeException("Invalid property " + PROP_S3_FORMAT + ": " + format);
+	}
+
+	public String getParquetSchemaFile(String topic) {
+		String schema = config.getString(PROP_S3_PARQUET_SCHEMA + "." + topic);
+		if (schema == null || schema.isEmpty()) {
+			throw new RuntimeException("Invalid property " + PROP_S3_PARQUET_SCHEMA + "." + topic);
+		}
+		return schema;
+	}
+
+	public int getParquetRowGroupSize() {
+		return config.getInt(PROP_S3_PARQUET_ROW_GROUP_SIZE, DEFAULT_S3_PARQUET_ROW_GROUP_SIZE);
+	}
+
+	/**
+	 * Whether messages that do not fit a topic's Parquet schema are written
+	 * as JSON to {@code <topic>_deadletter} instead of being dropped,
+	 * overridable per topic as {@code s3.parquet.deadletter.<topic>}.
+	 */
+	public boolean isParquetDeadLetter(String topic) {
+		return config.getBoolean(PROP_S3_PARQUET_DEAD_LETTER + "." + topic,
+				config.getBoolean(PROP_S3_PARQUET_DEAD_LETTER, true));
+	}
+
+	/**
+	 * @return how partition workers are given threads: thread, virtual or
+	 *         shared.
+	 */
+	public String getWorkerMode() {
+		String mode = config.getString(PROP_WORKER_MODE, WORKER_MODE_THREAD);
+		if (!WORKER_MODE_THREAD.equals(mode) && !WORKER_MODE_VIRTUAL.equals(mode)
+				&& !WORKER_MODE_SHARED.equals(mode)) {
+			throw new RuntimeException("Invalid property " + PROP_WORKER_MODE + ": " + mode);
+		}
+		return mode;
+	}
+
+	/**
+	 * @return threads shared by all workers in shared mode.
+	 */
+	public int getWorkerThreads() {
+		return config.getInt(PROP_WORKER_THREADS, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @return how long a worker keeps a shared thread before yielding it.
+	 */
+	public long getWorkerSlice() {
+		return config.getLong(PROP_WORKER_SLICE, DEFAULT_WORKER_SLICE);
+	}
+
+	/**
+	 * @return seconds between metric reports to statsd.
+	 */
+	public int getMetricsInterval() {
+		return config.getInt(PROP_METRICS_INTERVAL, DEFAULT_METRICS_INTERVAL);
+	}
+
+	/**
+	 * @return how many closed hours the compactor looks at.
+	 */
+	public int getCompactHours() {
+		return config.getInt(PROP_S3_COMPACT_HOURS, DEFAULT_S3_COMPACT_HOURS);
+	}
+
+	/**
+	 * @return how long after its end an hour is left alone by the compactor.
+	 */
+	public long getCompactDelay() {
+		return config.getLong(PROP_S3_COMPACT_DELAY, DEFAULT_S3_COMPACT_DELAY);
+	}
+
+	/**
+	 * @return the pause between compaction runs, 0 to run once and exit.
+	 */
+	public long getCompactInterval() {
+		return config.getLong(PROP_S3_COMPACT_INTERVAL, 0L);
+	}
+
+	/**
+	 * @return the time between offset checkpoints. Every checkpoint uploads
+	 *         all open chunks of the topic.
+	 */
+	public long getCommitInterval() {
+		return config.getLong(PROP_KAFKA_COMMIT_INTERVAL, DEFAULT_KAFKA_COMMIT_INTERVAL);
+	}
+
+	/**
+	 * @return whether this process is the only consumer of its group, with
+	 *         one stream per Kafka partition of each topic. Only then does
+	 *         the stream a worker reads stay the same Kafka partition.
+	 */
+	public boolean isExclusiveConsumer() {
+		return config.getBoolean(PROP_KAFKA_EXCLUSIVE, false);
+	}
+
+	public int getKafkaMaxMessageSize() {
+		return config.getInt(PROP_KAFKA_MAX_MESSAGE_SIZE, DEFAULT_MSG_SIZE);
 	}
 
   protected String getS3TimePartitionFormat() {
     return config.getString(PROP_S3_TIME_PARTITION_FORMAT, DEFAULT_S3_TIME_PARTITION_FORMAT);
   }
 
+	/**
+	 * @return a new formatter for the time part of keys. Messages are put in
+	 *         hours since the epoch, so the hours are formatted in UTC as
+	 *         well, whatever the zone of the host.
+	 */
+	DateFormat getS3TimePartitionDateFormat() {
+		DateFormat format = new SimpleDateFormat(getS3TimePartitionFormat());
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format;
+	}
+
 }
 
 // vim: noet:ts=2:sw=2
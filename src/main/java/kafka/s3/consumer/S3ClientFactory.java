@@ -0,0 +1,78 @@
+package kafka.s3.consumer;
+
+import java.io.File;
+
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.retry.PredefinedBackoffStrategies;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
+
+/**
+ * Builds the S3 client the whole process shares.
+ *
+ * The client is thread safe and owns the HTTP connection pool, so App
+ * creates it once and every sink, chunk and the spool recovery use it
+ * through the {@link S3Uploader}.
+ */
+class S3ClientFactory {
+	private static final org.slf4j.Logger logger = LoggerFactory.getLogger(App.class);
+
+	private S3ClientFactory() {
+	}
+
+	/**
+	 * @return a {@link FileSystemS3Client} when {@code s3.local.dir} is set,
+	 *         otherwise an S3 client tuned by the {@code s3.client.*}
+	 *         settings, pointed at {@code s3.endpoint} if given and
+	 *         throttled by an {@link S3Throttle} unless {@code s3.throttle}
+	 *         is false.
+	 */
+	public static AmazonS3 createClient(PropertyConfiguration conf) {
+		String localDir = conf.getS3LocalDir();
+		if (localDir != null) {
+			logger.info("Storing objects under {} instead of S3", localDir);
+			return new FileSystemS3Client(new File(localDir), conf.getS3LocalLatency(),
+					conf.getS3LocalErrorRate(), conf.getS3MaxRetries(), conf.getS3RetryBaseDelay());
+		}
+
+		S3Throttle throttle = null;
+		RetryPolicy.RetryCondition retryCondition = PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION;
+		if (conf.isS3Throttle()) {
+			throttle = new S3Throttle(conf.getS3ThrottleMinRate(), conf.getS3ThrottleIncrease());
+			retryCondition = throttle.wrap(retryCondition);
+		}
+
+		RetryPolicy retryPolicy = new RetryPolicy(retryCondition,
+				new PredefinedBackoffStrategies.FullJitterBackoffStrategy(
+						conf.getS3RetryBaseDelay(), conf.getS3RetryMaxBackoff()),
+				conf.getS3MaxRetries(), false);
+
+		ClientConfiguration clientConf = new ClientConfiguration()
+				.withMaxConnections(conf.getS3MaxConnections())
+				.withConnectionTimeout(conf.getS3ConnectionTimeout())
+				.withSocketTimeout(conf.getS3SocketTimeout())
+				.withTcpKeepAlive(conf.getS3TcpKeepAlive())
+				.withRetryPolicy(retryPolicy);
+
+		AmazonS3Client client = new AmazonS3Client(
+				new BasicAWSCredentials(conf.getS3AccessKey(), conf.getS3SecretKey()), clientConf);
+
+		String endpoint = conf.getS3Endpoint();
+		if (endpoint != null) {
+			logger.info("Using S3 endpoint {}", endpoint);
+			client.setEndpoint(endpoint);
+		}
+		if (conf.getS3PathStyleAccess()) {
+			client.setS3ClientOptions(S3ClientOptions.builder().setPathStyleAccess(true).build());
+		}
+		return throttle == null ? client : throttle.wrap(client);
+	}
+}
+
+// vim: noet:ts=2:sw=2
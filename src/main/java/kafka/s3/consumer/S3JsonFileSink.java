@@ -1,12 +1,12 @@
 package kafka.s3.consumer;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Date;
-import java.util.zip.GZIPOutputStream;
 
 
 import kafka.message.Message;
@@ -19,115 +19,388 @@ class S3JsonFileSink extends S3SinkBase implements Sink {
 
 	private static final org.slf4j.Logger logger = LoggerFactory.getLogger(App.class);
 
-  private final Long fileLease = 300000L;  // 5 minutes
+  private final FileLease lease;
 
-	private Integer s3MaxObjectSize;
-	private Integer bytesWritten;
-	private Long startOffset;
-	private Long endOffset;
+	private static final long HOUR_MILLIS = 3600L * 1000;
+
+	// Messages are collected here before they reach the compressor so that
+	// the trailing newline and small payloads do not each cost a codec call.
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	// Scratch space for payloads that are not backed by a heap array.
+	private static final ThreadLocal<byte[]> copyBuffer = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[8192];
+		}
+	};
+
+	private long s3MaxObjectSize;
+	private boolean compressedRotation;
+	private long bytesWritten;
+	// Numbers the messages appended through append(MessageAndMetadata);
+	// partition sinks number them for all their hours.
+	private final MessageSequence sequence;
+	// The message numbers of the current chunk's first and last messages.
+	private long firstSequence;
+	private long lastSequence;
+	private long chunkCount;
   private Date partitionDate;
-  private Long timestamp;
-	private Integer emptyCommits;
+  private long timestamp;
+	private long leaseMillis;
+	// When the current chunk got its first message.
+	private long chunkStart;
+	private int emptyCommits;
+
+	// Only with deterministic keys: digest of the current chunk's messages
+	// and the number of messages after which a chunk ends.
+	private MessageDigest digest;
+	private long chunkMessages;
 
-	GZIPOutputStream goutStream;
+	// Only with s3.parallel.hours: appends run there, everything else waits
+	// for it to drain first.
+	private AppendQueue queue;
+	// Written and cut by another sink of the hour, see the constructor.
+	private final boolean owned;
 
-	File tmpFile;
+	OutputStream goutStream;
+
+	Chunk chunk;
 	String topic;
 
-	private GZIPOutputStream getOutputStream(File tmpFile)
-			throws FileNotFoundException, IOException {
-		logger.debug("Creating gzip output stream for tmpFile: " + tmpFile);
-		return new GZIPOutputStream(new FileOutputStream(tmpFile));
+	/**
+	 * Opens the record stream on top of a fresh chunk. Subclasses writing a
+	 * different file format override this, {@link #writeMessage(ByteBuffer)}
+	 * and {@link #closeStream()}.
+	 */
+	protected void openStream(Chunk chunk) throws IOException {
+		logger.debug("Creating compressed output stream for chunk");
+		goutStream = new BufferedOutputStream(getCodec().wrap(chunk.getStream()), WRITE_BUFFER_SIZE);
+	}
+
+	protected void writeMessage(ByteBuffer buffer) throws IOException {
+		write(buffer, goutStream);
+		goutStream.write('\n');
+	}
+
+	/**
+	 * Finishes the chunk's content; the chunk stream must be closed afterwards.
+	 */
+	protected void closeStream() throws IOException {
+		goutStream.close();
+		goutStream = null;
 	}
 
-	public S3JsonFileSink(String topic, int partition, PropertyConfiguration conf, Date partitionDate) throws IOException {
-		super(topic, partition, conf);
+	public S3JsonFileSink(String topic, int partition, PropertyConfiguration conf,
+			Date partitionDate, UploadSequencer sequencer) throws IOException {
+		this(topic, partition, conf, new KeyLayout(topic, conf), new FileLease(topic, conf),
+				partitionDate, sequencer,
+				new MessageSequence(sequencer.getUploader().getSpool(), topic, partition));
+	}
+
+	/**
+	 * @param lease shared by the hourly sinks of the partition.
+	 * @param sequence shared by the hourly sinks of the partition.
+	 */
+	public S3JsonFileSink(String topic, int partition, PropertyConfiguration conf, KeyLayout layout,
+			FileLease lease, Date partitionDate, UploadSequencer sequencer, MessageSequence sequence)
+			throws IOException {
+		this(topic, partition, conf, layout, lease, partitionDate, sequencer, sequence, false);
+	}
 
-    timestamp = System.currentTimeMillis();
+	/**
+	 * @param owned whether another sink of the hour appends to this one from
+	 *        its own appends and cuts its chunks together with its own, see
+	 *        {@link S3ParquetFileSink}. Such a sink has no append queue and
+	 *        leaves the lease to the other sink.
+	 */
+	S3JsonFileSink(String topic, int partition, PropertyConfiguration conf, KeyLayout layout,
+			FileLease lease, Date partitionDate, UploadSequencer sequencer, MessageSequence sequence,
+			boolean owned) throws IOException {
+		super(topic, partition, conf, layout, sequencer);
+
+		this.lease = lease;
+		this.owned = owned;
+		this.sequence = sequence;
+		startLease(System.currentTimeMillis());
 
 		this.topic = topic;
 		this.partitionDate = partitionDate;
-    startOffset = 0L;
-    endOffset = 0L;
+		if (isDeterministicKeys()) {
+			try {
+				digest = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+			chunkMessages = conf.getChunkMessages(topic);
+		}
     bytesWritten = 0;
 		emptyCommits = 0;
 
-		if (!topicSizes.containsKey(topic)) {
-			logger.warn("No topic specific size found for topic: " + topic);
-			s3MaxObjectSize = conf.getS3MaxObjectSize();
-		} else {
-			s3MaxObjectSize = topicSizes.get(topic);
+		s3MaxObjectSize = conf.getMaxObjectSize(topic);
+		// Replays must cut chunks at the same messages, whatever the codec
+		// version makes of them.
+		compressedRotation = conf.isCompressedRotation(topic) && !isDeterministicKeys();
+
+		if (conf.isParallelHours(topic) && !owned) {
+			queue = new AppendQueue(this, AppendQueue.getPool(conf.getParallelHoursThreads()),
+					conf.getParallelHoursQueue());
 		}
+	}
 
-		prepareAndCommitFileStream(partitionDate);
+	public Date getPartitionDate() {
+		return partitionDate;
+	}
+
+	protected long getMaxObjectSize() {
+		return s3MaxObjectSize;
 	}
 
   public void checkFileLease() {
-    Long now = System.currentTimeMillis();
-    if (now - timestamp > fileLease) {
-      logger.debug("File lease expired for {}", partitionDate);
-      prepareAndCommitFileStream(partitionDate);
-      timestamp = now;
+    long now = System.currentTimeMillis();
+    if (now > getLeaseDeadline()) {
+      expireLease(now);
     }
   }
 
+	/**
+	 * @return the time after which the current lease has expired.
+	 */
+	public long getLeaseDeadline() {
+		return timestamp + leaseMillis;
+	}
+
+	// The lease is read once so the deadline does not move while the sink
+	// waits in its partition's lease queue.
+	private void startLease(long now) {
+		timestamp = now;
+		leaseMillis = lease.get();
+	}
+
+	/**
+	 * Rotates the chunk because its lease ran out and starts a new lease.
+	 * With deterministic keys chunks of an hour that is not over yet only end
+	 * on size or message count boundaries, so the lease just starts again.
+	 */
+	public void expireLease(long now) {
+		logger.debug("File lease expired for {}", partitionDate);
+		if (isDeterministicKeys() && now < partitionDate.getTime() + HOUR_MILLIS) {
+			startLease(now);
+			return;
+		}
+		rotate(now, SinkMetrics.Rotation.LEASE);
+	}
+
+	/**
+	 * Commits the current chunk for a checkpoint or shutdown, whatever the
+	 * key scheme, and starts a new lease.
+	 */
+	public void flush(long now) {
+		flush(now, SinkMetrics.Rotation.FLUSH);
+	}
+
+	/**
+	 * Commits the current chunk, whatever the key scheme, and starts a new
+	 * lease.
+	 *
+	 * @param cause counted if there is a chunk to commit.
+	 */
+	public void flush(long now, SinkMetrics.Rotation cause) {
+		rotate(now, cause);
+	}
+
+	// Only chunks the lease cut tell the lease how it fared.
+	private void rotate(long now, SinkMetrics.Rotation cause) {
+		sync();
+		long opened = chunk != null ? chunkStart : timestamp;
+		if (chunk != null) {
+			getMetrics().rotated(cause);
+		}
+		long size = prepareAndCommitFileStream(partitionDate);
+		if (cause == SinkMetrics.Rotation.LEASE && !owned) {
+			lease.expired(size, now - opened);
+		}
+		startLease(now);
+	}
+
+	public void flush() {
+		flush(System.currentTimeMillis());
+	}
+
+	public void committed() throws IOException {
+		sequence.save();
+	}
+
 	public boolean isStale() {
+		sync();
 		return emptyCommits >= 3;
 	}
 
-  private void prepareAndCommitFileStream(Date date) {
+  /**
+   * @return the size of the committed chunk in the unit rotation counts,
+   *         0 if there was none.
+   */
+  private long prepareAndCommitFileStream(Date date) {
     logger.debug("Preparing file stream for partition {}", date);
+    long size = 0;
       try {
-        if (goutStream != null) {
-          goutStream.close();
-          if (tmpFile != null && bytesWritten != 0) {
-            commitChunk(tmpFile, startOffset, endOffset, date);
+        if (chunk != null) {
+          closeStream();
+          if (bytesWritten != 0) {
+            size = compressedRotation ? chunk.getSize() : bytesWritten;
+            getMetrics().chunkCommitted(bytesWritten, chunk.getSize());
+            // The uploader owns the chunk from here on.
+            commitChunk(chunk, firstSequence, lastSequence, date,
+                digest != null ? toHex(digest.digest()) : null);
 						emptyCommits = 0;
           } else {
+            chunk.discard();
+						if (digest != null) {
+							digest.reset();
+						}
 						emptyCommits++;
 					}
+          chunk = null;
+        } else {
+          emptyCommits++;
         }
-        if (tmpFile != null) {
-          tmpFile.delete();
-        }
-        tmpFile = File.createTempFile("s3sink:%s".format(getTimePartition(date)), null);
-        if (goutStream != null) {
-          goutStream.finish();
-        }
-        goutStream = getOutputStream(tmpFile);
-        startOffset = endOffset;
+        chunkCount = 0;
         bytesWritten = 0;
       } catch (IOException e) {
         throw new RuntimeException("Error with file streams.");
       }
+    return size;
   }
 
 	@Override
 	public long append(MessageAndMetadata<Message> msgAndMetadata) throws IOException {
 		ByteBuffer buffer = msgAndMetadata.message().payload();
 
-		// HACK: need to re-read the first 8 bytes again.
+		// Skip the timestamp (first 8 bytes)
 		buffer.getLong();
-		int messageSize = msgAndMetadata.message().payload().remaining();
+		return append(buffer, sequence.next());
+	}
+
+	/**
+	 * Appends a payload whose position is already past the leading
+	 * timestamp. The bytes go straight from the buffer into the stream, or
+	 * with s3.parallel.hours the buffer is queued and must not change.
+	 *
+	 * @param number the message's number in its partition's
+	 *        {@link MessageSequence}.
+	 */
+	long append(ByteBuffer buffer, long number) throws IOException {
+		if (queue != null) {
+			int messageSize = buffer.remaining();
+			queue.add(buffer, number);
+			return messageSize;
+		}
+		return appendNow(buffer, number);
+	}
 
-    // Load message into the byte[]
-		byte[] bytes = new byte[buffer.remaining()];
-		buffer.get(bytes);
+	long appendNow(ByteBuffer buffer, long number) throws IOException {
+		int messageSize = buffer.remaining();
 
-		if (bytesWritten + messageSize > s3MaxObjectSize) {
+		// Counting from the chunk's start keeps boundaries reproducible: every
+		// checkpoint, which a replay starts from, ends all chunks.
+		if (chunk != null && (isFull(messageSize)
+				|| (chunkMessages > 0 && chunkCount >= chunkMessages))) {
+			getMetrics().rotated(SinkMetrics.Rotation.SIZE);
 			prepareAndCommitFileStream(partitionDate);
+			if (!owned) {
+				lease.filled(System.currentTimeMillis() - chunkStart);
+			}
 		}
 
-		goutStream.write(bytes);
-		goutStream.write('\n');
+		// Chunks are opened on the first message so idle hours hold no files.
+		if (chunk == null) {
+			firstSequence = number;
+			chunk = newChunk(number, partitionDate);
+			chunkStart = System.currentTimeMillis();
+			openStream(chunk);
+		}
+		lastSequence = number;
+
+		if (digest != null) {
+			int position = buffer.position();
+			digest.update(buffer);
+			buffer.position(position);
+		}
+
+		writeMessage(buffer);
 		bytesWritten += messageSize;
-		endOffset++;
+		chunkCount++;
 		return messageSize;
 	}
 
+	/**
+	 * @return the number of the message being written.
+	 */
+	protected long getLastSequence() {
+		return lastSequence;
+	}
+
+	protected MessageSequence getSequence() {
+		return sequence;
+	}
+
+	protected FileLease getLease() {
+		return lease;
+	}
+
+	/**
+	 * @return whether the chunk is at the object size. In compressed bytes
+	 *         the chunk lags behind by what the write buffer and the codec
+	 *         still hold, so objects can be that much larger.
+	 */
+	private boolean isFull(int messageSize) {
+		if (compressedRotation) {
+			return getWrittenSize() >= s3MaxObjectSize;
+		}
+		return bytesWritten + messageSize > s3MaxObjectSize;
+	}
+
+	/**
+	 * @return the bytes of the current chunk's output so far.
+	 */
+	protected long getWrittenSize() {
+		return chunk.getSize();
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	private static void write(ByteBuffer buffer, OutputStream out) throws IOException {
+		if (buffer.hasArray()) {
+			out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			buffer.position(buffer.limit());
+			return;
+		}
+
+		byte[] bytes = copyBuffer.get();
+		while (buffer.hasRemaining()) {
+			int n = Math.min(bytes.length, buffer.remaining());
+			buffer.get(bytes, 0, n);
+			out.write(bytes, 0, n);
+		}
+	}
+
+	private void sync() {
+		if (queue != null) {
+			queue.sync();
+		}
+	}
+
 	public void close() {
-		if (tmpFile != null) {
-			tmpFile.delete();
+		sync();
+		if (chunk != null) {
+			chunk.discard();
 		}
 
 		super.close();
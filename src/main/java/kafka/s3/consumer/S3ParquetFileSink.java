@@ -0,0 +1,193 @@
+package kafka.s3.consumer;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.example.ExampleParquetWriter;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.MessageTypeParser;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hourly sink that writes Parquet files instead of newline delimited JSON.
+ *
+ * Payloads are parsed against the topic's configured schema and streamed
+ * into the writer row by row; only the current row group is held in memory.
+ * Rotation, keys and uploads are inherited from {@link S3JsonFileSink}.
+ *
+ * Messages that do not fit the schema are counted as
+ * {@code messages.invalid} and, unless {@code s3.parquet.deadletter} is
+ * off, written unchanged to a JSON sink of the same hour under the category
+ * {@code <topic>_deadletter}. That sink is opened on the first such message
+ * and its chunks are cut, uploaded and closed together with this sink's. It
+ * is appended to from this sink's appends, so it has no append queue of its
+ * own, and it runs on the partition's lease without adapting it.
+ */
+class S3ParquetFileSink extends S3JsonFileSink {
+	private static final org.slf4j.Logger logger = LoggerFactory.getLogger(App.class);
+
+	static final String DEAD_LETTER_SUFFIX = "_deadletter";
+
+	private final MessageType schema;
+	private final JsonGroupConverter converter;
+	private final CompressionCodecName compression;
+	private final long rowGroupSize;
+	private ParquetWriter<Group> writer;
+	private long skipped;
+
+	private final int partition;
+	private final UploadSequencer sequencer;
+	private final boolean deadLetters;
+	private S3JsonFileSink deadLetterSink;
+
+	public S3ParquetFileSink(String topic, int partition, PropertyConfiguration conf,
+			KeyLayout layout, FileLease lease, Date partitionDate, UploadSequencer sequencer,
+			MessageSequence sequence, MessageType schema) throws IOException {
+		super(topic, partition, conf, layout, lease, partitionDate, sequencer, sequence);
+
+		this.partition = partition;
+		this.sequencer = sequencer;
+		this.deadLetters = conf.isParquetDeadLetter(topic);
+		this.schema = schema;
+		this.converter = new JsonGroupConverter(schema);
+		this.compression = getCompression(conf.getCodec(topic));
+		this.rowGroupSize = Math.min(getMaxObjectSize(), conf.getParquetRowGroupSize());
+	}
+
+	/**
+	 * Reads a schema in Parquet's message type syntax, e.g.
+	 * {@code message event { required int64 ts; optional binary name (UTF8); }}.
+	 */
+	public static MessageType loadSchema(String path) throws IOException {
+		StringBuilder text = new StringBuilder();
+		Reader reader = new InputStreamReader(new FileInputStream(path), "UTF-8");
+		try {
+			char[] buf = new char[4096];
+			int n;
+			while ((n = reader.read(buf)) != -1) {
+				text.append(buf, 0, n);
+			}
+		} finally {
+			reader.close();
+		}
+		return MessageTypeParser.parseMessageType(text.toString());
+	}
+
+	private static CompressionCodecName getCompression(String codec) {
+		if (SinkStreamHandlers.GZIP.equals(codec) || SinkStreamHandlers.PARALLEL_GZIP.equals(codec)) {
+			return CompressionCodecName.GZIP;
+		} else if (SinkStreamHandlers.ZSTD.equals(codec)) {
+			return CompressionCodecName.ZSTD;
+		} else if (SinkStreamHandlers.LZ4.equals(codec)) {
+			return CompressionCodecName.LZ4_RAW;
+		} else if (SinkStreamHandlers.SNAPPY.equals(codec)) {
+			return CompressionCodecName.SNAPPY;
+		}
+		return CompressionCodecName.UNCOMPRESSED;
+	}
+
+	@Override
+	protected String getExtension() {
+		return ".parquet";
+	}
+
+	@Override
+	protected void openStream(Chunk chunk) throws IOException {
+		logger.debug("Creating parquet writer for chunk");
+		writer = ExampleParquetWriter.builder(new ChunkOutputFile(chunk))
+				.withType(schema)
+				.withCompressionCodec(compression)
+				.withRowGroupSize(rowGroupSize)
+				.build();
+	}
+
+	@Override
+	protected void writeMessage(ByteBuffer buffer) throws IOException {
+		Group record;
+		try {
+			if (buffer.hasArray()) {
+				record = converter.convert(buffer.array(),
+						buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			} else {
+				byte[] bytes = new byte[buffer.remaining()];
+				buffer.duplicate().get(bytes);
+				record = converter.convert(bytes, 0, bytes.length);
+			}
+		} catch (IOException e) {
+			skipped++;
+			getMetrics().messageInvalid();
+			if (deadLetters) {
+				logger.debug("Writing message that does not match the parquet schema to {}{}: {}",
+						topic, DEAD_LETTER_SUFFIX, e.getMessage());
+				getDeadLetterSink().appendNow(buffer.duplicate(), getLastSequence());
+			} else {
+				getMetrics().messageDropped();
+				logger.warn("Dropping message that does not match the parquet schema ({} so far): {}",
+						skipped, e.getMessage());
+			}
+			return;
+		} finally {
+			buffer.position(buffer.limit());
+		}
+		writer.write(record);
+	}
+
+	private S3JsonFileSink getDeadLetterSink() throws IOException {
+		if (deadLetterSink == null) {
+			String category = KeyLayout.getTopicName(topic,
+					conf.getString(Configuration.PROP_KAFKA_TOPIC_PREFIX)) + DEAD_LETTER_SUFFIX;
+			deadLetterSink = new S3JsonFileSink(topic, partition, conf,
+					new KeyLayout(topic, category, conf), getLease(), getPartitionDate(), sequencer,
+					getSequence(), true);
+		}
+		return deadLetterSink;
+	}
+
+	@Override
+	public void expireLease(long now) {
+		super.expireLease(now);
+		if (deadLetterSink != null) {
+			deadLetterSink.expireLease(now);
+		}
+	}
+
+	@Override
+	public void flush(long now, SinkMetrics.Rotation cause) {
+		super.flush(now, cause);
+		if (deadLetterSink != null) {
+			deadLetterSink.flush(now, cause);
+		}
+	}
+
+	@Override
+	public void close() {
+		super.close();
+		if (deadLetterSink != null) {
+			deadLetterSink.close();
+		}
+	}
+
+	/**
+	 * Includes the row group still in memory, which reaches the chunk only
+	 * when it is flushed.
+	 */
+	@Override
+	protected long getWrittenSize() {
+		return writer.getDataSize();
+	}
+
+	@Override
+	protected void closeStream() throws IOException {
+		writer.close();
+		writer = null;
+	}
+}
+
+// vim: noet:ts=2:sw=2
@@ -1,10 +1,8 @@
 package kafka.s3.consumer;
 
-import java.io.File;
+import java.io.IOException;
 import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Map;
 import java.util.Observer;
 import java.util.UUID;
 
@@ -12,42 +10,62 @@ import kafka.s3.UploadObserver;
 
 import org.slf4j.LoggerFactory;
 
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.AmazonS3;
 
 public class S3SinkBase {
 	private static final org.slf4j.Logger logger = LoggerFactory
 			.getLogger(App.class);
 
 	private String bucket;
-	private AmazonS3Client awsClient;
+	private AmazonS3 awsClient;
 	private String keyPrefix;
-	private int uploads;
+	private volatile int uploads;
 	private UploadObserver obs;
+	private UploadSequencer sequencer;
+	private SinkMetrics metrics;
 	private int partition;
 	private DateFormat dateFormat;
 	private String topic;
-	private String prefix;
+	private KeyLayout layout;
+	private boolean multipart;
+	private boolean deterministicKeys;
+	private int partSize;
+	// When the current chunk was opened, for the latency metric.
+	private long chunkOpened;
+	private SinkStreamHandler codec;
 	PropertyConfiguration conf;
 
-	protected Map<String, Integer> topicSizes;
-
-	public S3SinkBase(String topic, int partition, PropertyConfiguration conf) {
+	public S3SinkBase(String topic, int partition, PropertyConfiguration conf, KeyLayout layout,
+			UploadSequencer sequencer) {
 		super();
 
 		obs = new UploadObserver();
+		this.sequencer = sequencer;
+		this.metrics = sequencer.getMetrics();
 		this.partition = partition;
 		this.conf = conf;
 		this.topic = topic;
-    this.prefix = conf.getString(conf.PROP_KAFKA_TOPIC_PREFIX);
-
-    dateFormat = new SimpleDateFormat(conf.getS3TimePartitionFormat());
-
-		bucket = conf.getS3Bucket();
-		awsClient = new AmazonS3Client(new BasicAWSCredentials(
-				conf.getS3AccessKey(), conf.getS3SecretKey()));
+    this.layout = layout;
+
+    dateFormat = conf.getS3TimePartitionDateFormat();
+
+		bucket = conf.getS3Bucket(topic);
+		awsClient = sequencer.getUploader().getClient();
+
+		multipart = conf.isS3MultipartUpload(topic);
+		deterministicKeys = conf.isDeterministicKeys(topic);
+		if (deterministicKeys && multipart) {
+			throw new RuntimeException("Invalid property " + Configuration.PROP_S3_KEYS
+					+ ": deterministic keys need " + Configuration.PROP_S3_UPLOAD_MODE + "=file");
+		}
+		if (deterministicKeys && sequencer.getUploader().getSpool() == null) {
+			throw new RuntimeException("Invalid property " + Configuration.PROP_S3_KEYS
+					+ ": deterministic keys need " + Configuration.PROP_S3_SPOOL_DIR
+					+ " to keep message numbers across restarts");
+		}
+		partSize = conf.getS3PartSize();
+		codec = SinkStreamHandlers.forTopic(topic, conf);
 
-		topicSizes = conf.getTopicSizes();
 		uploads = 0;
 	}
 
@@ -55,41 +73,134 @@ public class S3SinkBase {
 		obs.addObserver(o);
 	}
 
-  private String getTopicName() {
-    if (prefix != null) {
-      return topic.substring(prefix.length());
-    } else {
-      return topic;
-    }
-  }
-
 	private String getKeyPrefix(Date date) {
-    String prefix = String.format("%s/category=%s/%s/%d", conf.getS3Prefix(),
-        getTopicName(), getTimePartition(date), partition);
-    return prefix;
+		return layout.getKeyPrefix(partition, getTimePartition(date));
 	}
 
   protected String getTimePartition(Date date) {
     return dateFormat.format(date);
   }
 
-	protected void commitChunk(File chunk, String key) {
-    logger.debug("Uploading to s3 {}", key);
-		awsClient.putObject(bucket, key, chunk);
-		uploads++;
-		obs.incrUploads();
+	/**
+	 * Opens the chunk that will receive the next compressed stream: a
+	 * streaming upload in multipart mode, otherwise a spooled file, a memory
+	 * buffer or a temp file. Streaming
+	 * keys carry only the first message's number because the upload is
+	 * initiated before the last one is known.
+	 */
+	protected Chunk newChunk(long firstSequence, Date date) throws IOException {
+		chunkOpened = System.nanoTime();
+		if (multipart) {
+			String key = String.format("%s-%s-%s%s", getKeyPrefix(date),
+					firstSequence, UUID.randomUUID(), getExtension());
+			return new MultipartChunk(sequencer.getUploader(), awsClient, bucket, key, partSize);
+		}
+		Spool spool = sequencer.getUploader().getSpool();
+		if (spool != null) {
+			return new FileChunk(awsClient, bucket, "s3sink:" + getTimePartition(date), spool,
+					spool.newManifest(topic, partition, date, firstSequence, getExtension(), bucket));
+		}
+		ChunkBufferPool buffers = sequencer.getUploader().getBufferPool();
+		if (buffers != null) {
+			return new MemoryChunk(buffers, awsClient, bucket, "s3sink:" + getTimePartition(date));
+		}
+		return new FileChunk(awsClient, bucket, "s3sink:" + getTimePartition(date));
+	}
+
+	protected SinkMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return whether keys are derived from the chunk's message numbers and
+	 *         content, so a replay of the same messages produces the same
+	 *         keys.
+	 */
+	protected boolean isDeterministicKeys() {
+		return deterministicKeys;
+	}
+
+	protected SinkStreamHandler getCodec() {
+		return codec;
 	}
 
-  protected void commitChunk(File chunk, long startOffset, long endOffset, Date date) {
-    String key = String.format("%s-%s-%s-%s.gz", getKeyPrefix(date),
-        startOffset, endOffset, UUID.randomUUID());
-    commitChunk(chunk, key);
+	/**
+	 * @return the suffix of this sink's S3 keys.
+	 */
+	protected String getExtension() {
+		return codec.getExtension();
+	}
+
+	/**
+	 * Hands the chunk to the upload stage. Observers are notified only after
+	 * every earlier chunk of this partition has been uploaded too.
+	 */
+	protected void commitChunk(Chunk chunk, String key, long lastSequence) throws IOException {
+		logger.debug("Queueing upload to s3 {}", key);
+		final long opened = chunkOpened;
+		Runnable upload = chunk.commit(key, lastSequence);
+		if (deterministicKeys) {
+			upload = skipIfExists(chunk, key, upload);
+		}
+		sequencer.submit(upload, new Runnable() {
+			@Override
+			public void run() {
+				metrics.visible(opened);
+				uploads++;
+				obs.incrUploads();
+			}
+		});
+	}
+
+	/**
+	 * A deterministic key that already exists holds the same messages, e.g.
+	 * from before a crash, so the chunk is dropped instead of uploaded again.
+	 * So is one whose object the {@link Compactor} already merged away.
+	 */
+	private Runnable skipIfExists(final Chunk chunk, final String key, final Runnable upload) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				if (awsClient.doesObjectExist(bucket, key)
+						|| awsClient.doesObjectExist(bucket, Compactor.getTombstoneKey(key))) {
+					logger.info("Skipping upload of existing key {}", key);
+					chunk.discard();
+					metrics.uploadSkipped();
+				} else {
+					upload.run();
+				}
+			}
+		};
+	}
+
+  /**
+   * @param firstSequence number of the chunk's first message.
+   * @param lastSequence number of the chunk's last message.
+   * @param digest hex digest of the chunk's messages, used instead of a
+   *        random id when keys are deterministic.
+   */
+  protected void commitChunk(Chunk chunk, long firstSequence, long lastSequence, Date date,
+      String digest) throws IOException {
+    String key = chunk.getKey();
+    if (key == null) {
+      key = String.format("%s-%s-%s-%s%s", getKeyPrefix(date), firstSequence, lastSequence,
+          deterministicKeys ? digest : UUID.randomUUID(), getExtension());
+    }
+    commitChunk(chunk, key, lastSequence);
   }
 
 	public int getUploads() {
 		return uploads;
 	}
 
+	public void awaitUploads() throws InterruptedException {
+		sequencer.awaitCompletion();
+	}
+
+	public int getPendingUploads() {
+		return sequencer.getPending();
+	}
+
 	public void close() {
 		obs.deleteObservers();
 	}
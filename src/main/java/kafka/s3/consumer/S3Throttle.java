@@ -0,0 +1,161 @@
+package kafka.s3.consumer;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.services.s3.AmazonS3;
+
+/**
+ * Adapts the request rate of the shared S3 client to SlowDown responses.
+ *
+ * Requests are not limited until S3 answers 503 SlowDown. The rate is then
+ * cut to half of what was sent in the last second, and halved again on
+ * every further SlowDown, but at most once a second since the answers to
+ * requests already in flight arrive together. Every successful request
+ * raises the rate so that it grows by {@code s3.throttle.increase} per
+ * second, and once it is back above the rate that triggered the first
+ * SlowDown, requests are unlimited again.
+ *
+ * The retry condition sees SlowDown on every attempt, including the ones
+ * the client retries by itself.
+ */
+class S3Throttle {
+	private static final org.slf4j.Logger logger = LoggerFactory.getLogger(App.class);
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	private final double minRate;
+	private final double increase;
+
+	// Requests per second, 0 while unlimited.
+	private double rate;
+	private double ceiling;
+	private long nextRequest;
+	private long holdUntil;
+
+	// Requests sent in the current and the last full second.
+	private long windowStart = System.nanoTime();
+	private int windowCount;
+	private int lastWindowCount;
+
+	public S3Throttle(double minRate, double increase) {
+		this.minRate = minRate;
+		this.increase = increase;
+	}
+
+	/**
+	 * @return the client with every call going through this throttle.
+	 */
+	public AmazonS3 wrap(final AmazonS3 client) {
+		return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(),
+				new Class<?>[] { AmazonS3.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						try {
+							acquire();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new AmazonClientException("Interrupted while throttled", e);
+						}
+						try {
+							Object result = method.invoke(client, args);
+							succeeded();
+							return result;
+						} catch (InvocationTargetException e) {
+							if (isSlowDown(e.getCause())) {
+								slowDown();
+							}
+							throw e.getCause();
+						}
+					}
+				});
+	}
+
+	/**
+	 * @return a retry condition that reports SlowDown and then asks
+	 *         {@code delegate}.
+	 */
+	public RetryPolicy.RetryCondition wrap(final RetryPolicy.RetryCondition delegate) {
+		return new RetryPolicy.RetryCondition() {
+			@Override
+			public boolean shouldRetry(AmazonWebServiceRequest request, AmazonClientException exception,
+					int retriesAttempted) {
+				if (isSlowDown(exception)) {
+					slowDown();
+				}
+				return delegate.shouldRetry(request, exception, retriesAttempted);
+			}
+		};
+	}
+
+	static boolean isSlowDown(Throwable e) {
+		if (!(e instanceof AmazonServiceException)) {
+			return false;
+		}
+		AmazonServiceException se = (AmazonServiceException) e;
+		return se.getStatusCode() == 503 || "SlowDown".equals(se.getErrorCode());
+	}
+
+	/**
+	 * Waits until the current rate allows another request.
+	 */
+	public void acquire() throws InterruptedException {
+		long wait;
+		synchronized (this) {
+			long now = System.nanoTime();
+			if (now - windowStart >= SECOND) {
+				lastWindowCount = now - windowStart < 2 * SECOND ? windowCount : 0;
+				windowStart = now;
+				windowCount = 0;
+			}
+			windowCount++;
+			if (rate == 0) {
+				return;
+			}
+			long start = Math.max(now, nextRequest);
+			nextRequest = start + (long) (SECOND / rate);
+			wait = start - now;
+		}
+		if (wait > 0) {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+
+	public synchronized void slowDown() {
+		long now = System.nanoTime();
+		if (rate != 0 && now < holdUntil) {
+			return;
+		}
+		if (rate == 0) {
+			ceiling = Math.max(Math.max(lastWindowCount, windowCount), 2 * minRate);
+			rate = Math.max(minRate, ceiling / 2);
+			nextRequest = now;
+		} else {
+			rate = Math.max(minRate, rate / 2);
+		}
+		holdUntil = now + SECOND;
+		logger.warn("S3 asked to slow down, limiting requests to {}/s", (int) rate);
+	}
+
+	private synchronized void succeeded() {
+		if (rate == 0) {
+			return;
+		}
+		rate += increase / rate;
+		if (rate >= ceiling) {
+			logger.info("S3 requests are no longer limited");
+			rate = 0;
+		}
+	}
+}
+
+// vim: noet:ts=2:sw=2
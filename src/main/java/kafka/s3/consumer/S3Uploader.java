@@ -0,0 +1,172 @@
+package kafka.s3.consumer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+/**
+ * Bounded upload stage shared by every sink in the process.
+ *
+ * Closed chunks are queued here and PUT to S3 by a fixed pool of uploader
+ * threads, so the consumer threads can keep appending to fresh chunks. When
+ * the queue is full {@link #submit(Runnable)} blocks the caller until an
+ * uploader frees a slot, which is the only point where back-pressure reaches
+ * the Kafka fetch loop.
+ *
+ * Parts of streaming multipart uploads run on a second pool of the same
+ * size. Completing a multipart chunk waits for its parts, so they must not
+ * compete with chunk uploads for the same threads. Multipart uploads that
+ * were initiated and not yet completed or aborted are tracked, so a
+ * shutdown that runs out of time can abort them.
+ */
+class S3Uploader {
+	private static final org.slf4j.Logger logger = LoggerFactory.getLogger(App.class);
+
+	private final ThreadPoolExecutor executor;
+	private final ThreadPoolExecutor partExecutor;
+	private final AmazonS3 client;
+	private final Spool spool;
+	private final ChunkBufferPool bufferPool;
+	private final Set<MultipartChunk> multipart = Collections.newSetFromMap(
+			new ConcurrentHashMap<MultipartChunk, Boolean>());
+
+	public S3Uploader(AmazonS3 client, int threads, int queueSize, Spool spool,
+			ChunkBufferPool bufferPool) {
+		this.client = client;
+		this.spool = spool;
+		this.bufferPool = bufferPool;
+		logger.info("Starting {} S3 uploader threads with a queue of {} chunks", threads, queueSize);
+		executor = newExecutor(threads, queueSize, "s3-uploader-");
+		partExecutor = newExecutor(threads, queueSize, "s3-part-uploader-");
+	}
+
+	private static ThreadPoolExecutor newExecutor(int threads, int queueSize, String name) {
+		return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new UploaderThreadFactory(name),
+				new BlockWhenFull());
+	}
+
+	/**
+	 * @return the S3 client shared by every sink.
+	 */
+	public AmazonS3 getClient() {
+		return client;
+	}
+
+	/**
+	 * @return the write-ahead spool for file chunks, or null if chunks go to
+	 *         anonymous temp files.
+	 */
+	public Spool getSpool() {
+		return spool;
+	}
+
+	/**
+	 * @return the memory budget for file mode chunks, or null if they are
+	 *         written to disk.
+	 */
+	public ChunkBufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	public void submit(Runnable upload) {
+		executor.execute(upload);
+	}
+
+	public <T> Future<T> submitPart(Callable<T> part) {
+		return partExecutor.submit(part);
+	}
+
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	void started(MultipartChunk chunk) {
+		multipart.add(chunk);
+	}
+
+	void finished(MultipartChunk chunk) {
+		multipart.remove(chunk);
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Gives up on the uploads a shutdown could not wait for: both pools are
+	 * interrupted, queued chunks and parts are dropped and the multipart
+	 * uploads still open are aborted. Spooled chunks stay on disk.
+	 */
+	public void shutdownNow() {
+		executor.shutdownNow();
+		partExecutor.shutdownNow();
+		List<MultipartChunk> open = new ArrayList<MultipartChunk>(multipart);
+		if (!open.isEmpty()) {
+			logger.warn("Aborting {} unfinished multipart uploads", open.size());
+		}
+		for (MultipartChunk chunk : open) {
+			chunk.abortNow();
+		}
+	}
+
+	/**
+	 * Waits for queued chunk uploads. Parts are left running because pending
+	 * multipart completions still need them.
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		if (executor.awaitTermination(timeout, unit)) {
+			partExecutor.shutdown();
+			return true;
+		}
+		return false;
+	}
+
+	private static class BlockWhenFull implements RejectedExecutionHandler {
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) {
+				throw new RejectedExecutionException("S3 uploader has been shut down");
+			}
+			try {
+				executor.getQueue().put(r);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException("Interrupted while waiting for upload queue", e);
+			}
+		}
+	}
+
+	private static class UploaderThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+		private final String name;
+
+		private UploaderThreadFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, name + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
+
+// vim: noet:ts=2:sw=2
@@ -11,9 +11,43 @@ interface Sink {
 
 	public long append(MessageAndMetadata<Message> messageAndOffset)
 			throws IOException;
+
+	/**
+	 * Registers {@code o} to hear about every upload, in upload order. An
+	 * upload alone does not make a commit safe: the consumed position also
+	 * covers open chunks, see {@link #flush()}.
+	 */
 	public void addObserver(Observer o);
 	public void checkFileLease();
 	public int getUploads();
+
+	/**
+	 * Commits every open chunk to the uploader. The sinks of the open hours
+	 * stay open for the next messages.
+	 */
+	public void flush();
+
+	/**
+	 * Waits until every chunk handed to the uploader is in S3.
+	 */
+	public void awaitUploads() throws InterruptedException;
+
+	/**
+	 * @return chunks handed to the uploader that are not in S3 yet.
+	 */
+	public int getPendingUploads();
+
+	/**
+	 * Closes the sinks of the open hours once the worker is done with them,
+	 * after {@link #flush()} and {@link #awaitUploads()}.
+	 */
+	public void close();
+
+	/**
+	 * Called after the offsets of everything appended so far have been
+	 * committed, while nothing is being appended.
+	 */
+	public void committed() throws IOException;
 }
 
 // vim: noet:ts=2:sw=2
@@ -0,0 +1,260 @@
+package kafka.s3.consumer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Instruments of one topic partition worker, registered as
+ * {@code <topic>.<partition>.<metric>}.
+ *
+ * Only the worker thread records into them, except for the upload timer
+ * which the uploader threads update. Counters are striped adders and timers
+ * keep their recent values in a {@link RecentReservoir}, so the
+ * per-message path takes no lock. Fetch and append latencies are sampled
+ * because timing every message costs about as much as appending a small
+ * one.
+ */
+class SinkMetrics {
+	// One in SAMPLE_MASK + 1 messages is timed.
+	private static final int SAMPLE_MASK = 15;
+
+	private static final MetricRegistry.MetricSupplier<Timer> TIMERS
+			= new MetricRegistry.MetricSupplier<Timer>() {
+		@Override
+		public Timer newMetric() {
+			return new Timer(new RecentReservoir(RecentReservoir.DEFAULT_SIZE));
+		}
+	};
+
+	/**
+	 * Why a chunk was cut, counted as {@code rotations.<cause>}.
+	 */
+	enum Rotation {
+		/** It reached the object size or message count. */
+		SIZE("size"),
+		/** Its lease ran out. */
+		LEASE("lease"),
+		/** Its hour was evicted to make room for another. */
+		EVICT("evict"),
+		/** The watermark closed its hour. */
+		WATERMARK("watermark"),
+		/** A checkpoint or shutdown uploaded it. */
+		FLUSH("flush");
+
+		private final String metric;
+
+		Rotation(String metric) {
+			this.metric = metric;
+		}
+	}
+
+	private final MetricRegistry registry;
+	private final String prefix;
+
+	private final Timer fetch;
+	private final Timer append;
+	private final Timer upload;
+	private final Timer chunkLatency;
+	private final Histogram rawChunkSize;
+	private final Histogram compressedChunkSize;
+	private final Histogram compressionRatio;
+	private final Counter messages;
+	private final Counter bytes;
+	private final Counter[] rotations;
+	private final Counter openSinks;
+	private final Counter evictedSinks;
+	private final Counter skippedUploads;
+	private final Counter closedHours;
+	private final Counter lateMessages;
+	private final Counter droppedMessages;
+	private final Counter routedMessages;
+	private final Counter invalidMessages;
+	private final List<String> gauges = new ArrayList<String>();
+
+	// Timestamp (seconds) of the newest message appended.
+	private volatile long lastEventTime;
+	private int sample;
+
+	public SinkMetrics(MetricRegistry registry, String topic, int partition) {
+		this.registry = registry;
+		this.prefix = MetricRegistry.name(topic, Integer.toString(partition));
+
+		fetch = registry.timer(name("fetch"), TIMERS);
+		append = registry.timer(name("append"), TIMERS);
+		upload = registry.timer(name("upload"), TIMERS);
+		chunkLatency = registry.timer(name("chunk.latency"), TIMERS);
+		rawChunkSize = registry.histogram(name("chunk.raw"));
+		compressedChunkSize = registry.histogram(name("chunk.compressed"));
+		compressionRatio = registry.histogram(name("chunk.ratio"));
+		messages = registry.counter(name("messages"));
+		bytes = registry.counter(name("bytes"));
+		rotations = new Counter[Rotation.values().length];
+		for (Rotation cause : Rotation.values()) {
+			rotations[cause.ordinal()] = registry.counter(name("rotations." + cause.metric));
+		}
+		openSinks = registry.counter(name("sinks.open"));
+		evictedSinks = registry.counter(name("sinks.evicted"));
+		skippedUploads = registry.counter(name("uploads.skipped"));
+		closedHours = registry.counter(name("hours.closed"));
+		lateMessages = registry.counter(name("messages.late"));
+		droppedMessages = registry.counter(name("messages.dropped"));
+		routedMessages = registry.counter(name("messages.routed"));
+		invalidMessages = registry.counter(name("messages.invalid"));
+
+		register("lag", new Gauge<Long>() {
+			@Override
+			public Long getValue() {
+				long eventTime = lastEventTime;
+				if (eventTime == 0) {
+					return 0L;
+				}
+				return Math.max(0L, System.currentTimeMillis() / 1000 - eventTime);
+			}
+		});
+	}
+
+	private String name(String metric) {
+		return MetricRegistry.name(prefix, metric);
+	}
+
+	public void register(String metric, Gauge<?> gauge) {
+		registry.register(name(metric), gauge);
+		gauges.add(name(metric));
+	}
+
+	/**
+	 * Removes the gauges, which refer to the worker's objects, so a new
+	 * worker for the partition can register its own. Counters and timers
+	 * stay and carry on counting.
+	 */
+	public void close() {
+		for (String gauge : gauges) {
+			registry.remove(gauge);
+		}
+		gauges.clear();
+	}
+
+	/**
+	 * @return the start time if this fetch is sampled, otherwise 0.
+	 */
+	public long startFetch() {
+		return (++sample & SAMPLE_MASK) == 0 ? System.nanoTime() : 0L;
+	}
+
+	/**
+	 * @return the start time of the following append, or 0 if the fetch was
+	 *         not sampled.
+	 */
+	public long fetched(long start) {
+		if (start == 0L) {
+			return 0L;
+		}
+		long now = System.nanoTime();
+		fetch.update(now - start, TimeUnit.NANOSECONDS);
+		return now;
+	}
+
+	public void appended(long start, long size) {
+		messages.inc();
+		bytes.inc(size);
+		if (start != 0L) {
+			append.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Records the timestamp (seconds) of an appended message; the lag gauge
+	 * reports how far behind the wall clock it is.
+	 */
+	public void eventTime(long timestamp) {
+		lastEventTime = timestamp;
+	}
+
+	public void uploaded(long nanos) {
+		upload.update(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Records how long after its first message a chunk became visible in
+	 * S3, the end-to-end latency of its oldest message.
+	 */
+	public void visible(long openedNanos) {
+		chunkLatency.update(System.nanoTime() - openedNanos, TimeUnit.NANOSECONDS);
+	}
+
+	public void uploadSkipped() {
+		skippedUploads.inc();
+	}
+
+	/**
+	 * @param raw bytes of messages in the chunk.
+	 * @param compressed bytes of the object written to S3.
+	 */
+	public void chunkCommitted(long raw, long compressed) {
+		rawChunkSize.update(raw);
+		compressedChunkSize.update(compressed);
+		if (compressed > 0) {
+			// in percent, histograms only hold longs
+			compressionRatio.update(raw * 100 / compressed);
+		}
+	}
+
+	public void rotated(Rotation cause) {
+		rotations[cause.ordinal()].inc();
+	}
+
+	public void sinkOpened() {
+		openSinks.inc();
+	}
+
+	public void sinkClosed() {
+		openSinks.dec();
+	}
+
+	public void sinkEvicted() {
+		evictedSinks.inc();
+	}
+
+	public void hourClosed() {
+		closedHours.inc();
+	}
+
+	/**
+	 * Counts a message of an hour the watermark already closed.
+	 */
+	public void lateMessage() {
+		lateMessages.inc();
+	}
+
+	/**
+	 * Counts a message that is not written at all: one the topic's transform
+	 * rules dropped, or one that did not fit its Parquet schema while dead
+	 * letters are off.
+	 */
+	public void messageDropped() {
+		droppedMessages.inc();
+	}
+
+	/**
+	 * Counts a message the topic's transform rules sent to another category.
+	 */
+	public void messageRouted() {
+		routedMessages.inc();
+	}
+
+	/**
+	 * Counts a message that did not fit the topic's Parquet schema.
+	 */
+	public void messageInvalid() {
+		invalidMessages.inc();
+	}
+}
+
+// vim: noet:ts=2:sw=2
@@ -1,12 +1,20 @@
 package kafka.s3.consumer;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 
+/**
+ * Compression codec applied to every chunk a sink writes.
+ */
 interface SinkStreamHandler {
-//  public OutputStream initStream();
-  public File commitStreamReturnFile() throws IOException;
-  public OutputStream rotateStream() throws IOException;
-  public OutputStream getStream();
+	/**
+	 * Wraps the raw chunk stream; closing the returned stream must finish the
+	 * compressed output and close {@code out}.
+	 */
+	public OutputStream wrap(OutputStream out) throws IOException;
+
+	/**
+	 * @return the suffix of the S3 keys written with this codec, e.g. ".gz".
+	 */
+	public String getExtension();
 }
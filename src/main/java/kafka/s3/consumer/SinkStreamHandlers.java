@@ -0,0 +1,90 @@
+package kafka.s3.consumer;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds the codec configured for a topic.
+ */
+class SinkStreamHandlers {
+	public static final String GZIP = "gzip";
+	public static final String PARALLEL_GZIP = "pgzip";
+	public static final String ZSTD = "zstd";
+	public static final String LZ4 = "lz4";
+	public static final String SNAPPY = "snappy";
+
+	private static final org.slf4j.Logger logger = LoggerFactory.getLogger(App.class);
+
+	// Shared by every pgzip stream in the process, created on first use with
+	// s3.codec.pgzip.threads threads.
+	private static ExecutorService compressionPool;
+	private static int compressionThreads;
+	// The last other thread count that was warned about.
+	private static int ignoredThreads;
+
+	private SinkStreamHandlers() {
+	}
+
+	public static SinkStreamHandler forTopic(String topic, PropertyConfiguration conf) {
+		String codec = conf.getCodec(topic);
+		Integer level = conf.getCodecLevel(topic);
+
+		if (GZIP.equals(codec)) {
+			return new GzipSinkStreamHandler(
+					level == null ? Deflater.DEFAULT_COMPRESSION : level,
+					conf.getCodecBufferSize());
+		} else if (PARALLEL_GZIP.equals(codec)) {
+			ExecutorService pool = getCompressionPool(conf.getParallelGzipThreads());
+			return new ParallelGzipSinkStreamHandler(
+					level == null ? Deflater.DEFAULT_COMPRESSION : level,
+					conf.getParallelGzipBlockSize(), conf.getCodecBufferSize(), pool,
+					getCompressionThreads());
+		} else if (ZSTD.equals(codec)) {
+			return new ZstdSinkStreamHandler(
+					level == null ? ZstdSinkStreamHandler.DEFAULT_LEVEL : level);
+		} else if (LZ4.equals(codec)) {
+			return new Lz4SinkStreamHandler();
+		} else if (SNAPPY.equals(codec)) {
+			return new SnappySinkStreamHandler();
+		}
+		throw new RuntimeException("Invalid property "
+				+ PropertyConfiguration.PROP_S3_CODEC + " for topic " + topic + ": " + codec);
+	}
+
+	/**
+	 * The pool is sized once for the process. A reload that changes
+	 * {@code s3.codec.pgzip.threads} only applies after a restart.
+	 */
+	private static synchronized ExecutorService getCompressionPool(int threads) {
+		if (compressionPool != null && threads != compressionThreads && threads != ignoredThreads) {
+			logger.warn("Keeping {} pgzip threads, {} apply after a restart",
+					compressionThreads, threads);
+			ignoredThreads = threads;
+		}
+		if (compressionPool == null) {
+			compressionThreads = threads;
+			compressionPool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "compressor-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return compressionPool;
+	}
+
+	private static synchronized int getCompressionThreads() {
+		return compressionThreads;
+	}
+}
+
+// vim: noet:ts=2:sw=2
@@ -0,0 +1,22 @@
+package kafka.s3.consumer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.xerial.snappy.SnappyFramedOutputStream;
+
+/**
+ * Writes the Snappy framing format (not Hadoop's block format).
+ */
+public class SnappySinkStreamHandler implements SinkStreamHandler {
+
+  @Override
+  public OutputStream wrap(OutputStream out) throws IOException {
+    return new SnappyFramedOutputStream(out);
+  }
+
+  @Override
+  public String getExtension() {
+    return ".sz";
+  }
+}
@@ -0,0 +1,209 @@
+package kafka.s3.consumer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Date;
+import java.util.Properties;
+
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+/**
+ * Durable local directory for file chunks.
+ *
+ * Every chunk file has a small properties manifest next to it recording
+ * topic, partition, hour, message sequence numbers, codec and upload state. A chunk is
+ * SEALED (closed, key assigned) before it is queued for upload and both
+ * files are removed once it is in S3. On startup sealed chunks are
+ * uploaded from disk; chunks that were still OPEN are incomplete and
+ * dropped.
+ *
+ * Recovery does not move the Kafka offsets. A sealed chunk was not in S3
+ * yet, so no checkpoint covered it, and its messages are consumed again
+ * after the restart. The Kafka 0.7 connector only commits the position of
+ * its streams, so the offsets cannot be set from the manifests either. The
+ * replayed chunks get the recovered chunks' keys (see
+ * {@link MessageSequence}) and are skipped, which is why a spool needs
+ * deterministic keys. The spool keeps closed chunks when the messages can
+ * no longer be fetched, e.g. past the topic's retention.
+ *
+ * It also holds the saved {@link MessageSequence} of every partition.
+ */
+class Spool {
+	private static final org.slf4j.Logger logger = LoggerFactory.getLogger(App.class);
+
+	static final String STATE_OPEN = "OPEN";
+	static final String STATE_SEALED = "SEALED";
+
+	private static final String CHUNK_SUFFIX = ".chunk";
+	private static final String MANIFEST_SUFFIX = ".manifest";
+	private static final String SEQUENCE_SUFFIX = ".sequence";
+
+	private final File dir;
+
+	public Spool(File dir) {
+		this.dir = dir;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new RuntimeException("Could not create spool directory " + dir);
+		}
+	}
+
+	public File newChunkFile(String prefix) throws IOException {
+		return File.createTempFile(prefix, CHUNK_SUFFIX, dir);
+	}
+
+	public Properties newManifest(String topic, int partition, Date date,
+			long firstSequence, String codec, String bucket) {
+		Properties manifest = new Properties();
+		manifest.setProperty("topic", topic);
+		manifest.setProperty("partition", Integer.toString(partition));
+		manifest.setProperty("hour", Long.toString(date.getTime()));
+		manifest.setProperty("firstSequence", Long.toString(firstSequence));
+		manifest.setProperty("codec", codec);
+		manifest.setProperty("bucket", bucket);
+		manifest.setProperty("state", STATE_OPEN);
+		return manifest;
+	}
+
+	/**
+	 * Replaces the chunk's manifest atomically and syncs it to disk.
+	 */
+	public void writeManifest(File chunkFile, Properties manifest) throws IOException {
+		store(getManifestFile(chunkFile), manifest);
+	}
+
+	private void store(File file, Properties properties) throws IOException {
+		File tmp = new File(dir, file.getName() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			properties.store(out, null);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			throw new IOException("Could not write " + file);
+		}
+	}
+
+	private static Properties load(File file) throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		return properties;
+	}
+
+	/**
+	 * @return the saved next message number of the partition, 0 if there is
+	 *         none.
+	 */
+	public long readSequence(String topic, int partition) throws IOException {
+		File file = getSequenceFile(topic, partition);
+		if (!file.exists()) {
+			return 0L;
+		}
+		return Long.parseLong(load(file).getProperty("next"));
+	}
+
+	public void writeSequence(String topic, int partition, long next) throws IOException {
+		Properties sequence = new Properties();
+		sequence.setProperty("next", Long.toString(next));
+		store(getSequenceFile(topic, partition), sequence);
+	}
+
+	private File getSequenceFile(String topic, int partition) {
+		return new File(dir, topic + "-" + partition + SEQUENCE_SUFFIX);
+	}
+
+	/**
+	 * Forces the chunk's data to disk.
+	 */
+	public void sync(File chunkFile) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(chunkFile, "rw");
+		try {
+			file.getFD().sync();
+		} finally {
+			file.close();
+		}
+	}
+
+	public void delete(File chunkFile) {
+		chunkFile.delete();
+		getManifestFile(chunkFile).delete();
+	}
+
+	private static File getManifestFile(File chunkFile) {
+		return new File(chunkFile.getPath() + MANIFEST_SUFFIX);
+	}
+
+	/**
+	 * Queues every sealed chunk left over from a previous run for upload and
+	 * removes incomplete ones. Must run before any sink is created.
+	 */
+	public void recover(final AmazonS3 awsClient, S3Uploader uploader) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+
+		int recovered = 0;
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(".tmp")) {
+				file.delete();
+				continue;
+			}
+			if (!name.endsWith(CHUNK_SUFFIX)) {
+				continue;
+			}
+
+			final File chunkFile = file;
+			Properties manifest;
+			try {
+				manifest = load(getManifestFile(chunkFile));
+			} catch (IOException e) {
+				logger.warn("Dropping spooled chunk {} without a readable manifest", chunkFile);
+				delete(chunkFile);
+				continue;
+			}
+
+			if (!STATE_SEALED.equals(manifest.getProperty("state"))) {
+				logger.warn("Dropping incomplete spooled chunk {}", chunkFile);
+				delete(chunkFile);
+				continue;
+			}
+
+			final String bucket = manifest.getProperty("bucket");
+			final String key = manifest.getProperty("key");
+			logger.info("Recovering spooled chunk {} as {}", chunkFile, key);
+			uploader.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						awsClient.putObject(bucket, key, chunkFile);
+						delete(chunkFile);
+					} catch (RuntimeException e) {
+						logger.error("Could not upload spooled chunk {}, keeping it for the next start",
+								chunkFile, e);
+					}
+				}
+			});
+			recovered++;
+		}
+		logger.info("Recovered {} spooled chunks from {}", recovered, dir);
+		if (recovered > 0) {
+			logger.info("Messages of recovered chunks since the last checkpoint are consumed again");
+		}
+	}
+}
+
+// vim: noet:ts=2:sw=2
@@ -0,0 +1,90 @@
+package kafka.s3.consumer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.ScheduledReporter;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.timgroup.statsd.NonBlockingStatsDClient;
+
+/**
+ * Pushes a metric registry to statsd.
+ *
+ * Counters, meters and the counts of histograms and timers are sent as
+ * statsd counts of the change since the previous report. Gauges and the
+ * median, 99th percentile, max and mean of distributions are sent as
+ * statsd gauges; timer values are in microseconds.
+ */
+class StatsdReporter extends ScheduledReporter {
+	private final NonBlockingStatsDClient statsd;
+	private final Map<String, Long> lastCounts = new HashMap<String, Long>();
+
+	public StatsdReporter(MetricRegistry registry, NonBlockingStatsDClient statsd) {
+		super(registry, "statsd-reporter", MetricFilter.ALL, TimeUnit.SECONDS,
+				TimeUnit.MICROSECONDS);
+		this.statsd = statsd;
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public void report(SortedMap<String, Gauge> gauges, SortedMap<String, Counter> counters,
+			SortedMap<String, Histogram> histograms, SortedMap<String, Meter> meters,
+			SortedMap<String, Timer> timers) {
+		for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+			Object value = entry.getValue().getValue();
+			if (value instanceof Number) {
+				statsd.gauge(entry.getKey(), ((Number) value).intValue());
+			}
+		}
+
+		for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+			reportCount(entry.getKey(), entry.getValue().getCount());
+		}
+
+		for (Map.Entry<String, Meter> entry : meters.entrySet()) {
+			reportCount(entry.getKey(), entry.getValue().getCount());
+		}
+
+		for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+			Histogram histogram = entry.getValue();
+			reportCount(entry.getKey() + ".count", histogram.getCount());
+			reportSnapshot(entry.getKey(), histogram.getSnapshot(), false);
+		}
+
+		for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+			Timer timer = entry.getValue();
+			reportCount(entry.getKey() + ".count", timer.getCount());
+			reportSnapshot(entry.getKey(), timer.getSnapshot(), true);
+		}
+	}
+
+	private void reportCount(String name, long count) {
+		Long last = lastCounts.put(name, count);
+		long delta = count - (last == null ? 0L : last);
+		if (delta != 0) {
+			statsd.count(name, (int) delta);
+		}
+	}
+
+	private void reportSnapshot(String name, Snapshot snapshot, boolean duration) {
+		statsd.gauge(name + ".p50", toInt(snapshot.getMedian(), duration));
+		statsd.gauge(name + ".p99", toInt(snapshot.get99thPercentile(), duration));
+		statsd.gauge(name + ".max", toInt(snapshot.getMax(), duration));
+		statsd.gauge(name + ".mean", toInt(snapshot.getMean(), duration));
+	}
+
+	private int toInt(double value, boolean duration) {
+		return (int) (duration ? convertDuration(value) : value);
+	}
+}
+
+// vim: noet:ts=2:sw=2
@@ -0,0 +1,119 @@
+package kafka.s3.consumer;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import kafka.consumer.ConsumerConfig;
+import kafka.consumer.KafkaStream;
+import kafka.javaapi.consumer.ConsumerConnector;
+import kafka.message.Message;
+
+import org.slf4j.LoggerFactory;
+
+/**
+ * The single consumer connector of a topic.
+ *
+ * It requests one stream per configured partition worker, so a topic costs
+ * one ZooKeeper session, one set of fetcher threads and one rebalance
+ * participant regardless of how many workers archive it. Commits cover
+ * every stream of the connector and are driven by its {@link OffsetTracker}.
+ * Workers notice checkpoints between messages, which is why the consumer
+ * timeout is always set: an idle stream returns from the iterator after it.
+ */
+class TopicConsumer {
+	private static final org.slf4j.Logger logger = LoggerFactory.getLogger(App.class);
+
+	private final String topic;
+	private ConsumerConnector consumer;
+	private final List<KafkaStream<Message>> streams;
+
+	public TopicConsumer(String topic, int streamCount, PropertyConfiguration conf) {
+		this.topic = topic;
+
+		boolean connected = false;
+
+		for (int retryCount = 1; retryCount <= 3; retryCount++) {
+			try {
+				consumer = kafka.consumer.Consumer
+						.createJavaConsumerConnector(createConsumerConfig(topic, conf));
+
+				connected = true;
+				break;
+			} catch (Exception e) {
+				logger.warn("Could not create Kafka consumer. Retrying in 3s. (retry #{})", retryCount, e);
+				try {
+					Thread.sleep(3000);
+				} catch (InterruptedException ie) {
+					logger.warn("InterruptedException caught.", ie);
+				}
+			}
+		}
+
+		if (!connected) {
+			throw new RuntimeException("Could not connect to Kafka for topic " + topic
+					+ " after 3 retries");
+		}
+
+		Map<String, Integer> topicCountMap = new HashMap<String, Integer>();
+		topicCountMap.put(topic, streamCount);
+		streams = consumer.createMessageStreams(topicCountMap).get(topic);
+		logger.info("Created {} streams for topic {}", streams.size(), topic);
+	}
+
+	private static ConsumerConfig createConsumerConfig(String topic, PropertyConfiguration conf) {
+		Properties props = new Properties();
+		String fetchSize;
+
+		props.put("autocommit.enable", "false");
+
+		logger.debug("Zookeeper connect string {}",
+				conf.getString(PropertyConfiguration.ZK_CONNECT_STRING));
+		props.put("zk.connect",
+				conf.getString(PropertyConfiguration.ZK_CONNECT_STRING));
+		props.put("groupid",
+				conf.getString(PropertyConfiguration.CONSUMER_GROUP_ID));
+		long timeout = conf.getConsumerTimeout();
+		props.put("consumer.timeout.ms", Long.toString(timeout));
+		logger.debug("Consumer timeout {}", timeout);
+		props.put("zk.sessiontimeout.ms",
+				conf.getString(PropertyConfiguration.ZK_SESSION_TIMEOUT));
+		props.put("zk.synctime.ms", conf.getString("zk.synctime.ms"));
+
+		fetchSize = conf.getFetchSize(topic);
+		logger.info("Fetch size for topic {} set to {}", topic, fetchSize);
+		props.put("fetch.size", fetchSize);
+
+		props.put("socket.buffersize",
+				conf.getString(PropertyConfiguration.SOCKET_BUFFER_SIZE));
+
+		return new ConsumerConfig(props);
+	}
+
+	public String getTopic() {
+		return topic;
+	}
+
+	public KafkaStream<Message> getStream(int index) {
+		return streams.get(index);
+	}
+
+	/**
+	 * Writes the consumed position of every stream to ZooKeeper. The
+	 * connector allows this from any thread.
+	 */
+	public void commitOffsets() {
+		consumer.commitOffsets();
+	}
+
+	/**
+	 * Closes the connector. Its streams end and the topic's partitions are
+	 * rebalanced over the remaining consumers of the group.
+	 */
+	public void shutdown() {
+		consumer.shutdown();
+	}
+}
+
+// vim: noet:ts=2:sw=2
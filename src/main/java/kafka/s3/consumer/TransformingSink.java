@@ -0,0 +1,130 @@
+package kafka.s3.consumer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Observer;
+
+import kafka.message.Message;
+import kafka.message.MessageAndMetadata;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the messages of a partition through its topic's
+ * {@link MessageTransform} before they are archived.
+ *
+ * Kept messages go to the partition's sink, or, when a rule routes them to
+ * a category, to a sink of that category opened on first use. All of them
+ * share the partition's upload sequencer, so uploads are still reported in
+ * the order they were queued, and its message sequence, so message numbers
+ * follow the stream. Category hours close with the partition's watermark
+ * and get hour markers of their own. The open sink limits count them as
+ * well.
+ */
+class TransformingSink implements Sink {
+	private static final org.slf4j.Logger logger = LoggerFactory.getLogger(App.class);
+
+	private final String topic;
+	private final int partition;
+	private final PropertyConfiguration conf;
+	private final OpenSinkLimit openSinks;
+	private final MessageTransform transform;
+	private final MultiS3JsonFileSink sink;
+	private final SinkMetrics metrics;
+	private final Map<String, MultiS3JsonFileSink> categories = new HashMap<String, MultiS3JsonFileSink>();
+	private Observer obs;
+
+	public TransformingSink(String topic, int partition, PropertyConfiguration conf,
+			OpenSinkLimit openSinks, MessageTransform transform, MultiS3JsonFileSink sink) {
+		this.topic = topic;
+		this.partition = partition;
+		this.conf = conf;
+		this.openSinks = openSinks;
+		this.transform = transform;
+		this.sink = sink;
+		this.metrics = sink.getSequencer().getMetrics();
+	}
+
+	public long append(MessageAndMetadata<Message> msgAndMetadata) throws IOException {
+		if (!transform.apply(msgAndMetadata.message().payload())) {
+			metrics.messageDropped();
+			return 0;
+		}
+		String category = transform.getCategory();
+		if (category == null) {
+			return sink.append(transform.getPayload());
+		}
+		metrics.messageRouted();
+		return getCategorySink(category).append(transform.getPayload());
+	}
+
+	private MultiS3JsonFileSink getCategorySink(String category) throws IOException {
+		MultiS3JsonFileSink categorySink = categories.get(category);
+		if (categorySink == null) {
+			logger.info("Routing messages of {} partition {} to {}", topic, partition, category);
+			categorySink = new MultiS3JsonFileSink(topic, category, partition, conf,
+					sink.getSequencer(), sink.getMessageSequence(), openSinks, sink.getMarkers());
+			sink.addFollower(categorySink);
+			categorySink.addObserver(obs);
+			categories.put(category, categorySink);
+		}
+		return categorySink;
+	}
+
+	public void addObserver(Observer o) {
+		this.obs = o;
+		sink.addObserver(o);
+		for (MultiS3JsonFileSink categorySink : categories.values()) {
+			categorySink.addObserver(o);
+		}
+	}
+
+	public void checkFileLease() {
+		sink.checkFileLease();
+		for (MultiS3JsonFileSink categorySink : categories.values()) {
+			categorySink.checkFileLease();
+		}
+	}
+
+	public int getUploads() {
+		int uploads = sink.getUploads();
+		for (MultiS3JsonFileSink categorySink : categories.values()) {
+			uploads += categorySink.getUploads();
+		}
+		return uploads;
+	}
+
+	public void flush() {
+		sink.flush();
+		for (MultiS3JsonFileSink categorySink : categories.values()) {
+			categorySink.flush();
+		}
+	}
+
+	/**
+	 * The sinks share one sequencer, so waiting for one waits for all.
+	 */
+	public void awaitUploads() throws InterruptedException {
+		sink.awaitUploads();
+	}
+
+	public int getPendingUploads() {
+		return sink.getPendingUploads();
+	}
+
+	public void close() {
+		sink.close();
+		for (MultiS3JsonFileSink categorySink : categories.values()) {
+			categorySink.close();
+		}
+	}
+
+	/**
+	 * The sinks share one message sequence as well.
+	 */
+	public void committed() throws IOException {
+		sink.committed();
+	}
+}
+
+// vim: noet:ts=2:sw=2
@@ -0,0 +1,181 @@
+package kafka.s3.consumer;
+
+import java.util.LinkedList;
+
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+
+/**
+ * Keeps the uploads of one partition in order.
+ *
+ * Uploads run concurrently on the shared {@link S3Uploader}, but the
+ * completion callback of a chunk only fires once every chunk submitted
+ * before it has been uploaded as well, so upload counts and hour markers
+ * never get ahead of a chunk that is still in flight or that failed.
+ * Callbacks run one at a time in that order, on the uploader thread that
+ * completed the upload they waited for, and outside the sequencer's lock so
+ * a slow callback does not hold up uploads finishing on other threads.
+ *
+ * Offsets are not committed from here: the connector commits the consumed
+ * position, which includes chunks submitted after this one or still open.
+ * Workers upload those too and wait for {@link #awaitCompletion()} first.
+ */
+class UploadSequencer {
+	private static final org.slf4j.Logger logger = LoggerFactory.getLogger(App.class);
+
+	private final S3Uploader uploader;
+	private final SinkMetrics metrics;
+	private final LinkedList<Upload> inFlight = new LinkedList<Upload>();
+	// Whether a thread is running the callbacks at the head of inFlight.
+	private boolean draining;
+	private volatile Throwable failure;
+
+	public UploadSequencer(S3Uploader uploader, SinkMetrics metrics) {
+		this.uploader = uploader;
+		this.metrics = metrics;
+
+		metrics.register("uploads.pending", new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return getPending();
+			}
+		});
+	}
+
+	public S3Uploader getUploader() {
+		return uploader;
+	}
+
+	public SinkMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Queues {@code upload} and runs {@code onCommitted} after it and all
+	 * previously submitted uploads have succeeded. Blocks while the shared
+	 * upload queue is full.
+	 */
+	public void submit(final Runnable upload, Runnable onCommitted) {
+		checkFailure();
+
+		final Upload entry = new Upload(onCommitted);
+		synchronized (this) {
+			inFlight.addLast(entry);
+		}
+
+		uploader.submit(new Runnable() {
+			@Override
+			public void run() {
+				long start = System.nanoTime();
+				try {
+					upload.run();
+				} catch (Throwable t) {
+					logger.error("Upload failed, holding back later commits", t);
+					failed(t);
+					return;
+				}
+				metrics.uploaded(System.nanoTime() - start);
+				completed(entry);
+			}
+		});
+	}
+
+	private void completed(Upload entry) {
+		synchronized (this) {
+			entry.done = true;
+			if (draining) {
+				// Run by the thread that is already draining.
+				return;
+			}
+			draining = true;
+		}
+		drain();
+	}
+
+	/**
+	 * Runs the callbacks of the completed uploads at the head of the queue.
+	 * An entry stays queued until its callback has run, so later entries
+	 * wait for it and awaitCompletion only returns after it.
+	 */
+	private void drain() {
+		while (true) {
+			Upload head;
+			synchronized (this) {
+				if (inFlight.isEmpty() || !inFlight.getFirst().done) {
+					draining = false;
+					notifyAll();
+					return;
+				}
+				head = inFlight.getFirst();
+			}
+			try {
+				head.onCommitted.run();
+			} catch (RuntimeException e) {
+				logger.error("Upload callback failed", e);
+			}
+			synchronized (this) {
+				inFlight.removeFirst();
+				notifyAll();
+			}
+		}
+	}
+
+	private synchronized void failed(Throwable t) {
+		failure = t;
+		notifyAll();
+	}
+
+	/**
+	 * Waits until every submitted upload has succeeded and its callback has
+	 * run, or rethrows the first failure.
+	 */
+	public synchronized void awaitCompletion() throws InterruptedException {
+		checkFailure();
+		while (!inFlight.isEmpty()) {
+			wait();
+			checkFailure();
+		}
+	}
+
+	/**
+	 * Runs {@code callback} once every upload submitted so far has succeeded
+	 * and its callback has run: right away if none is pending, otherwise on
+	 * the uploader thread that completes the last of them.
+	 */
+	public void afterPending(Runnable callback) {
+		synchronized (this) {
+			if (!inFlight.isEmpty()) {
+				Upload entry = new Upload(callback);
+				entry.done = true;
+				inFlight.addLast(entry);
+				return;
+			}
+		}
+		callback.run();
+	}
+
+	/**
+	 * Rethrows a failed upload on the calling (consumer) thread.
+	 */
+	public void checkFailure() {
+		if (failure != null) {
+			throw new RuntimeException("Asynchronous S3 upload failed", failure);
+		}
+	}
+
+	public synchronized int getPending() {
+		return inFlight.size();
+	}
+
+	private static class Upload {
+		private final Runnable onCommitted;
+		private boolean done;
+
+		private Upload(Runnable onCommitted) {
+			this.onCommitted = onCommitted;
+		}
+	}
+}
+
+// vim: noet:ts=2:sw=2
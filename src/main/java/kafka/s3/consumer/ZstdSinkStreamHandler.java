@@ -0,0 +1,26 @@
+package kafka.s3.consumer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.github.luben.zstd.ZstdOutputStream;
+
+public class ZstdSinkStreamHandler implements SinkStreamHandler {
+  public static final int DEFAULT_LEVEL = 3;
+
+  private final int level;
+
+  public ZstdSinkStreamHandler(int level) {
+    this.level = level;
+  }
+
+  @Override
+  public OutputStream wrap(OutputStream out) throws IOException {
+    return new ZstdOutputStream(out, level);
+  }
+
+  @Override
+  public String getExtension() {
+    return ".zst";
+  }
+}
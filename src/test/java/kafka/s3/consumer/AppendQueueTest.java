@@ -0,0 +1,127 @@
+package kafka.s3.consumer;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class AppendQueueTest extends TestCase {
+	private File root;
+	private S3Uploader uploader;
+	private UploadSequencer sequencer;
+	private PropertyConfiguration conf;
+	private ExecutorService pool;
+
+	/**
+	 * Records the appended message numbers instead of writing chunks.
+	 */
+	private static class RecordingSink extends S3JsonFileSink {
+		final List<Long> appended = new ArrayList<Long>();
+		long failAt = -1;
+
+		RecordingSink(PropertyConfiguration conf, UploadSequencer sequencer) throws IOException {
+			super("topic", 0, conf, new KeyLayout("topic", conf), new FileLease("topic", conf),
+					new Date(), sequencer, new MessageSequence(0));
+		}
+
+		@Override
+		long appendNow(ByteBuffer buffer, long number) throws IOException {
+			if (number == failAt) {
+				throw new IOException("Disk full");
+			}
+			synchronized (appended) {
+				appended.add(number);
+			}
+			return buffer.remaining();
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		root = File.createTempFile("queue", "");
+		root.delete();
+		uploader = new S3Uploader(new FileSystemS3Client(root), 2, 16, null, null);
+		sequencer = new UploadSequencer(uploader, new SinkMetrics(new MetricRegistry(), "topic", 0));
+		File props = new File(root.getPath() + ".properties");
+		FileWriter writer = new FileWriter(props);
+		writer.write("s3.bucket=bucket\ns3.prefix=base/\n");
+		writer.close();
+		props.deleteOnExit();
+		conf = new PropertyConfiguration(props.toURI().toURL());
+		pool = Executors.newFixedThreadPool(2);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		pool.shutdownNow();
+		uploader.shutdown();
+		uploader.awaitTermination(1, TimeUnit.MINUTES);
+	}
+
+	private static ByteBuffer message() {
+		return ByteBuffer.wrap("{}".getBytes());
+	}
+
+	public void testAppendsInQueueOrder() throws IOException {
+		RecordingSink[] sinks = new RecordingSink[3];
+		AppendQueue[] queues = new AppendQueue[sinks.length];
+		for (int i = 0; i < sinks.length; i++) {
+			sinks[i] = new RecordingSink(conf, sequencer);
+			queues[i] = new AppendQueue(sinks[i], pool, 8);
+		}
+		// More than a batch per queue, so the queues take turns on the pool.
+		for (long n = 0; n < 2000; n++) {
+			queues[(int) (n % queues.length)].add(message(), n);
+		}
+		for (AppendQueue queue : queues) {
+			queue.sync();
+		}
+
+		for (int i = 0; i < sinks.length; i++) {
+			List<Long> appended = sinks[i].appended;
+			assertEquals(2000 / sinks.length + (i < 2000 % sinks.length ? 1 : 0), appended.size());
+			for (int j = 0; j < appended.size(); j++) {
+				assertEquals(Long.valueOf(j * sinks.length + i), appended.get(j));
+			}
+		}
+	}
+
+	public void testSyncWithNothingQueued() throws IOException {
+		new AppendQueue(new RecordingSink(conf, sequencer), pool, 8).sync();
+	}
+
+	public void testFailureIsRethrown() throws IOException {
+		RecordingSink sink = new RecordingSink(conf, sequencer);
+		sink.failAt = 3;
+		AppendQueue queue = new AppendQueue(sink, pool, 4);
+		// Fits in the queue, so no add can see the failure yet.
+		for (long n = 0; n < 4; n++) {
+			queue.add(message(), n);
+		}
+		try {
+			queue.sync();
+			fail("Failure not reported by sync");
+		} catch (RuntimeException e) {
+			assertEquals("Disk full", e.getCause().getMessage());
+		}
+		try {
+			queue.add(message(), 4);
+			fail("Failure not reported by add");
+		} catch (IOException e) {
+			assertEquals("Disk full", e.getMessage());
+		}
+		assertEquals(3, sink.appended.size());
+	}
+}
+
+// vim: noet:ts=2:sw=2
@@ -0,0 +1,225 @@
+package kafka.s3.consumer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+public class CompactorTest extends TestCase {
+	private static final String BUCKET = "bucket";
+	private static final String PREFIX = "topic/2024-01-01-00/topic_0";
+
+	private File root;
+	private FileSystemS3Client s3;
+	private S3Uploader uploader;
+	private Compactor compactor;
+
+	@Override
+	protected void setUp() throws Exception {
+		root = File.createTempFile("compactor", "");
+		root.delete();
+		root.mkdirs();
+		File props = new File(root, "app.properties");
+		FileWriter writer = new FileWriter(props);
+		writer.write("s3.bucket=" + BUCKET + "\n");
+		writer.close();
+
+		s3 = new FileSystemS3Client(new File(root, "s3"));
+		uploader = new S3Uploader(s3, 2, 16, null, null);
+		compactor = new Compactor(new PropertyConfiguration(props.toURI().toURL()), uploader);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		uploader.shutdown();
+		uploader.awaitTermination(1, TimeUnit.MINUTES);
+		delete(root);
+	}
+
+	public void testMergesInSequenceOrder() throws IOException {
+		put(PREFIX + "-10-19-bbbb.json.gz", "b");
+		put(PREFIX + "-2-9-aaaa.json.gz", "a");
+		put(PREFIX + "-20-29-cccc.json.gz", "c");
+
+		compactor.compact(BUCKET, PREFIX, 1024);
+
+		List<String> keys = list(PREFIX + "-");
+		assertEquals(1, keys.size());
+		String merged = keys.get(0);
+		assertTrue(merged, merged.startsWith(PREFIX + "-merged-2-29-"));
+		assertTrue(merged, merged.endsWith(".gz"));
+		assertEquals("abc", get(merged));
+	}
+
+	public void testLeavesTombstonesForMergedSources() throws IOException {
+		put(PREFIX + "-0-9-aaaa.json.gz", "a");
+		put(PREFIX + "-10-19-bbbb.json.gz", "b");
+
+		compactor.compact(BUCKET, PREFIX, 1024);
+
+		assertFalse(s3.doesObjectExist(BUCKET, PREFIX + "-0-9-aaaa.json.gz"));
+		assertTrue(s3.doesObjectExist(BUCKET,
+				Compactor.getTombstoneKey(PREFIX + "-0-9-aaaa.json.gz")));
+		assertTrue(s3.doesObjectExist(BUCKET,
+				Compactor.getTombstoneKey(PREFIX + "-10-19-bbbb.json.gz")));
+	}
+
+	public void testTombstoneKey() {
+		assertEquals("topic/2024-01-01-00/_compaction/topic_0-0-9-aaaa.json.gz.merged",
+				Compactor.getTombstoneKey(PREFIX + "-0-9-aaaa.json.gz"));
+	}
+
+	public void testDoesNotMergeMergedObjects() throws IOException {
+		put(PREFIX + "-0-9-aaaa.json.gz", "a");
+		put(PREFIX + "-10-19-bbbb.json.gz", "b");
+		compactor.compact(BUCKET, PREFIX, 1024);
+		String merged = list(PREFIX + "-").get(0);
+
+		put(PREFIX + "-20-29-cccc.json.gz", "c");
+		put(PREFIX + "-30-39-dddd.json.gz", "d");
+		compactor.compact(BUCKET, PREFIX, 1024);
+
+		List<String> keys = list(PREFIX + "-");
+		assertEquals(2, keys.size());
+		assertTrue(keys.contains(merged));
+		assertEquals("ab", get(merged));
+		keys.remove(merged);
+		assertTrue(keys.get(0), keys.get(0).startsWith(PREFIX + "-merged-20-39-"));
+		assertEquals("cd", get(keys.get(0)));
+
+		compactor.compact(BUCKET, PREFIX, 1024);
+		assertEquals(2, list(PREFIX + "-").size());
+	}
+
+	public void testKeepsObjectsOfOtherFormats() throws IOException {
+		put(PREFIX + "-0-9-aaaa.json", "a");
+		put(PREFIX + "-10-19-bbbb.json", "b");
+
+		compactor.compact(BUCKET, PREFIX, 1024);
+
+		assertEquals(2, list(PREFIX + "-").size());
+	}
+
+	public void testFinishesPendingMergeWhoseTargetExists() throws IOException {
+		String target = PREFIX + "-merged-0-19-id.json.gz";
+		put(PREFIX + "-0-9-aaaa.json.gz", "a");
+		put(PREFIX + "-10-19-bbbb.json.gz", "b");
+		put(target, "ab");
+		String manifest = putManifest("PENDING", target,
+				PREFIX + "-0-9-aaaa.json.gz", PREFIX + "-10-19-bbbb.json.gz");
+
+		compactor.compact(BUCKET, PREFIX, 1024);
+
+		List<String> keys = list(PREFIX + "-");
+		assertEquals(1, keys.size());
+		assertEquals(target, keys.get(0));
+		assertEquals("DONE", getManifest(manifest).getProperty("state"));
+	}
+
+	public void testDropsPendingMergeWithoutTarget() throws IOException {
+		put(PREFIX + "-0-9-aaaa.json.gz", "a");
+		String manifest = putManifest("PENDING", PREFIX + "-merged-0-19-id.json.gz",
+				PREFIX + "-0-9-aaaa.json.gz");
+
+		compactor.compact(BUCKET, PREFIX, 1024);
+
+		assertFalse(s3.doesObjectExist(BUCKET, manifest));
+		assertTrue(s3.doesObjectExist(BUCKET, PREFIX + "-0-9-aaaa.json.gz"));
+		assertFalse(s3.doesObjectExist(BUCKET,
+				Compactor.getTombstoneKey(PREFIX + "-0-9-aaaa.json.gz")));
+	}
+
+	public void testDeletesSourcesOfDoneMerge() throws IOException {
+		String target = PREFIX + "-merged-0-19-id.json.gz";
+		put(PREFIX + "-10-19-bbbb.json.gz", "b");
+		put(target, "ab");
+		putManifest("DONE", target, PREFIX + "-0-9-aaaa.json.gz", PREFIX + "-10-19-bbbb.json.gz");
+
+		compactor.compact(BUCKET, PREFIX, 1024);
+
+		assertEquals(1, list(PREFIX + "-").size());
+		assertTrue(s3.doesObjectExist(BUCKET,
+				Compactor.getTombstoneKey(PREFIX + "-10-19-bbbb.json.gz")));
+	}
+
+	private void put(String key, String content) {
+		byte[] bytes = content.getBytes();
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(bytes.length);
+		s3.putObject(BUCKET, key, new ByteArrayInputStream(bytes), metadata);
+	}
+
+	private String get(String key) throws IOException {
+		InputStream in = s3.getObject(BUCKET, key).getObjectContent();
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+			return out.toString();
+		} finally {
+			in.close();
+		}
+	}
+
+	private List<String> list(String prefix) {
+		List<String> keys = new ArrayList<String>();
+		for (S3ObjectSummary object : s3.listObjects(new ListObjectsRequest()
+				.withBucketName(BUCKET).withPrefix(prefix)).getObjectSummaries()) {
+			keys.add(object.getKey());
+		}
+		return keys;
+	}
+
+	private String putManifest(String state, String target, String... sources) throws IOException {
+		Properties manifest = new Properties();
+		manifest.setProperty("target", target);
+		manifest.setProperty("sources", Integer.toString(sources.length));
+		for (int i = 0; i < sources.length; i++) {
+			manifest.setProperty("source." + i, sources[i]);
+		}
+		manifest.setProperty("state", state);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		manifest.store(out, null);
+		String key = "topic/2024-01-01-00/_compaction/topic_0-id.manifest";
+		put(key, out.toString("ISO-8859-1"));
+		return key;
+	}
+
+	private Properties getManifest(String key) throws IOException {
+		Properties manifest = new Properties();
+		InputStream in = s3.getObject(BUCKET, key).getObjectContent();
+		try {
+			manifest.load(in);
+		} finally {
+			in.close();
+		}
+		return manifest;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
+
+// vim: noet:ts=2:sw=2
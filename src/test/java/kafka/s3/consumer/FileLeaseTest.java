@@ -0,0 +1,87 @@
+package kafka.s3.consumer;
+
+import java.io.File;
+import java.io.FileWriter;
+
+import junit.framework.TestCase;
+
+public class FileLeaseTest extends TestCase {
+	private File props;
+
+	@Override
+	protected void setUp() throws Exception {
+		props = File.createTempFile("filelease", ".properties");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		props.delete();
+	}
+
+	private FileLease lease(String... properties) throws Exception {
+		FileWriter writer = new FileWriter(props);
+		writer.write("s3.bucket=bucket\n");
+		for (String property : properties) {
+			writer.write(property + "\n");
+		}
+		writer.close();
+		return new FileLease("topic", new PropertyConfiguration(props.toURI().toURL()));
+	}
+
+	public void testFixedLease() throws Exception {
+		FileLease lease = lease("s3.filelease.ms=1000", "s3.maxobjectsize=1000");
+		lease.filled(5000);
+		lease.expired(10, 1000);
+		assertEquals(1000, lease.get());
+	}
+
+	public void testFullChunksLengthenTheLease() throws Exception {
+		FileLease lease = lease("s3.filelease.ms=1000", "s3.filelease.max.ms=8000",
+				"s3.maxobjectsize=1000");
+		assertEquals(1000, lease.get());
+		lease.filled(3000);
+		assertEquals(2000, lease.get());
+		lease.filled(1000);
+		assertEquals(1500, lease.get());
+	}
+
+	public void testShortChunksScaleTheLease() throws Exception {
+		FileLease lease = lease("s3.filelease.ms=1000", "s3.filelease.max.ms=8000",
+				"s3.maxobjectsize=1000");
+		// A quarter of the object size in 1s would need 4s.
+		lease.expired(250, 1000);
+		assertEquals(2500, lease.get());
+	}
+
+	public void testStaysWithinBounds() throws Exception {
+		FileLease lease = lease("s3.filelease.ms=1000", "s3.filelease.max.ms=8000",
+				"s3.maxobjectsize=1000");
+		for (int i = 0; i < 64; i++) {
+			lease.expired(0, 1000);
+		}
+		assertEquals(8000, lease.get(), 1);
+		assertTrue(lease.get() <= 8000);
+		for (int i = 0; i < 64; i++) {
+			lease.filled(1);
+		}
+		assertTrue(lease.get() >= 1000);
+		assertEquals(1000, lease.get(), 1);
+	}
+
+	public void testCappedByCommitInterval() throws Exception {
+		FileLease lease = lease("s3.filelease.ms=1000", "s3.filelease.max.ms=8000",
+				"kafka.commit.interval.ms=4000", "s3.maxobjectsize=1000");
+		for (int i = 0; i < 64; i++) {
+			lease.expired(0, 1000);
+		}
+		assertTrue(lease.get() <= 4000);
+		assertEquals(4000, lease.get(), 1);
+	}
+
+	public void testPerTopicLease() throws Exception {
+		FileLease lease = lease("s3.filelease.ms=1000", "s3.filelease.ms.topic=3000");
+		assertEquals(3000, lease.get());
+	}
+}
+
+// vim: noet:ts=2:sw=2
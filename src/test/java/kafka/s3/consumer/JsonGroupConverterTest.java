@@ -0,0 +1,87 @@
+package kafka.s3.consumer;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.schema.MessageTypeParser;
+
+public class JsonGroupConverterTest extends TestCase {
+	private static final String SCHEMA = "message event {\n"
+			+ "  required int64 ts;\n"
+			+ "  optional binary name (UTF8);\n"
+			+ "  optional int32 count;\n"
+			+ "  optional boolean ok;\n"
+			+ "  optional double ratio;\n"
+			+ "  repeated binary tags (UTF8);\n"
+			+ "  optional group user {\n"
+			+ "    required binary id (UTF8);\n"
+			+ "  }\n"
+			+ "}";
+
+	private JsonGroupConverter converter;
+
+	@Override
+	protected void setUp() {
+		converter = new JsonGroupConverter(MessageTypeParser.parseMessageType(SCHEMA));
+	}
+
+	private Group convert(String json) throws IOException {
+		byte[] bytes = ("xx" + json).getBytes();
+		return converter.convert(bytes, 2, bytes.length - 2);
+	}
+
+	private void assertInvalid(String json) {
+		try {
+			convert(json);
+			fail("Converted " + json);
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testConvertsFields() throws IOException {
+		Group group = convert("{\"ts\":1700000000000,\"name\":\"a\",\"count\":3,\"ok\":true,"
+				+ "\"ratio\":0.5,\"tags\":[\"x\",\"y\"],\"user\":{\"id\":\"u1\"}}");
+		assertEquals(1700000000000L, group.getLong("ts", 0));
+		assertEquals("a", group.getString("name", 0));
+		assertEquals(3, group.getInteger("count", 0));
+		assertTrue(group.getBoolean("ok", 0));
+		assertEquals(0.5, group.getDouble("ratio", 0), 0.0);
+		assertEquals(2, group.getFieldRepetitionCount("tags"));
+		assertEquals("y", group.getString("tags", 1));
+		assertEquals("u1", group.getGroup("user", 0).getString("id", 0));
+	}
+
+	public void testSkipsUnknownFieldsAndNulls() throws IOException {
+		Group group = convert("{\"ts\":1,\"extra\":{\"a\":[1,2]},\"name\":null}");
+		assertEquals(1L, group.getLong("ts", 0));
+		assertEquals(0, group.getFieldRepetitionCount("name"));
+	}
+
+	public void testRejectsMissingRequiredFields() {
+		assertInvalid("{\"name\":\"a\"}");
+		assertInvalid("{\"ts\":null}");
+		assertInvalid("{\"ts\":1,\"user\":{}}");
+	}
+
+	public void testRejectsWrongTypes() {
+		assertInvalid("{\"ts\":\"soon\"}");
+		assertInvalid("{\"ts\":1,\"count\":99999999999}");
+		assertInvalid("{\"ts\":1,\"user\":\"u1\"}");
+		assertInvalid("{\"ts\":1,\"name\":{\"first\":\"a\"}}");
+	}
+
+	public void testRejectsRepeatedValuesOfSingleFields() {
+		assertInvalid("{\"ts\":1,\"name\":[\"a\",\"b\"]}");
+		assertInvalid("{\"ts\":1,\"ts\":2}");
+	}
+
+	public void testRejectsNonObjects() {
+		assertInvalid("[1,2]");
+		assertInvalid("not json");
+	}
+}
+
+// vim: noet:ts=2:sw=2
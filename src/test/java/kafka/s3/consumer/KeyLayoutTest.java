@@ -0,0 +1,72 @@
+package kafka.s3.consumer;
+
+import java.io.File;
+import java.io.FileWriter;
+
+import junit.framework.TestCase;
+
+public class KeyLayoutTest extends TestCase {
+	private static final String HOUR = "2024-01-01-00";
+
+	private File props;
+
+	@Override
+	protected void setUp() throws Exception {
+		props = File.createTempFile("keylayout", ".properties");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		props.delete();
+	}
+
+	private PropertyConfiguration configure(String properties) throws Exception {
+		FileWriter writer = new FileWriter(props);
+		writer.write("s3.bucket=bucket\n" + properties);
+		writer.close();
+		return new PropertyConfiguration(props.toURI().toURL());
+	}
+
+	public void testDefaultTemplate() throws Exception {
+		KeyLayout layout = new KeyLayout("events", configure("s3.prefix=base/\n"));
+		assertEquals("base/category=events/" + HOUR + "/3", layout.getKeyPrefix(3, HOUR));
+		assertEquals("base/category=events/" + HOUR, layout.getHourPrefix(HOUR));
+	}
+
+	public void testCategoryReplacesTheTopicName() throws Exception {
+		KeyLayout layout = new KeyLayout("events", "errors", configure("s3.prefix=base\n"));
+		assertEquals("base/category=errors/" + HOUR + "/0", layout.getKeyPrefix(0, HOUR));
+	}
+
+	public void testTopicPrefixIsStripped() throws Exception {
+		assertEquals("events", KeyLayout.getTopicName("prod_events", "prod_"));
+		assertEquals("events", KeyLayout.getTopicName("events", null));
+
+		KeyLayout layout = new KeyLayout("prod_events",
+				configure("s3.prefix=base\nkafka.topic.prefix=prod_\n"));
+		assertEquals("base/category=events/" + HOUR + "/1", layout.getKeyPrefix(1, HOUR));
+	}
+
+	public void testShardedTemplate() throws Exception {
+		KeyLayout layout = new KeyLayout("events", configure("s3.prefix=base\n"
+				+ "s3.key.template={prefix}/{shard}/{topic}/{time}/{partition}\n"
+				+ "s3.key.shards=256\n"));
+		String key = layout.getKeyPrefix(7, HOUR);
+		assertTrue(key, key.matches("base/[0-9a-f]{2}/events/" + HOUR + "/7"));
+		assertEquals(key, layout.getKeyPrefix(7, HOUR));
+		// The shard comes before the hour, so hours have no directory.
+		assertNull(layout.getHourPrefix(HOUR));
+	}
+
+	public void testTemplateNeedsTimeAndPartition() throws Exception {
+		try {
+			new KeyLayout("events", configure("s3.prefix=base\n"
+					+ "s3.key.template={prefix}/{topic}/{partition}\n"));
+			fail("Template without {time} accepted");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid property s3.key.template"));
+		}
+	}
+}
+
+// vim: noet:ts=2:sw=2
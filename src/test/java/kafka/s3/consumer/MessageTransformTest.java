@@ -0,0 +1,127 @@
+package kafka.s3.consumer;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class MessageTransformTest extends TestCase {
+	private static final String[] NONE = new String[0];
+	private static final long TIMESTAMP = 1700000000L;
+
+	private File props;
+
+	@Override
+	protected void setUp() throws Exception {
+		props = File.createTempFile("transform", ".properties");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		props.delete();
+	}
+
+	private PropertyConfiguration configure(String properties) throws Exception {
+		FileWriter writer = new FileWriter(props);
+		writer.write("s3.bucket=bucket\n" + properties);
+		writer.close();
+		return new PropertyConfiguration(props.toURI().toURL());
+	}
+
+	private static ByteBuffer payload(String json) {
+		byte[] body = json.getBytes();
+		ByteBuffer buffer = ByteBuffer.allocate(8 + body.length);
+		buffer.putLong(TIMESTAMP);
+		buffer.put(body);
+		buffer.flip();
+		return buffer;
+	}
+
+	private static String body(ByteBuffer payload) {
+		ByteBuffer copy = payload.duplicate();
+		assertEquals(TIMESTAMP, copy.getLong());
+		byte[] bytes = new byte[copy.remaining()];
+		copy.get(bytes);
+		return new String(bytes);
+	}
+
+	public void testDropsMatchingMessages() throws Exception {
+		MessageTransform transform = new MessageTransform(
+				new String[] { "level=debug", "meta.sampled=true" }, NONE, NONE, NONE);
+		assertFalse(transform.apply(payload("{\"level\":\"debug\",\"msg\":\"x\"}")));
+		assertFalse(transform.apply(payload("{\"meta\":{\"sampled\":true}}")));
+		assertTrue(transform.apply(payload("{\"level\":\"info\",\"meta\":{\"sampled\":false}}")));
+	}
+
+	public void testKeptMessagesAreWrittenUnchanged() throws Exception {
+		MessageTransform transform = new MessageTransform(
+				new String[] { "level=debug" }, NONE, NONE, NONE);
+		ByteBuffer payload = payload("{\"level\":\"info\", \"n\": 404}");
+		assertTrue(transform.apply(payload));
+		assertSame(payload, transform.getPayload());
+		assertNull(transform.getCategory());
+	}
+
+	public void testRoutesToCategories() throws Exception {
+		MessageTransform transform = new MessageTransform(NONE,
+				new String[] { "code=404:missing", "code=500:errors", "level=error:errors" }, NONE, NONE);
+		assertTrue(transform.apply(payload("{\"code\":404}")));
+		assertEquals("missing", transform.getCategory());
+		assertTrue(transform.apply(payload("{\"level\":\"error\",\"code\":404}")));
+		assertEquals("errors", transform.getCategory());
+		assertTrue(transform.apply(payload("{\"code\":200}")));
+		assertNull(transform.getCategory());
+	}
+
+	public void testIncludesTopLevelFields() throws Exception {
+		MessageTransform transform = new MessageTransform(NONE, NONE,
+				new String[] { "id", "user" }, NONE);
+		assertTrue(transform.apply(payload("{\"id\":1,\"debug\":[1,2],\"user\":{\"name\":\"a\"}}")));
+		assertEquals("{\"id\":1,\"user\":{\"name\":\"a\"}}", body(transform.getPayload()));
+	}
+
+	public void testExcludesNestedFields() throws Exception {
+		MessageTransform transform = new MessageTransform(NONE, NONE, NONE,
+				new String[] { "user.email", "trace" });
+		assertTrue(transform.apply(payload(
+				"{\"user\":{\"name\":\"a\",\"email\":\"a@b\"},\"trace\":{\"id\":1},\"n\":2}")));
+		assertEquals("{\"user\":{\"name\":\"a\"},\"n\":2}", body(transform.getPayload()));
+	}
+
+	public void testNonObjectsAreKept() throws Exception {
+		MessageTransform transform = new MessageTransform(
+				new String[] { "level=debug" }, NONE, NONE, new String[] { "x" });
+		ByteBuffer array = payload("[1,2,3]");
+		assertTrue(transform.apply(array));
+		assertSame(array, transform.getPayload());
+
+		ByteBuffer text = payload("not json");
+		assertTrue(transform.apply(text));
+		assertSame(text, transform.getPayload());
+		assertNull(transform.getCategory());
+	}
+
+	public void testNoRulesMeansNoTransform() throws Exception {
+		assertNull(MessageTransform.create("topic", configure("")));
+		assertNotNull(MessageTransform.create("topic",
+				configure("s3.transform.drop.topic=level=debug\n")));
+	}
+
+	public void testInvalidRules() {
+		try {
+			new MessageTransform(new String[] { "level" }, NONE, NONE, NONE);
+			fail("Drop rule without a value accepted");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid property s3.transform.drop"));
+		}
+		try {
+			new MessageTransform(NONE, new String[] { "level=error" }, NONE, NONE);
+			fail("Route rule without a category accepted");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid property s3.transform.route"));
+		}
+	}
+}
+
+// vim: noet:ts=2:sw=2
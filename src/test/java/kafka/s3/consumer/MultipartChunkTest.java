@@ -0,0 +1,124 @@
+package kafka.s3.consumer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class MultipartChunkTest extends TestCase {
+	private static final String BUCKET = "bucket";
+
+	private File root;
+	private FileSystemS3Client s3;
+	private S3Uploader uploader;
+
+	@Override
+	protected void setUp() throws Exception {
+		root = File.createTempFile("multipart", "");
+		root.delete();
+		root.mkdirs();
+		s3 = new FileSystemS3Client(root);
+		uploader = new S3Uploader(s3, 2, 16, null, null);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		uploader.shutdown();
+		uploader.awaitTermination(1, TimeUnit.MINUTES);
+		delete(root);
+	}
+
+	public void testSmallChunkIsPut() throws IOException {
+		MultipartChunk chunk = new MultipartChunk(uploader, s3, BUCKET, "small", 1024 * 1024);
+		chunk.write("hello".getBytes());
+		chunk.commit("small", 0).run();
+		assertEquals("hello", get("small"));
+	}
+
+	public void testLargeChunkIsUploadedInParts() throws IOException {
+		MultipartChunk chunk = new MultipartChunk(uploader, s3, BUCKET, "large", 100);
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			String line = i + "\n";
+			expected.append(line);
+			chunk.write(line.getBytes());
+		}
+		chunk.write('!');
+		expected.append('!');
+		chunk.commit("large", 0).run();
+		assertEquals(expected.toString(), get("large"));
+	}
+
+	public void testDiscardLeavesNoObject() throws Exception {
+		MultipartChunk chunk = new MultipartChunk(uploader, s3, BUCKET, "discarded", 100);
+		chunk.write(new byte[350]);
+		chunk.discard();
+		uploader.shutdown();
+		uploader.awaitTermination(1, TimeUnit.MINUTES);
+		assertFalse(s3.doesObjectExist(BUCKET, "discarded"));
+		// The abort runs on the part pool, which is not awaited.
+		File multipart = new File(new File(root, BUCKET), ".multipart");
+		long deadline = System.currentTimeMillis() + 10000;
+		String[] uploads = multipart.list();
+		while (uploads != null && uploads.length > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+			uploads = multipart.list();
+		}
+		assertEquals(0, uploads == null ? 0 : uploads.length);
+	}
+
+	public void testShutdownNowAbortsOpenUploads() throws Exception {
+		MultipartChunk chunk = new MultipartChunk(uploader, s3, BUCKET, "abandoned", 100);
+		chunk.write(new byte[350]);
+		File multipart = new File(new File(root, BUCKET), ".multipart");
+		long deadline = System.currentTimeMillis() + 10000;
+		while (countParts(multipart) < 3 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(3, countParts(multipart));
+
+		// Never committed, as if the shutdown ran out of time first.
+		uploader.shutdownNow();
+		String[] uploads = multipart.list();
+		assertEquals(0, uploads == null ? 0 : uploads.length);
+	}
+
+	private static int countParts(File multipart) {
+		File[] uploads = multipart.listFiles();
+		if (uploads == null || uploads.length == 0) {
+			return 0;
+		}
+		String[] parts = uploads[0].list();
+		return parts == null ? 0 : parts.length;
+	}
+
+	private String get(String key) throws IOException {
+		InputStream in = s3.getObject(BUCKET, key).getObjectContent();
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+			return out.toString();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
+
+// vim: noet:ts=2:sw=2
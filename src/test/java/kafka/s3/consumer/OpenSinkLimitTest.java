@@ -0,0 +1,60 @@
+package kafka.s3.consumer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class OpenSinkLimitTest extends TestCase {
+	public void testTryOpenStopsAtTheLimit() {
+		OpenSinkLimit limit = new OpenSinkLimit(2);
+		assertTrue(limit.tryOpen());
+		assertTrue(limit.tryOpen());
+		assertFalse(limit.tryOpen());
+		assertEquals(2, limit.getOpen());
+
+		limit.closed();
+		assertTrue(limit.tryOpen());
+	}
+
+	public void testNoLimit() {
+		OpenSinkLimit limit = new OpenSinkLimit(0);
+		for (int i = 0; i < 100; i++) {
+			assertTrue(limit.tryOpen());
+		}
+		assertEquals(100, limit.getOpen());
+	}
+
+	public void testConcurrentPartitionsShareTheLastSlots() throws InterruptedException {
+		final OpenSinkLimit limit = new OpenSinkLimit(10);
+		final AtomicInteger granted = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int j = 0; j < 1000; j++) {
+						if (limit.tryOpen()) {
+							granted.incrementAndGet();
+						}
+					}
+				}
+			});
+			threads[i].start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(10, granted.get());
+		assertEquals(10, limit.getOpen());
+	}
+}
+
+// vim: noet:ts=2:sw=2
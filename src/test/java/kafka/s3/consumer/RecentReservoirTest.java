@@ -0,0 +1,30 @@
+package kafka.s3.consumer;
+
+import junit.framework.TestCase;
+
+import com.codahale.metrics.Snapshot;
+
+public class RecentReservoirTest extends TestCase {
+	public void testKeepsValuesUntilFull() {
+		RecentReservoir reservoir = new RecentReservoir(4);
+		assertEquals(0, reservoir.size());
+		reservoir.update(3);
+		reservoir.update(1);
+		assertEquals(2, reservoir.size());
+		Snapshot snapshot = reservoir.getSnapshot();
+		assertEquals(3, snapshot.getMax());
+	}
+
+	public void testKeepsOnlyTheLatestValues() {
+		RecentReservoir reservoir = new RecentReservoir(4);
+		for (long i = 1; i <= 10; i++) {
+			reservoir.update(i * 100);
+		}
+		assertEquals(4, reservoir.size());
+		Snapshot snapshot = reservoir.getSnapshot();
+		assertEquals(1000, snapshot.getMax());
+		assertEquals(850.0, snapshot.getMean(), 0.001);
+	}
+}
+
+// vim: noet:ts=2:sw=2
@@ -0,0 +1,70 @@
+package kafka.s3.consumer;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+
+public class S3ThrottleTest extends TestCase {
+	private static AmazonS3Exception slowDown() {
+		AmazonS3Exception e = new AmazonS3Exception("Please reduce your request rate.");
+		e.setStatusCode(503);
+		e.setErrorCode("SlowDown");
+		return e;
+	}
+
+	public void testRecognizesSlowDown() {
+		assertTrue(S3Throttle.isSlowDown(slowDown()));
+		AmazonS3Exception notFound = new AmazonS3Exception("Not found");
+		notFound.setStatusCode(404);
+		assertFalse(S3Throttle.isSlowDown(notFound));
+		assertFalse(S3Throttle.isSlowDown(new AmazonClientException("Timeout")));
+		assertFalse(S3Throttle.isSlowDown(null));
+	}
+
+	public void testUnlimitedUntilSlowDown() throws InterruptedException {
+		S3Throttle throttle = new S3Throttle(10, 10);
+		long start = System.nanoTime();
+		for (int i = 0; i < 1000; i++) {
+			throttle.acquire();
+		}
+		assertTrue(System.nanoTime() - start < 500000000L);
+	}
+
+	public void testSlowDownLimitsTheRate() throws InterruptedException {
+		S3Throttle throttle = new S3Throttle(10, 0);
+		throttle.slowDown();
+		// Nothing was sent yet, so the rate drops to the minimum: 10/s.
+		long start = System.nanoTime();
+		for (int i = 0; i < 6; i++) {
+			throttle.acquire();
+		}
+		long millis = (System.nanoTime() - start) / 1000000;
+		assertTrue(millis + "ms", millis >= 400);
+	}
+
+	public void testWrappedClientReportsSlowDown() throws Exception {
+		File root = File.createTempFile("throttle", "");
+		root.delete();
+		S3Throttle throttle = new S3Throttle(10, 0);
+		// Every attempt fails with SlowDown.
+		AmazonS3 client = throttle.wrap(new FileSystemS3Client(root, 0L, 1.0, 0, 0L));
+		try {
+			client.doesObjectExist("bucket", "key");
+			fail("SlowDown not thrown");
+		} catch (AmazonS3Exception e) {
+			assertTrue(S3Throttle.isSlowDown(e));
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < 4; i++) {
+			throttle.acquire();
+		}
+		assertTrue((System.nanoTime() - start) / 1000000 >= 200);
+		root.delete();
+	}
+}
+
+// vim: noet:ts=2:sw=2
@@ -0,0 +1,173 @@
+package kafka.s3.consumer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class UploadSequencerTest extends TestCase {
+	private static final Runnable NOTHING = new Runnable() {
+		@Override
+		public void run() {
+		}
+	};
+
+	private File root;
+	private S3Uploader uploader;
+	private UploadSequencer sequencer;
+	private List<Integer> committed;
+
+	@Override
+	protected void setUp() throws Exception {
+		root = File.createTempFile("sequencer", "");
+		root.delete();
+		uploader = new S3Uploader(new FileSystemS3Client(root), 4, 16, null, null);
+		sequencer = new UploadSequencer(uploader, new SinkMetrics(new MetricRegistry(), "topic", 0));
+		committed = Collections.synchronizedList(new ArrayList<Integer>());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		uploader.shutdown();
+		uploader.awaitTermination(1, TimeUnit.MINUTES);
+	}
+
+	private Runnable await(final CountDownLatch latch) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					latch.await();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+	}
+
+	private Runnable commit(final int n) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				committed.add(n);
+			}
+		};
+	}
+
+	public void testCallbacksRunInSubmitOrder() throws InterruptedException {
+		CountDownLatch first = new CountDownLatch(1);
+		CountDownLatch second = new CountDownLatch(1);
+		CountDownLatch third = new CountDownLatch(1);
+		sequencer.submit(await(first), commit(1));
+		sequencer.submit(await(second), commit(2));
+		sequencer.submit(await(third), commit(3));
+
+		third.countDown();
+		second.countDown();
+		Thread.sleep(100);
+		assertTrue(committed.isEmpty());
+		assertEquals(3, sequencer.getPending());
+
+		first.countDown();
+		sequencer.awaitCompletion();
+		assertEquals(3, committed.size());
+		assertEquals(Integer.valueOf(1), committed.get(0));
+		assertEquals(Integer.valueOf(2), committed.get(1));
+		assertEquals(Integer.valueOf(3), committed.get(2));
+		assertEquals(0, sequencer.getPending());
+	}
+
+	public void testAwaitCompletionWithNothingPending() throws InterruptedException {
+		sequencer.awaitCompletion();
+		assertEquals(0, sequencer.getPending());
+	}
+
+	public void testAfterPending() throws InterruptedException {
+		sequencer.afterPending(commit(0));
+		assertEquals(1, committed.size());
+
+		CountDownLatch upload = new CountDownLatch(1);
+		sequencer.submit(await(upload), commit(1));
+		sequencer.afterPending(commit(2));
+		assertEquals(1, committed.size());
+
+		upload.countDown();
+		sequencer.awaitCompletion();
+		assertEquals(3, committed.size());
+		assertEquals(Integer.valueOf(2), committed.get(2));
+	}
+
+	public void testFailureHoldsBackLaterCallbacks() throws InterruptedException {
+		final CountDownLatch upload = new CountDownLatch(1);
+		sequencer.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					upload.await();
+				} catch (InterruptedException e) {
+					// fail anyway
+				}
+				throw new IllegalStateException("Upload failed");
+			}
+		}, commit(1));
+		sequencer.submit(NOTHING, commit(2));
+
+		upload.countDown();
+		try {
+			sequencer.awaitCompletion();
+			fail("Failure not reported");
+		} catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		Thread.sleep(100);
+		assertTrue(committed.isEmpty());
+
+		try {
+			sequencer.checkFailure();
+			fail("Failure not reported");
+		} catch (RuntimeException e) {
+			// expected
+		}
+		try {
+			sequencer.submit(NOTHING, commit(3));
+			fail("Submitted after a failure");
+		} catch (RuntimeException e) {
+			// expected
+		}
+	}
+
+	public void testSlowCallbackDoesNotHoldTheLock() throws InterruptedException {
+		final CountDownLatch running = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		sequencer.submit(NOTHING, new Runnable() {
+			@Override
+			public void run() {
+				running.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		assertTrue(running.await(10, TimeUnit.SECONDS));
+
+		// Both would block if the callback ran under the sequencer's lock.
+		assertEquals(1, sequencer.getPending());
+		sequencer.submit(NOTHING, commit(1));
+		assertEquals(2, sequencer.getPending());
+		assertTrue(committed.isEmpty());
+
+		release.countDown();
+		sequencer.awaitCompletion();
+		assertEquals(Collections.singletonList(1), committed);
+	}
+}
+
+// vim: noet:ts=2:sw=2